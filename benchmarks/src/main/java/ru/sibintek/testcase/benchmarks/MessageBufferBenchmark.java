@@ -0,0 +1,77 @@
+package ru.sibintek.testcase.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.server.MessageBuffer;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Добавление и выборка из буфера сообщений одним и несколькими потоками одновременно.
+ * Для сравнения - PriorityBlockingQueue с одной общей блокировкой, которой буфер был раньше.
+ * Буфер измеряется с хранением объектов в куче и кадров вне кучи
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBufferBenchmark {
+
+    @Param({"HEAP", "OFF_HEAP"})
+    public MessageBuffer.Storage storage;
+
+    private MessageBuffer buffer;
+    private PriorityBlockingQueue<Message> priorityQueue;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        Message message;
+
+        @Setup
+        public void setUp() {
+            message = Message.generateMessage();
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        buffer = new MessageBuffer(storage);
+        priorityQueue = new PriorityBlockingQueue<>(150, Comparator.comparingInt(message -> message.getPriority().getOrder()));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Message offerPoll(Producer producer) {
+        buffer.offer(producer.message);
+        return buffer.poll();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Message offerPollContended(Producer producer) {
+        buffer.offer(producer.message);
+        return buffer.poll();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Message priorityBlockingQueueContended(Producer producer) {
+        priorityQueue.offer(producer.message);
+        return priorityQueue.poll();
+    }
+}
@@ -0,0 +1,87 @@
+package ru.sibintek.testcase.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кодирование и разбор кадров: одиночное сообщение и пакет BATCH
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({"64"})
+    public int batchSize;
+
+    private Message message;
+    private List<Message> batch;
+    private ByteBuffer buffer;
+    private ByteBuffer encodedMessage;
+    private ByteBuffer encodedBatch;
+
+    @Setup
+    public void setUp() {
+        message = Message.generateMessage();
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(Message.generateMessage());
+        }
+        buffer = ByteBuffer.allocate(MessageCodec.batchLength(batch));
+
+        encodedMessage = ByteBuffer.allocate(MessageCodec.encodedLength(message));
+        MessageCodec.encode(message, encodedMessage);
+        encodedMessage.flip();
+
+        encodedBatch = ByteBuffer.allocate(MessageCodec.batchLength(batch));
+        MessageCodec.encodeBatch(1, batch, encodedBatch);
+        encodedBatch.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        buffer.clear();
+        MessageCodec.encode(message, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        encodedMessage.rewind();
+        return MessageCodec.decode(encodedMessage);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBatch() {
+        buffer.clear();
+        MessageCodec.encodeBatch(1, batch, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public void decodeBatch(Blackhole blackhole) throws IOException {
+        encodedBatch.rewind();
+        MessageCodec.decode(encodedBatch, blackhole::consume);
+    }
+}
@@ -0,0 +1,90 @@
+package ru.sibintek.testcase.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.server.SpillStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Запись и чтение дискового хранилища, в которое генератор сбрасывает не поместившиеся в буфер сообщения.
+ * Одна операция - пачка из {@link #BATCH} сообщений, результат приводится к одному сообщению
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpillStoreBenchmark {
+    static final int BATCH = 10_000;
+
+    private final Message[] messages = new Message[BATCH];
+    private Path dir;
+    private SpillStore store;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        for (int i = 0; i < BATCH; i++) {
+            messages[i] = Message.generateMessage();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        dir = Files.createTempDirectory("spill-benchmark");
+        store = new SpillStore(dir, SpillStore.DEFAULT_SEGMENT_SIZE);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void append() throws IOException {
+        for (Message message : messages) {
+            store.append(message);
+        }
+        store.flush();
+    }
+
+    @State(Scope.Thread)
+    public static class Filled {
+
+        @Setup(Level.Invocation)
+        public void fill(SpillStoreBenchmark benchmark) throws IOException {
+            benchmark.append();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void poll(Filled filled, Blackhole blackhole) throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            blackhole.consume(store.poll());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ru.sibintek.testcase.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.sibintek.testcase.common.Connection;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.SharedMemoryChannel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Время обмена сообщением туда и обратно между двумя {@link Connection}: через сокет loopback и через общую память
+ * {@link SharedMemoryChannel}. Вторая сторона в отдельном потоке возвращает каждое сообщение как есть,
+ * задержка в одну сторону - половина результата
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+    @Param({"tcp", "ipc"})
+    public String transport;
+
+    private final Message message = Message.generateMessage();
+    private Connection client;
+    private Connection server;
+    private Thread echo;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        if ("ipc".equals(transport)) {
+            Path dir = Files.createTempDirectory("transport-benchmark");
+            CompletableFuture<Connection> connecting = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return SharedMemoryChannel.connect(dir, SharedMemoryChannel.DEFAULT_RING_BYTES, 5000);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            server = SharedMemoryChannel.accept(awaitFile(dir));
+            client = connecting.get(5, TimeUnit.SECONDS);
+            Files.delete(dir);
+        } else {
+            try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                client = new Connection(new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort()));
+                server = new Connection(serverSocket.accept());
+            }
+        }
+        echo = new Thread(() -> {
+            try {
+                while (true) {
+                    server.send(server.receive());
+                }
+            } catch (IOException e) {
+                //соединение закрыто
+            }
+        }, "echo");
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        client.close();
+        server.close();
+        echo.join(1000);
+    }
+
+    @Benchmark
+    public Message roundTrip() throws IOException {
+        client.send(message);
+        return client.receive();
+    }
+
+    private static Path awaitFile(Path dir) throws Exception {
+        while (true) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SharedMemoryChannel.SUFFIX)) {
+                for (Path file : files) {
+                    return file;
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package ru.sibintek.testcase.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.sibintek.testcase.common.Connection;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageType;
+import ru.sibintek.testcase.common.Settings;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Рассылка через loopback: сервер в режиме nio с настройками из application.properties и N клиентов,
+ * которые сразу подтверждают каждое сообщение. Одна операция завершается, когда сообщение получили все клиенты.
+ * Лежит в пакете сервера, чтобы собрать его из тех же частей, что и {@link Server}, без чтения порта с консоли
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final int BURST = 100;
+
+    @Param({"1", "10", "100"})
+    public int clients;
+
+    private final Map<String, Subscriber> connectionMap = new ConcurrentHashMap<>();
+    private final RoutingIndex routes = new RoutingIndex();
+    private final MessageBuffer buffer = new MessageBuffer();
+    private final MessageLog log = new MessageLog(Settings.getInt("server.log.capacity", 10000), message -> { });
+    private final Deliveries deliveries = new Deliveries();
+    private final List<Connection> connections = new ArrayList<>();
+    private Dispatcher dispatcher;
+    private DeliveryContext context;
+    private NioServer server;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        dispatcher = new Dispatcher(routes, buffer, log);
+        context = new DeliveryContext(connectionMap, routes, dispatcher::signal,
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()),
+                Executors.newSingleThreadScheduledExecutor(),
+                new TimingWheel(10, TimeUnit.MILLISECONDS, 512, "ack-timer"),
+                log,
+                new ServerMetrics(buffer::size),
+                new DeliverySettings(false));
+        server = new NioServer(0, Settings.getInt("server.eventLoops", Runtime.getRuntime().availableProcessors()), context);
+        server.start();
+        dispatcher.start();
+        int port = server.localPort();
+        for (int i = 0; i < clients; i++) {
+            Connection connection = new Connection(new Socket("localhost", port));
+            connections.add(connection);
+            Thread reader = new Thread(() -> readLoop(connection), "benchmark-client-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        while (connectionMap.size() < clients) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        dispatcher.stop();
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+        server.close();
+        context.sendExecutor.shutdownNow();
+        context.lingerExecutor.shutdownNow();
+        context.ackTimer.close();
+    }
+
+    /**
+     * Время доставки одного сообщения всем клиентам
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public void broadcastLatency() throws InterruptedException {
+        long target = deliveries.expect(clients);
+        buffer.offer(Message.generateMessage());
+        dispatcher.signal();
+        deliveries.await(target);
+    }
+
+    /**
+     * Пропускная способность рассылки, когда в буфере одновременно много сообщений
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(BURST)
+    public void broadcastThroughput() throws InterruptedException {
+        long target = deliveries.expect((long) clients * BURST);
+        for (int i = 0; i < BURST; i++) {
+            buffer.offer(Message.generateMessage());
+        }
+        dispatcher.signal();
+        deliveries.await(target);
+    }
+
+    private void readLoop(Connection connection) {
+        try {
+            while (true) {
+                Message message = connection.receive();
+                if (message.getType() == MessageType.HEART_BEAT) {
+                    connection.send(new Message(MessageType.HEART_BEAT, UUID.randomUUID().toString()));
+                } else if (message.getType() == MessageType.REGISTERED) {
+                    connection.send(new Message(MessageType.CREDIT, String.valueOf(Settings.getInt("server.window", 64))));
+                } else if (message.getType() == MessageType.SERVER_PUSH) {
+                    connection.send(new Message(MessageType.ACK, message.getDeliveryTag()));
+                    deliveries.delivered();
+                }
+            }
+        } catch (IOException ignored) {
+            //соединение закрыто по окончании замера
+        }
+    }
+
+    /**
+     * Счетчик доставок всем клиентам, операция замера ждет нужного значения без активного ожидания
+     */
+    private static class Deliveries {
+        private long expected;
+        private long delivered;
+
+        synchronized long expect(long count) {
+            expected += count;
+            return expected;
+        }
+
+        synchronized void delivered() {
+            if (++delivered >= expected) {
+                notifyAll();
+            }
+        }
+
+        synchronized void await(long target) throws InterruptedException {
+            while (delivered < target) {
+                wait();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ru.sibintek.testcase.client;
+
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * Упорядочивает подтверждения при параллельной обработке.
+ * Подтверждение на сервере накопительное, поэтому отправлять можно только номер доставки,
+ * до которого включительно обработаны все полученные сообщения. Сообщения могут завершаться в любом порядке,
+ * подтверждение уходит, как только такая граница сдвигается, номера подтверждений строго возрастают.
+ * После необработанного сообщения граница дальше него не сдвигается: сервер повторит его и все следующие
+ */
+public class AckSequencer {
+    private final LongConsumer ackSender;
+    //Полученные, но еще не обработанные номера доставки
+    private final TreeSet<Long> outstanding = new TreeSet<>();
+    private final AtomicInteger sendRequests = new AtomicInteger();
+    private long highestReceived;
+    //Граница подтверждения, которую не перейти из-за необработанного сообщения
+    private long limit = Long.MAX_VALUE;
+    private volatile long acknowledgeable;
+    //Меняется только внутри flush, который выполняется не более чем одним потоком за раз
+    private long lastSent;
+
+    /**
+     * @param ackSender отправляет накопительное подтверждение, вызывается не более чем одним потоком за раз
+     */
+    public AckSequencer(LongConsumer ackSender) {
+        this.ackSender = ackSender;
+    }
+
+    /**
+     * Вызывается потоком чтения при получении сообщения, номера доставки должны идти по возрастанию
+     *
+     * @param deliveryTag номер доставки сообщения
+     */
+    public synchronized void received(long deliveryTag) {
+        outstanding.add(deliveryTag);
+        highestReceived = Math.max(highestReceived, deliveryTag);
+    }
+
+    /**
+     * Вызывается по окончании обработки сообщения в любом порядке
+     *
+     * @param deliveryTag номер доставки сообщения
+     */
+    public void completed(long deliveryTag) {
+        synchronized (this) {
+            if (!outstanding.remove(deliveryTag)) {
+                return;
+            }
+            acknowledgeable = Math.min(limit, outstanding.isEmpty() ? highestReceived : outstanding.first() - 1);
+        }
+        flush();
+    }
+
+    /**
+     * Вызывается, если сообщение не обработано: подтверждение останавливается перед ним
+     *
+     * @param deliveryTag номер доставки сообщения
+     */
+    public synchronized void failed(long deliveryTag) {
+        if (outstanding.remove(deliveryTag)) {
+            //Граница и так меньше номера, пока он не был обработан, поэтому отправлять нечего
+            limit = Math.min(limit, deliveryTag - 1);
+        }
+    }
+
+    private void flush() {
+        if (sendRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int requests = 1;
+        do {
+            long target = acknowledgeable;
+            if (target > lastSent) {
+                lastSent = target;
+                ackSender.accept(target);
+            }
+            requests = sendRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+}
@@ -0,0 +1,46 @@
+package ru.sibintek.testcase.client;
+
+/**
+ * Адаптивный предел параллельной обработки по схеме AIMD.
+ * Пока обработка укладывается в заданное время, предел растет на единицу за каждое "окно" завершенных сообщений,
+ * при ошибке или превышении времени - уменьшается в заданное число раз, но не ниже минимума
+ */
+class AdaptiveLimit {
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long timeoutNanos;
+    private double limit;
+
+    /**
+     * @param initialLimit начальный предел
+     * @param minLimit     минимальный предел
+     * @param maxLimit     максимальный предел, обычно размер пула обработчиков
+     * @param timeoutNanos время обработки, превышение которого считается перегрузкой
+     */
+    AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, long timeoutNanos) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.timeoutNanos = timeoutNanos;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    synchronized int get() {
+        return (int) limit;
+    }
+
+    /**
+     * @param latencyNanos время обработки сообщения
+     * @param inFlight     сколько сообщений обрабатывалось вместе с этим
+     * @param success      обработка завершилась без ошибки
+     */
+    synchronized void onSample(long latencyNanos, int inFlight, boolean success) {
+        if (!success || latencyNanos > timeoutNanos) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        } else if (inFlight * 2 >= limit) {
+            //Растем, только если предел действительно используется
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+}
@@ -2,21 +2,37 @@ package ru.sibintek.testcase.client;
 
 import ru.sibintek.testcase.common.Connection;
 import ru.sibintek.testcase.common.ConsoleHelper;
+import ru.sibintek.testcase.common.FrameCompressor;
 import ru.sibintek.testcase.common.Message;
 import ru.sibintek.testcase.common.MessageType;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
-import static ru.sibintek.testcase.client.ClientUtils.getServerAddress;
-import static ru.sibintek.testcase.client.ClientUtils.getServerPort;
+import static ru.sibintek.testcase.client.ClientUtils.connect;
+import static ru.sibintek.testcase.client.ClientUtils.getCompression;
+import static ru.sibintek.testcase.client.ClientUtils.getCredits;
+import static ru.sibintek.testcase.client.ClientUtils.getHandlerTimeoutMillis;
+import static ru.sibintek.testcase.client.ClientUtils.getServiceName;
+import static ru.sibintek.testcase.client.ClientUtils.getSubscription;
+import static ru.sibintek.testcase.client.ClientUtils.getWorkers;
 
 @SuppressWarnings("Duplicates")
 public class ClientB {
+    private final MessageHandler handler;
     private volatile boolean clientConnected;
 
+    public ClientB() {
+        this(null);
+    }
+
+    /**
+     * @param handler обработчик сообщений, null - вывод сообщения в консоль после секундной обработки
+     */
+    public ClientB(MessageHandler handler) {
+        this.handler = handler;
+    }
+
     public static void main(String[] args) {
         ClientB clientB = new ClientB();
         clientB.run();
@@ -55,17 +71,15 @@ public class ClientB {
     public class SocketThread implements Runnable {
 
         private Connection connection;
+        //Одно имя на все попытки регистрации, чтобы сервер продолжил рассылку с места остановки
+        private final String serviceName = getServiceName();
 
         public void run() {
             try {
-                String serverAddress = getServerAddress();
-                int serverPort = getServerPort();
-
-                Socket socket = new Socket(serverAddress, serverPort);
-                this.connection = new Connection(socket);
+                this.connection = connect();
                 clientHandshake();
                 clientMainLoop();
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 notifyConnectionStatusChanged(false);
             }
 
@@ -75,14 +89,19 @@ public class ClientB {
             try {
                 TimeUnit.SECONDS.sleep(1);
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                //Сообщение не обработано, движок не подтвердит его
+                Thread.currentThread().interrupt();
+                return;
             }
             ConsoleHelper.writeMessage(message.getData() + ": priority - " + message.getPriority());
         }
 
-        void sendResponse(String data) {
+        /**
+         * Накопительное подтверждение всех сообщений с номером доставки до deliveryTag включительно
+         */
+        void sendAck(long deliveryTag) {
             try {
-                Message message = new Message(MessageType.RESPONSE, data);
+                Message message = new Message(MessageType.ACK, deliveryTag);
                 this.connection.send(message);
 
             } catch (IOException e) {
@@ -92,6 +111,19 @@ public class ClientB {
             }
         }
 
+        /**
+         * Закрывает соединение после ошибки обработки: сервер сохранит позицию подписчика
+         * и повторит неподтвержденные сообщения при следующей регистрации под тем же именем
+         */
+        void abortConnection() {
+            ConsoleHelper.writeMessage("Сообщение не обработано, соединение закрыто");
+            try {
+                connection.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         void notifyConnectionStatusChanged(boolean clientConnected) {
             ClientB.this.clientConnected = clientConnected;
             synchronized (ClientB.this) {
@@ -99,14 +131,20 @@ public class ClientB {
             }
         }
 
-        void clientHandshake() throws IOException, ClassNotFoundException {
+        void clientHandshake() throws IOException {
             while (true) {
                 Message message = connection.receive();
                 if (message.getType() == MessageType.HEART_BEAT) {
-                    String serviceName = generateServiceName();
-                    connection.send(new Message(MessageType.HEART_BEAT, serviceName));
+                    //В ответе на хартбит вместе с именем сервиса передается подписка
+                    connection.send(new Message(MessageType.HEART_BEAT, getSubscription().heartBeat(serviceName)));
 
                 } else if (message.getType() == MessageType.REGISTERED) {
+                    //Сжатие запрашивается до кредитов, чтобы сжатыми могли прийти уже первые пакеты
+                    if (!FrameCompressor.NONE.equals(getCompression())) {
+                        connection.send(new Message(MessageType.COMPRESSION, getCompression()));
+                    }
+                    //Сообщаем серверу, сколько сообщений можно прислать, не дожидаясь подтверждений
+                    connection.send(new Message(MessageType.CREDIT, String.valueOf(getCredits())));
                     notifyConnectionStatusChanged(true);
                     return;
                 } else {
@@ -116,20 +154,19 @@ public class ClientB {
 
         }
 
-        private String generateServiceName() {
-            return UUID.randomUUID().toString();
-        }
-
-        void clientMainLoop() throws IOException, ClassNotFoundException {
+        void clientMainLoop() throws IOException {
             onShutDownLogic();
-            while (true) {
-                Message message = connection.receive();
-                if (message != null && message.getType() != null && message.getType() == MessageType.SERVER_PUSH) {
-                    //CompletableFuture.runAsync(() -> processIncomingMessage(message));
-                    processIncomingMessage(message);
-                    sendResponse(message.getId());
-                } else {
-                    throw new IOException("Unexpected MessageType");
+            //Обработка идет в пуле потоков, поток чтения только раздает сообщения и не ждет обработчиков
+            MessageHandler messageHandler = handler != null ? handler : this::processIncomingMessage;
+            try (ProcessingEngine engine = new ProcessingEngine(messageHandler, this::sendAck, this::abortConnection,
+                    getWorkers(), getHandlerTimeoutMillis())) {
+                while (true) {
+                    Message message = connection.receive();
+                    if (message != null && message.getType() != null && message.getType() == MessageType.SERVER_PUSH) {
+                        engine.submit(message);
+                    } else {
+                        throw new IOException("Unexpected MessageType");
+                    }
                 }
             }
         }
@@ -1,8 +1,36 @@
 package ru.sibintek.testcase.client;
 
+import ru.sibintek.testcase.common.Connection;
 import ru.sibintek.testcase.common.ConsoleHelper;
+import ru.sibintek.testcase.common.FrameCompressor;
+import ru.sibintek.testcase.common.Settings;
+import ru.sibintek.testcase.common.SharedMemoryChannel;
+import ru.sibintek.testcase.common.Subscription;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.UUID;
 
 class ClientUtils {
+    private static final String IPC_TRANSPORT = "ipc";
+
+    /**
+     * Подключается к серверу транспортом из настройки client.transport: tcp - сокет по адресу и порту с консоли,
+     * ipc - общая память с сервером на том же хосте, адрес не нужен
+     *
+     * @return соединение с сервером
+     * @throws IOException ошибка подключения
+     */
+    static Connection connect() throws IOException {
+        if (IPC_TRANSPORT.equals(Settings.getString("client.transport", "tcp"))) {
+            return SharedMemoryChannel.connect(SharedMemoryChannel.directory(),
+                    Settings.getInt("client.ipc.ringBytes", SharedMemoryChannel.DEFAULT_RING_BYTES),
+                    Settings.getInt("client.ipc.connectTimeoutMillis", 5000));
+        }
+        String serverAddress = getServerAddress();
+        int serverPort = getServerPort();
+        return new Connection(new Socket(serverAddress, serverPort));
+    }
 
     static String getServerAddress() {
         ConsoleHelper.writeMessage("Enter Server address:");
@@ -13,4 +41,48 @@ class ClientUtils {
         ConsoleHelper.writeMessage("Enter Server port:");
         return ConsoleHelper.readInt();
     }
+
+    /**
+     * @return имя сервиса из настройки client.serviceName или случайное, если оно не задано.
+     * Под постоянным именем сервер продолжает рассылку с первого неподтвержденного клиентом сообщения
+     */
+    static String getServiceName() {
+        String serviceName = Settings.getString("client.serviceName", "");
+        return serviceName.isEmpty() ? UUID.randomUUID().toString() : serviceName;
+    }
+
+    /**
+     * @return подписка из настройки client.subscription, например priority=HIGH;prefix=a, пусто - все сообщения
+     */
+    static Subscription getSubscription() {
+        return Subscription.parse(Settings.getString("client.subscription", ""));
+    }
+
+    /**
+     * @return алгоритм сжатия пакетов, который клиент просит у сервера, none - без сжатия
+     */
+    static String getCompression() {
+        return Settings.getString("client.compression", FrameCompressor.NONE);
+    }
+
+    /**
+     * @return сколько сообщений сервер может прислать клиенту, не дожидаясь подтверждений
+     */
+    static int getCredits() {
+        return Settings.getInt("client.credits", 16);
+    }
+
+    /**
+     * @return размер пула обработчиков и максимальное количество одновременно обрабатываемых сообщений
+     */
+    static int getWorkers() {
+        return Settings.getInt("client.workers", 8);
+    }
+
+    /**
+     * @return время обработки сообщения, превышение которого снижает параллельность
+     */
+    static int getHandlerTimeoutMillis() {
+        return Settings.getInt("client.handlerTimeoutMillis", 2000);
+    }
 }
@@ -0,0 +1,18 @@
+package ru.sibintek.testcase.client;
+
+import ru.sibintek.testcase.common.Message;
+
+/**
+ * Обработчик сообщений, полученных клиентом с сервера.
+ * Вызывается из потоков {@link ProcessingEngine} параллельно, поэтому должен быть потокобезопасным
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    /**
+     * @param message сообщение SERVER_PUSH
+     * @throws Exception ошибка обработки, сообщение и следующие за ним не подтверждаются и будут повторены сервером.
+     *                   Обработчик, поймавший прерывание, должен восстановить флаг прерывания - иначе сообщение сочтется обработанным
+     */
+    void handle(Message message) throws Exception;
+}
@@ -0,0 +1,139 @@
+package ru.sibintek.testcase.client;
+
+import ru.sibintek.testcase.common.ConsoleHelper;
+import ru.sibintek.testcase.common.Message;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Параллельная обработка сообщений на клиенте.
+ * Поток чтения только передает сообщения в {@link #submit(Message)} и сразу возвращается к сокету.
+ * Сообщения обрабатываются пулом потоков фиксированного размера, одновременно - не больше адаптивного предела,
+ * подтверждения отправляет {@link AckSequencer} по мере завершения обработки.
+ * Сообщение, обработчик которого выбросил исключение или был прерван, не подтверждается; после первой ошибки
+ * движок останавливается и вызывает onFailure, чтобы сервер повторил неподтвержденные сообщения
+ */
+public class ProcessingEngine implements Closeable {
+    private final MessageHandler handler;
+    private final AckSequencer sequencer;
+    private final AdaptiveLimit limit;
+    private final Runnable onFailure;
+    private final ExecutorService workers;
+    private final ArrayDeque<Message> pending = new ArrayDeque<>();
+    private int inFlight;
+
+    /**
+     * @param handler              обработчик сообщений
+     * @param ackSender            отправляет накопительное подтверждение серверу
+     * @param onFailure            вызывается один раз после первого необработанного сообщения, например закрывает соединение
+     * @param maxWorkers           размер пула обработчиков и верхняя граница предела параллельности
+     * @param handlerTimeoutMillis время обработки, превышение которого снижает предел параллельности
+     */
+    public ProcessingEngine(MessageHandler handler, LongConsumer ackSender, Runnable onFailure, int maxWorkers,
+                            long handlerTimeoutMillis) {
+        this.handler = handler;
+        this.onFailure = onFailure;
+        this.sequencer = new AckSequencer(ackSender);
+        this.limit = new AdaptiveLimit(Math.max(1, maxWorkers / 2), 1, maxWorkers, TimeUnit.MILLISECONDS.toNanos(handlerTimeoutMillis));
+        this.workers = Executors.newFixedThreadPool(maxWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "message-handler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Принимает сообщение в обработку, не блокируясь. Сообщения должны передаваться в порядке получения
+     *
+     * @param message сообщение SERVER_PUSH
+     */
+    public void submit(Message message) {
+        sequencer.received(message.getDeliveryTag());
+        synchronized (this) {
+            pending.add(message);
+        }
+        startPending();
+    }
+
+    /**
+     * @return текущий предел параллельной обработки
+     */
+    public int getConcurrencyLimit() {
+        return limit.get();
+    }
+
+    /**
+     * Прерывает обработку, необработанные сообщения не подтверждаются и будут повторены сервером
+     */
+    @Override
+    public synchronized void close() {
+        workers.shutdownNow();
+        pending.clear();
+    }
+
+    private void startPending() {
+        List<Message> started = new ArrayList<>();
+        synchronized (this) {
+            while (!workers.isShutdown() && inFlight < limit.get() && !pending.isEmpty()) {
+                inFlight++;
+                started.add(pending.poll());
+            }
+        }
+        try {
+            for (Message message : started) {
+                workers.execute(() -> process(message));
+            }
+        } catch (RejectedExecutionException ignored) {
+            //Движок закрыт, пока запускали обработку
+        }
+    }
+
+    private void process(Message message) {
+        long start = System.nanoTime();
+        boolean success = true;
+        try {
+            handler.handle(message);
+            //Обработчик мог поймать прерывание и вернуться, не закончив работу
+            success = !Thread.currentThread().isInterrupted();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            success = false;
+        } catch (Exception e) {
+            success = false;
+            ConsoleHelper.writeMessage("Ошибка обработки сообщения " + message.getId() + ": " + e);
+        }
+        int concurrent;
+        synchronized (this) {
+            concurrent = inFlight--;
+        }
+        limit.onSample(System.nanoTime() - start, concurrent, success);
+        if (success) {
+            sequencer.completed(message.getDeliveryTag());
+            startPending();
+        } else {
+            sequencer.failed(message.getDeliveryTag());
+            abort();
+        }
+    }
+
+    /**
+     * Останавливает обработку после ошибки. Если движок уже закрыт, прерывание пришло из {@link #close()}
+     */
+    private void abort() {
+        synchronized (this) {
+            if (workers.isShutdown()) {
+                return;
+            }
+            close();
+        }
+        onFailure.run();
+    }
+}
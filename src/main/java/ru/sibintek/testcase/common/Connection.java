@@ -1,43 +1,189 @@
 package ru.sibintek.testcase.common;
 
+import java.io.BufferedInputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Соединение, передающее сообщения кадрами {@link MessageCodec}.
+ * Буферы чтения и записи переиспользуются между сообщениями и растут только под самый большой кадр.
+ * Пакет BATCH читается одним кадром, а отдается из {@link #receive()} по одному сообщению.
+ * Кадры идут через сокет или, для клиентов на том же хосте, через общую память {@link SharedMemoryChannel}
+ */
 public class Connection implements Closeable {
-    private final Socket socket;
-    private final ObjectOutputStream out;
-    private final ObjectInputStream in;
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    private final Closeable transport;
+    private final SocketAddress remoteAddress;
+    private final OutputStream out;
+    private final DataInputStream in;
+    //Блокировки вместо synchronized: виртуальный поток, ждущий сокет внутри synchronized, занимает поток-носитель
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock readLock = new ReentrantLock();
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    //Прочитанные, но еще не отданные сообщения пакета
+    private final ArrayDeque<Message> received = new ArrayDeque<>();
 
     public Connection(Socket socket) throws IOException {
-        this.socket = socket;
-        this.out = new ObjectOutputStream(socket.getOutputStream());
+        this(new BufferedInputStream(socket.getInputStream()), socket.getOutputStream(), socket.getRemoteSocketAddress(), socket);
+        socket.setTcpNoDelay(true);
+    }
+
+    /**
+     * @param in            поток чтения кадров
+     * @param out           поток записи, каждый кадр пишется одним вызовом write
+     * @param remoteAddress адрес другой стороны
+     * @param transport     закрывается вместе с соединением
+     */
+    public Connection(InputStream in, OutputStream out, SocketAddress remoteAddress, Closeable transport) {
+        this.transport = transport;
+        this.remoteAddress = remoteAddress;
+        this.out = out;
+        this.in = new DataInputStream(in);
+    }
+
+    public void send(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            ensureWriteCapacity(MessageCodec.encodedLength(message));
+            MessageCodec.encode(message, writeBuffer);
+            writeFrame();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Отправляет сообщения одним кадром BATCH, номера доставки идут подряд начиная с firstDeliveryTag
+     *
+     * @param firstDeliveryTag номер доставки первого сообщения
+     * @param messages         сообщения пакета
+     * @throws IOException ошибка записи
+     */
+    public void sendBatch(long firstDeliveryTag, List<Message> messages) throws IOException {
+        writeLock.lock();
+        try {
+            ensureWriteCapacity(MessageCodec.batchLength(messages));
+            MessageCodec.encodeBatch(firstDeliveryTag, messages, writeBuffer);
+            writeFrame();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Отправляет одним кадром BATCH сообщения, уже закодированные в {@link SharedFrame}.
+     * Поток сокета не поддерживает запись из нескольких буферов, поэтому кадры копируются в буфер записи как есть,
+     * без повторного кодирования. Ссылки на кадры остаются у вызывающего
+     *
+     * @param firstDeliveryTag номер доставки первого сообщения
+     * @param frames           закодированные сообщения пакета
+     * @throws IOException ошибка записи
+     */
+    public void sendFrames(long firstDeliveryTag, List<SharedFrame> frames) throws IOException {
+        int framesLength = 0;
+        for (SharedFrame frame : frames) {
+            framesLength += frame.length();
+        }
+        writeLock.lock();
+        try {
+            ensureWriteCapacity(MessageCodec.BATCH_HEADER_SIZE + framesLength);
+            MessageCodec.encodeBatchHeader(firstDeliveryTag, frames.size(), framesLength, writeBuffer);
+            for (SharedFrame frame : frames) {
+                writeBuffer.put(frame.duplicate());
+            }
+            writeFrame();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Отправляет уже собранный кадр, например сжатый пакет
+     *
+     * @param frame кадр в режиме чтения
+     * @throws IOException ошибка записи
+     */
+    public void sendFrame(ByteBuffer frame) throws IOException {
+        writeLock.lock();
+        try {
+            ensureWriteCapacity(frame.remaining());
+            writeBuffer.put(frame);
+            writeFrame();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void ensureWriteCapacity(int length) {
+        if (writeBuffer.capacity() < length) {
+            writeBuffer = ByteBuffer.allocate(length);
+        }
+        writeBuffer.clear();
+    }
+
+    private void writeFrame() throws IOException {
+        this.out.write(writeBuffer.array(), 0, writeBuffer.position());
         this.out.flush();
-        this.in = new ObjectInputStream(socket.getInputStream());
     }
 
-    public void send(Message message) throws IOException{
-        synchronized (out) {
-            this.out.writeObject(message);
+    public Message receive() throws IOException {
+        readLock.lock();
+        try {
+            while (received.isEmpty()) {
+                readFrame();
+            }
+            return received.poll();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return true, если следующий {@link #receive()} вернет сообщение уже прочитанного пакета без обращения к сокету
+     */
+    public boolean hasBuffered() {
+        readLock.lock();
+        try {
+            return !received.isEmpty();
+        } finally {
+            readLock.unlock();
         }
     }
 
-    public Message receive() throws IOException, ClassNotFoundException{
-        synchronized (in){
-            return (Message) this.in.readObject();
+    private void readFrame() throws IOException {
+        int length = this.in.readInt();
+        if (length < 0 || length > MessageCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        int frameLength = MessageCodec.LENGTH_FIELD_SIZE + length;
+        if (readBuffer.capacity() < frameLength) {
+            readBuffer = ByteBuffer.allocate(frameLength);
         }
+        readBuffer.clear();
+        readBuffer.putInt(length);
+        this.in.readFully(readBuffer.array(), MessageCodec.LENGTH_FIELD_SIZE, length);
+        readBuffer.position(0).limit(frameLength);
+        MessageCodec.decode(readBuffer, received::add);
     }
 
     public SocketAddress getRemoteSocketAddress(){
-        return this.socket.getRemoteSocketAddress();
+        return this.remoteAddress;
     }
 
     public void close() throws IOException{
         this.out.close();
         this.in.close();
-        this.socket.close();
+        this.transport.close();
     }
 }
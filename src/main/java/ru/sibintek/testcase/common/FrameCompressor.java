@@ -0,0 +1,81 @@
+package ru.sibintek.testcase.common;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Сжатие пакетов одного соединения алгоритмом deflate из JDK. Клиент просит сжатие сообщением COMPRESSION
+ * до выдачи кредитов, после этого сервер сжимает каждый пакет, кадры сообщений которого занимают не меньше порога.
+ * Сжимается весь пакет целиком: однотипные сообщения подряд сжимаются в разы лучше, чем по одному.
+ * Если сжатие не дало выигрыша, пакет уходит как есть, получатель различает пакеты по флагу в заголовке BATCH.
+ * Не потокобезопасен, пакеты одного соединения сжимаются по очереди
+ */
+public class FrameCompressor {
+    public static final String DEFLATE = "deflate";
+    public static final String NONE = "none";
+
+    private final Deflater deflater;
+    private final int minBytes;
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+
+    /**
+     * @param level    уровень сжатия deflate, 1 - быстрее всего
+     * @param minBytes с какого размера кадров пакета его стоит сжимать
+     */
+    public FrameCompressor(int level, int minBytes) {
+        this.deflater = new Deflater(level, true);
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * @param framesLength суммарный размер кадров пакета
+     * @return будет ли {@link #compressBatch} пытаться сжать такой пакет
+     */
+    public boolean accepts(int framesLength) {
+        return framesLength >= minBytes;
+    }
+
+    /**
+     * Собирает сжатый кадр BATCH из уже закодированных кадров сообщений. Ссылки на кадры остаются у вызывающего
+     *
+     * @param firstDeliveryTag номер доставки первого сообщения пакета
+     * @param frames           кадры сообщений
+     * @param framesLength     их суммарный размер
+     * @return готовый к записи кадр или null, если пакет меньше порога или не сжимается
+     */
+    public ByteBuffer compressBatch(long firstDeliveryTag, List<SharedFrame> frames, int framesLength) {
+        if (!accepts(framesLength)) {
+            return null;
+        }
+        if (input.length < framesLength) {
+            input = new byte[framesLength];
+        }
+        int position = 0;
+        for (SharedFrame frame : frames) {
+            int length = frame.length();
+            frame.duplicate().get(input, position, length);
+            position += length;
+        }
+        deflater.reset();
+        deflater.setInput(input, 0, framesLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == output.length) {
+                output = new byte[Math.max(framesLength / 2, output.length * 2)];
+            }
+            compressedLength += deflater.deflate(output, compressedLength, output.length - compressedLength);
+        }
+        int bodyLength = Integer.BYTES + compressedLength;
+        if (bodyLength >= framesLength) {
+            return null;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(MessageCodec.BATCH_HEADER_SIZE + bodyLength);
+        MessageCodec.encodeBatchHeader(firstDeliveryTag, frames.size(), bodyLength, MessageCodec.BATCH_COMPRESSED, batch);
+        batch.putInt(framesLength);
+        batch.put(output, 0, compressedLength);
+        return batch.flip();
+    }
+}
@@ -0,0 +1,89 @@
+package ru.sibintek.testcase.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул direct-буферов под закодированные кадры, по очереди на каждый размер - степень двойки от 64 байт до 64 КБ.
+ * Новые буферы нарезаются из слэба одним выделением памяти, освобожденные возвращаются в очередь своего размера.
+ * Direct-буфер пишется в канал без промежуточного копирования, которое JDK делает для буферов в куче.
+ * Кадры больше 64 КБ выделяются в куче и в пул не возвращаются
+ */
+public class FramePool {
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 16;
+    private static final int SLAB_SIZE = 1 << MAX_SHIFT;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCounts;
+    private final int maxFreeBytes;
+
+    /**
+     * @param maxFreeBytes сколько байт свободных буферов хранить в каждой очереди, лишние отдаются сборщику мусора
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public FramePool(int maxFreeBytes) {
+        this.maxFreeBytes = maxFreeBytes;
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        this.free = new ConcurrentLinkedQueue[classes];
+        this.freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param length нужный размер
+     * @return очищенный буфер емкостью не меньше length
+     */
+    ByteBuffer acquire(int length) {
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0) {
+            return ByteBuffer.allocate(length);
+        }
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer != null) {
+            freeCounts[sizeClass].decrementAndGet();
+            return buffer;
+        }
+        return carve(sizeClass);
+    }
+
+    /**
+     * Возвращает буфер в очередь его размера, буфер больше не должен использоваться вызывающим
+     *
+     * @param buffer буфер, полученный из {@link #acquire(int)}
+     */
+    void release(ByteBuffer buffer) {
+        int sizeClass = buffer.isDirect() ? sizeClass(buffer.capacity()) : -1;
+        if (sizeClass < 0 || (freeCounts[sizeClass].get() + 1) << (sizeClass + MIN_SHIFT) > maxFreeBytes) {
+            return;
+        }
+        buffer.clear();
+        freeCounts[sizeClass].incrementAndGet();
+        free[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Нарезает слэб на буферы одного размера: первый отдается сразу, остальные ложатся в очередь
+     */
+    private ByteBuffer carve(int sizeClass) {
+        int size = 1 << (sizeClass + MIN_SHIFT);
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        for (int offset = size; offset < SLAB_SIZE; offset += size) {
+            free[sizeClass].offer(slab.slice(offset, size));
+            freeCounts[sizeClass].incrementAndGet();
+        }
+        return slab.slice(0, size);
+    }
+
+    private static int sizeClass(int length) {
+        if (length > SLAB_SIZE) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1 << MIN_SHIFT) - 1);
+        return shift - MIN_SHIFT;
+    }
+}
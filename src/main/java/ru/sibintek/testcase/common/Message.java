@@ -1,36 +1,97 @@
 package ru.sibintek.testcase.common;
 
 import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Идентификатор сообщения - пара чисел: эпоха процесса, в котором сообщение создано, и порядковый номер внутри нее.
+ * Эпоха выбирается при запуске из времени и случайной добавки, поэтому номера не повторяются после перезапуска,
+ * а сравнение идентификаторов - сравнение двух long
+ */
 public class Message implements Serializable {
-    private final String id = UUID.randomUUID().toString();
+    private static final long EPOCH = System.currentTimeMillis() << 20 | ThreadLocalRandom.current().nextInt(1 << 20);
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+    //Опорная точка часов: время эпохи в микросекундах и соответствующее ему значение nanoTime
+    private static final long BASE_NANOS = System.nanoTime();
+    private static final long BASE_MICROS = baseMicros();
+
+    private final long epoch;
+    private final long sequence;
     private final MessagePriority priority;
     private final MessageType type;
     private final String data;
-
-    private Message(MessagePriority priority, String data, MessageType type) {
-        this.priority = priority;
-        this.data = data;
-        this.type = type;
-    }
+    //Время генерации в микросекундах от начала эпохи, 0 - неизвестно. Не входит в идентичность сообщения
+    private final long timestamp;
+    //Порядковый номер доставки в рамках одного соединения, не входит в идентичность сообщения
+    private final long deliveryTag;
 
     public Message(MessageType type) {
+        this.epoch = EPOCH;
+        this.sequence = SEQUENCE.incrementAndGet();
         this.type = type;
         this.data = null;
         this.priority = null;
+        this.timestamp = 0;
+        this.deliveryTag = 0;
     }
 
     public Message(MessageType type, String data) {
+        this.epoch = EPOCH;
+        this.sequence = SEQUENCE.incrementAndGet();
         this.type = type;
         this.data = data;
         this.priority = null;
+        this.timestamp = 0;
+        this.deliveryTag = 0;
+    }
+
+    /**
+     * Восстановление ранее созданного сообщения (например, при чтении из хранилища) с сохранением id
+     */
+    public Message(long epoch, long sequence, MessageType type, MessagePriority priority, String data) {
+        this(epoch, sequence, type, priority, data, 0, 0);
     }
 
+    /**
+     * Сообщение, полученное в пакете, вместе со временем генерации и номером доставки
+     */
+    public Message(long epoch, long sequence, MessageType type, MessagePriority priority, String data, long timestamp, long deliveryTag) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.type = type;
+        this.priority = priority;
+        this.data = data;
+        this.timestamp = timestamp;
+        this.deliveryTag = deliveryTag;
+    }
+
+    /**
+     * Служебное сообщение без содержимого с номером доставки, например накопительное подтверждение ACK
+     */
+    public Message(MessageType type, long deliveryTag) {
+        this(0, 0, type, null, null, 0, deliveryTag);
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return идентификатор в виде строки для журналов, сравнивать сообщения лучше по {@link #getEpoch()} и {@link #getSequence()}
+     */
     public String getId() {
-        return id;
+        return Long.toHexString(epoch) + "-" + sequence;
     }
 
     public MessagePriority getPriority() {
@@ -45,10 +106,53 @@ public class Message implements Serializable {
         return type;
     }
 
+    public long getDeliveryTag() {
+        return deliveryTag;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Без выделения памяти: опорная точка берется один раз при загрузке класса, дальше идет приращение nanoTime.
+     * Точность микросекундная, как нужно для задержки между процессами, а перевод системных часов после запуска не учитывается
+     *
+     * @return текущее время в микросекундах от начала эпохи, в этих единицах хранится {@link #getTimestamp()}
+     */
+    public static long currentTimeMicros() {
+        return BASE_MICROS + (System.nanoTime() - BASE_NANOS) / 1000;
+    }
+
+    private static long baseMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    }
+
+    /**
+     * Генерирует пачку сообщений с подряд идущими порядковыми номерами, даже если генерируют несколько потоков
+     *
+     * @param count размер пачки
+     * @return сообщения в порядке номеров
+     */
+    public static List<Message> generateMessages(int count) {
+        long first = SEQUENCE.getAndAdd(count) + 1;
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(randomMessage(first + i));
+        }
+        return messages;
+    }
+
     public static Message generateMessage() {
-        String data = UUID.randomUUID().toString();
-        MessagePriority priority = MessagePriority.values()[new Random().nextInt(3)];
-        return new Message(priority, data, MessageType.SERVER_PUSH);
+        return randomMessage(SEQUENCE.incrementAndGet());
+    }
+
+    private static Message randomMessage(long sequence) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String data = new UUID(random.nextLong(), random.nextLong()).toString();
+        MessagePriority priority = PRIORITIES[random.nextInt(PRIORITIES.length)];
+        return new Message(EPOCH, sequence, MessageType.SERVER_PUSH, priority, data, currentTimeMicros(), 0);
     }
 
     @Override
@@ -56,7 +160,7 @@ public class Message implements Serializable {
         if (this == o) return true;
         if (!(o instanceof Message)) return false;
         Message message = (Message) o;
-        return Objects.equals(getId(), message.getId()) &&
+        return epoch == message.epoch && sequence == message.sequence &&
                 getPriority() == message.getPriority() &&
                 getType() == message.getType() &&
                 Objects.equals(getData(), message.getData());
@@ -64,13 +168,13 @@ public class Message implements Serializable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(getId(), getPriority(), getType(), getData());
+        return Long.hashCode(epoch * 31 + sequence);
     }
 
     @Override
     public String toString() {
         return "Message{" +
-                "id='" + id + '\'' +
+                "id='" + getId() + '\'' +
                 ", priority=" + priority +
                 ", type=" + type +
                 ", data='" + data + '\'' +
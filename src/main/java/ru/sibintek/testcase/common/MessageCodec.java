@@ -0,0 +1,421 @@
+package ru.sibintek.testcase.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Бинарный формат кадра сообщения, используется и сервером, и клиентами вместо java-сериализации.
+ * Все кадры начинаются с длины, версии и кода типа, дальше раскладка зависит от типа.
+ * <pre>
+ * Кадр сообщения:
+ * int    длина кадра без этого поля
+ * byte   версия формата
+ * byte   код типа сообщения
+ * byte   уровень приоритета, 0 - без приоритета
+ * byte   флаги, зарезервировано
+ * long   эпоха id
+ * long   порядковый номер id
+ * long   время генерации в микросекундах от начала эпохи, 0 - неизвестно
+ * int    длина data в байтах, -1 - data отсутствует
+ * byte[] data в UTF-8
+ *
+ * Кадр BATCH:
+ * int    длина, byte версия, byte тип
+ * byte   флаги: 1 - кадры сообщений сжаты
+ * byte   зарезервировано
+ * long   номер доставки первого сообщения, у следующих он увеличивается на единицу
+ * int    количество сообщений
+ * ...    кадры сообщений подряд, а если они сжаты:
+ * int    размер несжатых кадров
+ * byte[] кадры, сжатые deflate без заголовка zlib
+ *
+ * Кадр ACK:
+ * int    длина, byte версия, byte тип, 2 byte зарезервировано
+ * long   номер доставки, до которого включительно обработаны сообщения
+ * </pre>
+ * Пишется только текущая версия, а кадры сообщений читаются и в прежних: они могли остаться в дисковом хранилище
+ * прошлого запуска. В версиях 1-2 нет времени генерации, в версиях 1-3 вместо эпохи и номера записаны
+ * старшие и младшие биты UUID - они становятся эпохой и номером, сохраняя уникальность id
+ */
+public class MessageCodec {
+    public static final byte VERSION = 4;
+    //Самая ранняя версия, кадры которой еще читаются
+    public static final byte OLDEST_VERSION = 1;
+    //Первая версия со временем генерации в кадре сообщения
+    private static final byte TIMESTAMP_VERSION = 3;
+    public static final int LENGTH_FIELD_SIZE = 4;
+    public static final int HEADER_SIZE = LENGTH_FIELD_SIZE + 4 + 16 + 8 + 4;
+    public static final int BATCH_HEADER_SIZE = LENGTH_FIELD_SIZE + 4 + 8 + 4;
+    public static final int ACK_FRAME_SIZE = LENGTH_FIELD_SIZE + 4 + 8;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    //Флаг кадра BATCH: кадры сообщений сжаты, см. FrameCompressor
+    public static final byte BATCH_COMPRESSED = 1;
+    private static final int MIN_FRAME_LENGTH = ACK_FRAME_SIZE - LENGTH_FIELD_SIZE;
+    //Распаковка сжатых пакетов, Inflater хранит состояние, поэтому свой у каждого читающего потока
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private MessageCodec() {
+    }
+
+    /**
+     * @param message сообщение
+     * @return полный размер кадра в байтах, включая поле длины
+     */
+    public static int encodedLength(Message message) {
+        if (message.getType() == MessageType.ACK) {
+            return ACK_FRAME_SIZE;
+        }
+        return HEADER_SIZE + utf8Length(message.getData());
+    }
+
+    /**
+     * Записывает кадр в буфер начиная с его текущей позиции
+     *
+     * @param message сообщение
+     * @param buffer  буфер, в котором должно быть не меньше {@link #encodedLength(Message)} свободных байт
+     */
+    public static void encode(Message message, ByteBuffer buffer) {
+        if (message.getType() == MessageType.ACK) {
+            encodeAck(message.getDeliveryTag(), buffer);
+            return;
+        }
+        String data = message.getData();
+        int dataLength = utf8Length(data);
+        buffer.putInt(HEADER_SIZE - LENGTH_FIELD_SIZE + dataLength);
+        buffer.put(VERSION);
+        buffer.put(message.getType() == null ? 0 : (byte) message.getType().getCode());
+        buffer.put(message.getPriority() == null ? 0 : (byte) message.getPriority().getOrder());
+        buffer.put((byte) 0);
+        buffer.putLong(message.getEpoch());
+        buffer.putLong(message.getSequence());
+        buffer.putLong(message.getTimestamp());
+        buffer.putInt(data == null ? -1 : dataLength);
+        if (data != null) {
+            putUtf8(data, buffer);
+        }
+    }
+
+    /**
+     * @param messages сообщения пакета
+     * @return полный размер кадра BATCH в байтах
+     */
+    public static int batchLength(List<Message> messages) {
+        int length = BATCH_HEADER_SIZE;
+        for (Message message : messages) {
+            length += encodedLength(message);
+        }
+        return length;
+    }
+
+    /**
+     * Записывает пакет сообщений одним кадром
+     *
+     * @param firstDeliveryTag номер доставки первого сообщения пакета
+     * @param messages         сообщения пакета
+     * @param buffer           буфер, в котором должно быть не меньше {@link #batchLength(List)} свободных байт
+     */
+    public static void encodeBatch(long firstDeliveryTag, List<Message> messages, ByteBuffer buffer) {
+        int lengthPosition = buffer.position();
+        encodeBatchHeader(firstDeliveryTag, messages.size(), 0, buffer);
+        for (Message message : messages) {
+            encode(message, buffer);
+        }
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - LENGTH_FIELD_SIZE);
+    }
+
+    /**
+     * Записывает только заголовок кадра BATCH, за которым отправитель пишет уже закодированные кадры сообщений.
+     * Так номер доставки остается своим у каждого соединения, а кадры сообщений кодируются один раз на всех
+     *
+     * @param firstDeliveryTag номер доставки первого сообщения пакета
+     * @param count            количество сообщений
+     * @param framesLength     суммарный размер кадров сообщений в байтах
+     * @param buffer           буфер, в котором должно быть не меньше {@link #BATCH_HEADER_SIZE} свободных байт
+     */
+    public static void encodeBatchHeader(long firstDeliveryTag, int count, int framesLength, ByteBuffer buffer) {
+        encodeBatchHeader(firstDeliveryTag, count, framesLength, (byte) 0, buffer);
+    }
+
+    /**
+     * Записывает заголовок кадра BATCH с флагами
+     *
+     * @param firstDeliveryTag номер доставки первого сообщения пакета
+     * @param count            количество сообщений
+     * @param bodyLength       размер всего, что идет после заголовка
+     * @param flags            флаги пакета, например {@link #BATCH_COMPRESSED}
+     * @param buffer           буфер, в котором должно быть не меньше {@link #BATCH_HEADER_SIZE} свободных байт
+     */
+    public static void encodeBatchHeader(long firstDeliveryTag, int count, int bodyLength, byte flags, ByteBuffer buffer) {
+        buffer.putInt(BATCH_HEADER_SIZE - LENGTH_FIELD_SIZE + bodyLength);
+        buffer.put(VERSION);
+        buffer.put((byte) MessageType.BATCH.getCode());
+        buffer.put(flags);
+        buffer.put((byte) 0);
+        buffer.putLong(firstDeliveryTag);
+        buffer.putInt(count);
+    }
+
+    /**
+     * Записывает накопительное подтверждение
+     *
+     * @param deliveryTag номер доставки, до которого включительно обработаны сообщения
+     * @param buffer      буфер, в котором должно быть не меньше {@link #ACK_FRAME_SIZE} свободных байт
+     */
+    public static void encodeAck(long deliveryTag, ByteBuffer buffer) {
+        buffer.putInt(ACK_FRAME_SIZE - LENGTH_FIELD_SIZE);
+        buffer.put(VERSION);
+        buffer.put((byte) MessageType.ACK.getCode());
+        buffer.putShort((short) 0);
+        buffer.putLong(deliveryTag);
+    }
+
+    /**
+     * Читает одиночный кадр из буфера. Если кадр пришел не полностью - позиция буфера не меняется
+     *
+     * @param buffer буфер в режиме чтения
+     * @return сообщение или null, если в буфере нет целого кадра
+     * @throws IOException кадр поврежден, записан в неподдерживаемой версии формата или является пакетом
+     */
+    public static Message decode(ByteBuffer buffer) throws IOException {
+        Message[] result = new Message[1];
+        if (!decode(buffer, message -> {
+            if (result[0] != null) {
+                throw new IllegalStateException("Batch frame where single message expected");
+            }
+            result[0] = message;
+        })) {
+            return null;
+        }
+        return result[0];
+    }
+
+    /**
+     * Читает кадр из буфера, для пакета сообщения передаются получателю по одному.
+     * Если кадр пришел не полностью - позиция буфера не меняется
+     *
+     * @param buffer   буфер в режиме чтения
+     * @param consumer получатель прочитанных сообщений
+     * @return false, если в буфере нет целого кадра
+     * @throws IOException кадр поврежден или записан в неподдерживаемой версии формата
+     */
+    public static boolean decode(ByteBuffer buffer, Consumer<Message> consumer) throws IOException {
+        int start = buffer.position();
+        if (buffer.remaining() < LENGTH_FIELD_SIZE) {
+            return false;
+        }
+        int length = buffer.getInt(start);
+        if (length < MIN_FRAME_LENGTH || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (buffer.remaining() < LENGTH_FIELD_SIZE + length) {
+            return false;
+        }
+        int end = start + LENGTH_FIELD_SIZE + length;
+        checkVersion(buffer.get(start + LENGTH_FIELD_SIZE));
+        MessageType type = MessageType.fromCode(buffer.get(start + LENGTH_FIELD_SIZE + 1));
+        int limit = buffer.limit();
+        try {
+            buffer.limit(end);
+            if (type == MessageType.BATCH) {
+                decodeBatch(buffer, consumer);
+            } else if (type == MessageType.ACK) {
+                buffer.position(start + LENGTH_FIELD_SIZE + 4);
+                consumer.accept(new Message(MessageType.ACK, buffer.getLong()));
+            } else {
+                consumer.accept(decodeMessage(buffer, 0));
+            }
+        } catch (BufferUnderflowException | IllegalStateException e) {
+            throw new IOException("Malformed frame", e);
+        } finally {
+            buffer.limit(limit);
+        }
+        buffer.position(end);
+        return true;
+    }
+
+    private static void decodeBatch(ByteBuffer buffer, Consumer<Message> consumer) throws IOException {
+        byte flags = buffer.get(buffer.position() + LENGTH_FIELD_SIZE + 2);
+        buffer.position(buffer.position() + LENGTH_FIELD_SIZE + 4);
+        long deliveryTag = buffer.getLong();
+        int count = buffer.getInt();
+        ByteBuffer frames = (flags & BATCH_COMPRESSED) != 0 ? inflate(buffer) : buffer;
+        for (int i = 0; i < count; i++) {
+            Message message = decodeMessage(frames, deliveryTag + i);
+            if (message.getType() == MessageType.BATCH || message.getType() == MessageType.ACK) {
+                throw new IOException("Nested control frame in batch");
+            }
+            consumer.accept(message);
+        }
+    }
+
+    /**
+     * Распаковывает сжатые кадры сообщений пакета
+     *
+     * @param buffer буфер, позиция которого стоит на размере несжатых кадров
+     * @return буфер с несжатыми кадрами
+     * @throws IOException данные повреждены
+     */
+    private static ByteBuffer inflate(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid uncompressed length: " + length);
+        }
+        byte[] frames = new byte[length];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(buffer);
+        try {
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(frames, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != length) {
+                throw new IOException("Truncated compressed batch");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed batch", e);
+        }
+        return ByteBuffer.wrap(frames);
+    }
+
+    private static Message decodeMessage(ByteBuffer buffer, long deliveryTag) throws IOException {
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        if (length > buffer.remaining() - LENGTH_FIELD_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        buffer.position(start + LENGTH_FIELD_SIZE);
+        byte version = buffer.get();
+        checkVersion(version);
+        boolean timestamped = version >= TIMESTAMP_VERSION;
+        int headerSize = timestamped ? HEADER_SIZE : HEADER_SIZE - 8;
+        if (length < headerSize - LENGTH_FIELD_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        MessageType type = MessageType.fromCode(buffer.get());
+        MessagePriority priority = MessagePriority.fromOrder(buffer.get());
+        buffer.get();
+        long epoch = buffer.getLong();
+        long sequence = buffer.getLong();
+        long timestamp = timestamped ? buffer.getLong() : 0;
+        int dataLength = buffer.getInt();
+        if (dataLength > length - headerSize + LENGTH_FIELD_SIZE) {
+            throw new IOException("Invalid data length: " + dataLength);
+        }
+        String data = dataLength < 0 ? null : readUtf8(buffer, dataLength);
+        buffer.position(start + LENGTH_FIELD_SIZE + length);
+        return new Message(epoch, sequence, type, priority, data, timestamp, deliveryTag);
+    }
+
+    /**
+     * @param version версия из заголовка кадра
+     * @throws UnsupportedVersionException кадр записан версией, которую этот код не читает
+     */
+    public static void checkVersion(byte version) throws UnsupportedVersionException {
+        if (version < OLDEST_VERSION || version > VERSION) {
+            throw new UnsupportedVersionException(version);
+        }
+    }
+
+    private static String readUtf8(ByteBuffer buffer, int length) {
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    static int utf8Length(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Кодирование в UTF-8 сразу в буфер, без промежуточного массива байт.
+     * Одиночные суррогаты заменяются на U+FFFD, длина при этом совпадает с {@link #utf8Length(String)}
+     */
+    static void putUtf8(String value, ByteBuffer buffer) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) 0xEF);
+                buffer.put((byte) 0xBF);
+                buffer.put((byte) 0xBD);
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Кадр записан в версии формата, которую этот код не читает, - обычно более новым сервером.
+     * В отличие от поврежденного кадра, это не обрыв записи, пропускать такие данные нельзя
+     */
+    public static class UnsupportedVersionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final byte version;
+
+        public UnsupportedVersionException(byte version) {
+            this(version, null);
+        }
+
+        /**
+         * @param version версия кадра
+         * @param where   где найден кадр, например файл и позиция
+         */
+        public UnsupportedVersionException(byte version, String where) {
+            super("Unsupported frame version: " + version + ", supported " + OLDEST_VERSION + "-" + VERSION
+                    + (where == null ? "" : " in " + where));
+            this.version = version;
+        }
+
+        public byte getVersion() {
+            return version;
+        }
+    }
+}
@@ -14,4 +14,17 @@ public enum MessagePriority {
     public int getOrder() {
         return order;
     }
+
+    /**
+     * @param order уровень приоритета
+     * @return приоритет или null, если такого уровня нет
+     */
+    public static MessagePriority fromOrder(int order) {
+        for (MessagePriority priority : values()) {
+            if (priority.order == order) {
+                return priority;
+            }
+        }
+        return null;
+    }
 }
@@ -1,9 +1,45 @@
 package ru.sibintek.testcase.common;
 
 public enum MessageType {
-    HEART_BEAT,
-    RESPONSE,
-    REGISTERED,
-    SERVER_PUSH,
-    DEREGISTER
+    HEART_BEAT(1),
+    RESPONSE(2),
+    REGISTERED(3),
+    SERVER_PUSH(4),
+    DEREGISTER(5),
+    CREDIT(6),
+    //Пакет из нескольких SERVER_PUSH с последовательными номерами доставки
+    BATCH(7),
+    //Накопительное подтверждение: обработаны все сообщения с номером доставки до указанного включительно
+    ACK(8),
+    //Запрос клиента на сжатие пакетов, data - алгоритм из FrameCompressor. Отправляется до выдачи кредитов
+    COMPRESSION(9);
+
+    private static final MessageType[] BY_CODE = new MessageType[10];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return код типа в бинарном формате кадра, не меняется при добавлении новых типов
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @param code код типа из кадра
+     * @return тип сообщения или null, если код неизвестен
+     */
+    public static MessageType fromCode(int code) {
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
 }
@@ -0,0 +1,48 @@
+package ru.sibintek.testcase.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Настройки из application.properties в classpath.
+ * Любое значение можно переопределить системным свойством: -Dключ=значение
+ */
+public class Settings {
+    private static final Properties properties = load();
+
+    private Settings() {
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key, properties.getProperty(key));
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private static Properties load() {
+        Properties result = new Properties();
+        try (InputStream in = Settings.class.getClassLoader().getResourceAsStream("application.properties")) {
+            if (in != null) {
+                result.load(in);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+}
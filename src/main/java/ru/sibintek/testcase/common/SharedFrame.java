@@ -0,0 +1,70 @@
+package ru.sibintek.testcase.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Сообщение, один раз закодированное в кадр {@link MessageCodec} для рассылки всем клиентам.
+ * Содержимое после кодирования не меняется, каждый писатель получает собственный read-only вид со своей позицией.
+ * Буфер возвращается в пул, когда отпущена последняя ссылка: владелец кадра и каждая еще не завершенная запись
+ * держат по ссылке через {@link #retain()} и {@link #release()}
+ */
+public class SharedFrame {
+    private final ByteBuffer buffer;
+    private final FramePool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private SharedFrame(ByteBuffer buffer, FramePool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * @param message сообщение
+     * @param pool    пул буферов
+     * @return кадр с одной ссылкой, принадлежащей вызывающему
+     */
+    public static SharedFrame encode(Message message, FramePool pool) {
+        int length = MessageCodec.encodedLength(message);
+        ByteBuffer buffer = pool.acquire(length);
+        MessageCodec.encode(message, buffer);
+        buffer.flip();
+        return new SharedFrame(buffer, pool);
+    }
+
+    /**
+     * @return размер кадра в байтах
+     */
+    public int length() {
+        return buffer.limit();
+    }
+
+    /**
+     * @return read-only вид кадра с позицией в начале, общий буфер при этом не копируется
+     */
+    public ByteBuffer duplicate() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return этот же кадр с еще одной ссылкой
+     */
+    public SharedFrame retain() {
+        if (references.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame already released");
+        }
+        return this;
+    }
+
+    /**
+     * Отпускает ссылку, последняя возвращает буфер в пул
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            pool.release(buffer);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame released more times than retained");
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package ru.sibintek.testcase.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ConnectException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Транспорт для клиентов на одном хосте с сервером: вместо сокета - файл, отображенный в память обоих процессов.
+ * В файле два кольцевых буфера байт, по одному на направление, у каждого один писатель и один читатель.
+ * Писатель копирует байты в кольцо и публикует новую позицию записи, читатель - позицию чтения;
+ * позиции - сквозные счетчики без блокировок, поэтому обмен не требует системных вызовов.
+ * Поверх колец работает обычный {@link Connection} с кадрами {@link MessageCodec}.
+ * Ждущая сторона сначала крутится, затем уступает процессор и паркуется с растущей паузой до {@link #MAX_PARK_NANOS}:
+ * разбудить поток другого процесса без системного вызова нельзя, поэтому под нагрузкой задержка - единицы микросекунд,
+ * а у простаивающего соединения первое сообщение может ждать до паузы парковки.
+ * Клиент создает файл в общем каталоге и ждет, пока сервер его примет; принятый файл сервер удаляет,
+ * отображение остается у обоих процессов. Уход другой стороны виден по флагу закрытия или по завершению ее процесса
+ */
+public class SharedMemoryChannel implements Closeable {
+    public static final String SUFFIX = ".ipc";
+    public static final int DEFAULT_RING_BYTES = 256 * 1024;
+
+    private static final int MAGIC = 0x53494243;
+    private static final int VERSION = 1;
+    //Счетчики разных сторон лежат в разных строках кэша, чтобы запись одной стороны не сбрасывала строку другой
+    private static final int LINE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int RING_BYTES_OFFSET = 8;
+    private static final int CLIENT_PID_OFFSET = LINE;
+    private static final int CLIENT_CLOSED_OFFSET = LINE + 8;
+    private static final int SERVER_PID_OFFSET = 2 * LINE;
+    private static final int SERVER_CLOSED_OFFSET = 2 * LINE + 8;
+    private static final int HEADER_SIZE = 4 * LINE;
+    //Кольцо: позиция записи, позиция чтения, данные
+    private static final int WRITTEN_OFFSET = 0;
+    private static final int READ_OFFSET = LINE;
+    private static final int RING_HEADER_SIZE = 2 * LINE;
+    private static final int MAX_RING_BYTES = 1 << 30;
+
+    //На одном ядре другая сторона не может писать, пока эта крутится, поэтому ожидание сразу уступает процессор
+    private static final int SPIN_ROUNDS = Runtime.getRuntime().availableProcessors() > 1 ? 200 : 0;
+    private static final int YIELD_ROUNDS = 50;
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    //Как часто ждущая сторона проверяет, жив ли процесс другой стороны
+    private static final long PEER_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer buffer;
+    private final Path file;
+    private final boolean client;
+    private final int ringBytes;
+    private final RingInput input;
+    private final RingOutput output;
+    private volatile boolean closed;
+    private volatile boolean accepted;
+    private volatile long peerCheckedAt = System.nanoTime();
+
+    private SharedMemoryChannel(MappedByteBuffer buffer, Path file, boolean client, int ringBytes) {
+        this.buffer = buffer;
+        this.file = file;
+        this.client = client;
+        this.ringBytes = ringBytes;
+        int toServer = HEADER_SIZE;
+        int toClient = HEADER_SIZE + RING_HEADER_SIZE + ringBytes;
+        this.input = new RingInput(client ? toClient : toServer);
+        this.output = new RingOutput(client ? toServer : toClient);
+    }
+
+    /**
+     * @return каталог из настройки server.ipc.dir, по умолчанию /dev/shm, если он есть, иначе временный каталог
+     */
+    public static Path directory() {
+        String dir = Settings.getString("server.ipc.dir", "");
+        if (!dir.isEmpty()) {
+            return Paths.get(dir);
+        }
+        Path shm = Paths.get("/dev/shm");
+        return (Files.isDirectory(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"))).resolve("testcase-ipc");
+    }
+
+    /**
+     * Создает файл соединения в каталоге сервера и ждет, пока сервер его примет
+     *
+     * @param dir           каталог, который слушает сервер
+     * @param ringBytes     размер каждого кольца, округляется вверх до степени двойки
+     * @param timeoutMillis сколько ждать сервер
+     * @return соединение с сервером
+     * @throws ConnectException сервер не принял соединение за отведенное время
+     */
+    public static Connection connect(Path dir, int ringBytes, long timeoutMillis) throws IOException {
+        if (ringBytes <= 0 || ringBytes > MAX_RING_BYTES) {
+            throw new IllegalArgumentException("Ring size must be in (0, " + MAX_RING_BYTES + "]");
+        }
+        int size = Integer.highestOneBit(ringBytes - 1) << 1;
+        size = Math.max(size, LINE);
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, "client-", ".tmp");
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(size));
+        }
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(RING_BYTES_OFFSET, size);
+        LONGS.setRelease(buffer, CLIENT_PID_OFFSET, ProcessHandle.current().pid());
+        INTS.setRelease(buffer, MAGIC_OFFSET, MAGIC);
+        //Сервер видит файл только после переименования, к этому моменту заголовок уже заполнен
+        String name = temp.getFileName().toString();
+        Path file = dir.resolve(name.substring(0, name.length() - ".tmp".length()) + SUFFIX);
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+
+        SharedMemoryChannel channel = new SharedMemoryChannel(buffer, file, true, size);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while ((long) LONGS.getAcquire(buffer, SERVER_PID_OFFSET) == 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                //Сервер мог успеть принять файл - флаг закроет и его сторону
+                channel.close();
+                throw new ConnectException("Server does not accept shared memory connections in " + dir);
+            }
+            LockSupport.parkNanos(MAX_PARK_NANOS);
+        }
+        channel.accepted = true;
+        return channel.connection();
+    }
+
+    /**
+     * Принимает соединение клиента и удаляет его файл
+     *
+     * @param file файл, созданный {@link #connect(Path, int, long)}
+     * @return соединение с клиентом
+     * @throws IOException файл поврежден или процесс клиента уже завершился
+     */
+    public static Connection accept(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a shared memory connection: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        if ((int) INTS.getAcquire(buffer, MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException("Unsupported shared memory connection: " + file);
+        }
+        int ringBytes = buffer.getInt(RING_BYTES_OFFSET);
+        if (Integer.bitCount(ringBytes) != 1 || buffer.capacity() != fileSize(ringBytes)) {
+            throw new IOException("Corrupted shared memory connection: " + file);
+        }
+        if (!isAlive((long) LONGS.getAcquire(buffer, CLIENT_PID_OFFSET))) {
+            throw new IOException("Client process has exited: " + file);
+        }
+        SharedMemoryChannel channel = new SharedMemoryChannel(buffer, file, false, ringBytes);
+        channel.accepted = true;
+        LONGS.setRelease(buffer, SERVER_PID_OFFSET, ProcessHandle.current().pid());
+        return channel.connection();
+    }
+
+    private static long fileSize(int ringBytes) {
+        return HEADER_SIZE + 2L * (RING_HEADER_SIZE + ringBytes);
+    }
+
+    private static boolean isAlive(long pid) {
+        return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+    private Connection connection() {
+        return new Connection(input, output, UnixDomainSocketAddress.of(file), this);
+    }
+
+    /**
+     * Помечает свою сторону закрытой: другая сторона дочитает то, что уже записано, и получит конец потока
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        INTS.setRelease(buffer, client ? CLIENT_CLOSED_OFFSET : SERVER_CLOSED_OFFSET, 1);
+        if (client && !accepted) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * @return закрыла ли другая сторона соединение или завершился ли ее процесс; процесс проверяется не чаще {@link #PEER_CHECK_NANOS}
+     */
+    private boolean peerGone() {
+        if ((int) INTS.getAcquire(buffer, client ? SERVER_CLOSED_OFFSET : CLIENT_CLOSED_OFFSET) != 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - peerCheckedAt < PEER_CHECK_NANOS) {
+            return false;
+        }
+        peerCheckedAt = now;
+        return !isAlive((long) LONGS.getAcquire(buffer, client ? SERVER_PID_OFFSET : CLIENT_PID_OFFSET));
+    }
+
+    /**
+     * Одна итерация ожидания другой стороны
+     *
+     * @param round номер итерации с начала ожидания
+     * @throws IOException соединение закрыто своей стороной или поток прерван
+     */
+    private void idle(int round) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        if (round < SPIN_ROUNDS) {
+            Thread.onSpinWait();
+        } else if (round < SPIN_ROUNDS + YIELD_ROUNDS) {
+            Thread.yield();
+        } else {
+            int parks = Math.min(round - SPIN_ROUNDS - YIELD_ROUNDS, 20);
+            LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << parks, MAX_PARK_NANOS));
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Читатель кольца. Позиция чтения меняется только им, позиция записи читается с acquire
+     */
+    private class RingInput extends InputStream {
+        private final int written;
+        private final int read;
+        private final int data;
+        private final int mask = ringBytes - 1;
+        private final byte[] single = new byte[1];
+        private long position;
+
+        RingInput(int ring) {
+            this.written = ring + WRITTEN_OFFSET;
+            this.read = ring + READ_OFFSET;
+            this.data = ring + RING_HEADER_SIZE;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            long available;
+            for (int round = 0; (available = (long) LONGS.getAcquire(buffer, written) - position) == 0; round++) {
+                if (peerGone()) {
+                    //Записанное до закрытия уже видно после флага, проверяем еще раз
+                    if ((long) LONGS.getAcquire(buffer, written) == position) {
+                        return -1;
+                    }
+                    continue;
+                }
+                idle(round);
+            }
+            int count = (int) Math.min(length, available);
+            int index = (int) (position & mask);
+            int first = Math.min(count, ringBytes - index);
+            buffer.get(data + index, bytes, offset, first);
+            buffer.get(data, bytes, offset + first, count - first);
+            position += count;
+            LONGS.setRelease(buffer, read, position);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, (long) LONGS.getAcquire(buffer, written) - position);
+        }
+    }
+
+    /**
+     * Писатель кольца. Кадр больше свободного места пишется частями по мере того, как читатель освобождает кольцо
+     */
+    private class RingOutput extends OutputStream {
+        private final int written;
+        private final int read;
+        private final int data;
+        private final int mask = ringBytes - 1;
+        private long position;
+
+        RingOutput(int ring) {
+            this.written = ring + WRITTEN_OFFSET;
+            this.read = ring + READ_OFFSET;
+            this.data = ring + RING_HEADER_SIZE;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                long free;
+                for (int round = 0; (free = ringBytes - (position - (long) LONGS.getAcquire(buffer, read))) == 0; round++) {
+                    if (peerGone()) {
+                        throw new IOException("Connection closed by peer");
+                    }
+                    idle(round);
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                int count = (int) Math.min(length, free);
+                int index = (int) (position & mask);
+                int first = Math.min(count, ringBytes - index);
+                buffer.put(data + index, bytes, offset, first);
+                buffer.put(data, bytes, offset + first, count - first);
+                position += count;
+                LONGS.setRelease(buffer, written, position);
+                offset += count;
+                length -= count;
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package ru.sibintek.testcase.common;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.StringJoiner;
+
+/**
+ * Подписка клиента: какие приоритеты и какие данные ему рассылать.
+ * Клиент передает ее в ответе на HEART_BEAT после имени сервиса через ';':
+ * <pre>
+ * имя-сервиса;priority=HIGH,MEDIUM;prefix=ab
+ * </pre>
+ * priority - список приоритетов, prefix - начало поля data; пропущенное условие пропускает все сообщения.
+ * Ответ с одним именем сервиса означает подписку на все, так регистрируются клиенты без подписки
+ */
+public class Subscription {
+    public static final Subscription ALL = new Subscription(EnumSet.allOf(MessagePriority.class), "");
+
+    private static final char SEPARATOR = ';';
+    private static final String PRIORITY = "priority=";
+    private static final String PREFIX = "prefix=";
+
+    private final Set<MessagePriority> priorities;
+    private final String dataPrefix;
+    private final int priorityMask;
+
+    /**
+     * @param priorities рассылаемые приоритеты, не пустой набор
+     * @param dataPrefix с чего должно начинаться поле data, пустая строка - любые данные
+     */
+    public Subscription(Set<MessagePriority> priorities, String dataPrefix) {
+        if (priorities.isEmpty()) {
+            throw new IllegalArgumentException("Subscription must include at least one priority");
+        }
+        this.priorities = EnumSet.copyOf(priorities);
+        this.dataPrefix = dataPrefix;
+        int mask = 0;
+        for (MessagePriority priority : priorities) {
+            mask |= mask(priority);
+        }
+        this.priorityMask = mask;
+    }
+
+    /**
+     * @param spec условия через ';', например {@code priority=HIGH;prefix=a}, пустая строка - подписка на все
+     * @return подписка
+     * @throws IllegalArgumentException неизвестное условие или приоритет
+     */
+    public static Subscription parse(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return ALL;
+        }
+        Set<MessagePriority> priorities = EnumSet.allOf(MessagePriority.class);
+        String dataPrefix = "";
+        for (String condition : spec.split(String.valueOf(SEPARATOR))) {
+            condition = condition.trim();
+            if (condition.startsWith(PRIORITY)) {
+                priorities = EnumSet.noneOf(MessagePriority.class);
+                for (String priority : condition.substring(PRIORITY.length()).split(",")) {
+                    priorities.add(MessagePriority.valueOf(priority.trim().toUpperCase()));
+                }
+            } else if (condition.startsWith(PREFIX)) {
+                dataPrefix = condition.substring(PREFIX.length());
+            } else if (!condition.isEmpty()) {
+                throw new IllegalArgumentException("Unknown subscription condition: " + condition);
+            }
+        }
+        return new Subscription(priorities, dataPrefix);
+    }
+
+    /**
+     * @param heartBeat данные ответа клиента на HEART_BEAT
+     * @return имя сервиса без подписки
+     */
+    public static String serviceName(String heartBeat) {
+        int separator = heartBeat.indexOf(SEPARATOR);
+        return separator < 0 ? heartBeat : heartBeat.substring(0, separator);
+    }
+
+    /**
+     * @param heartBeat данные ответа клиента на HEART_BEAT
+     * @return подписка из ответа, {@link #ALL}, если ее нет
+     * @throws IllegalArgumentException подписка записана с ошибкой
+     */
+    public static Subscription fromHeartBeat(String heartBeat) {
+        int separator = heartBeat.indexOf(SEPARATOR);
+        return separator < 0 ? ALL : parse(heartBeat.substring(separator + 1));
+    }
+
+    /**
+     * @param serviceName имя сервиса
+     * @return данные ответа на HEART_BEAT с этой подпиской
+     */
+    public String heartBeat(String serviceName) {
+        String spec = toString();
+        return spec.isEmpty() ? serviceName : serviceName + SEPARATOR + spec;
+    }
+
+    public boolean matches(Message message) {
+        return (priorityMask & mask(message.getPriority())) != 0
+                && (dataPrefix.isEmpty() || message.getData() != null && message.getData().startsWith(dataPrefix));
+    }
+
+    /**
+     * @return приоритеты подписки битами {@link #mask(MessagePriority)}
+     */
+    public int priorityMask() {
+        return priorityMask;
+    }
+
+    /**
+     * @param priority приоритет
+     * @return бит приоритета в маске
+     */
+    public static int mask(MessagePriority priority) {
+        return 1 << priority.ordinal();
+    }
+
+    /**
+     * @return условия подписки в формате {@link #parse(String)}, пустая строка - подписка на все
+     */
+    @Override
+    public String toString() {
+        StringJoiner spec = new StringJoiner(String.valueOf(SEPARATOR));
+        if (priorities.size() < MessagePriority.values().length) {
+            StringJoiner list = new StringJoiner(",");
+            priorities.forEach(priority -> list.add(priority.name()));
+            spec.add(PRIORITY + list);
+        }
+        if (!dataPrefix.isEmpty()) {
+            spec.add(PREFIX + dataPrefix);
+        }
+        return spec.toString();
+    }
+}
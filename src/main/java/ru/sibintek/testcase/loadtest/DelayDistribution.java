@@ -0,0 +1,61 @@
+package ru.sibintek.testcase.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Распределение времени обработки сообщения имитируемым клиентом, значения в миллисекундах:
+ * fixed:5 - всегда 5, uniform:1-10 - равномерно от 1 до 10, exp:5 - экспоненциально со средним 5
+ */
+class DelayDistribution {
+    private enum Kind {FIXED, UNIFORM, EXPONENTIAL}
+
+    private final Kind kind;
+    private final long firstMicros;
+    private final long secondMicros;
+
+    private DelayDistribution(Kind kind, long firstMicros, long secondMicros) {
+        this.kind = kind;
+        this.firstMicros = firstMicros;
+        this.secondMicros = secondMicros;
+    }
+
+    static DelayDistribution parse(String spec) {
+        String[] parts = spec.split(":", 2);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid delay distribution: " + spec);
+        }
+        switch (parts[0]) {
+            case "fixed":
+                return new DelayDistribution(Kind.FIXED, micros(parts[1]), 0);
+            case "uniform":
+                String[] bounds = parts[1].split("-", 2);
+                if (bounds.length != 2) {
+                    throw new IllegalArgumentException("Invalid uniform bounds: " + spec);
+                }
+                return new DelayDistribution(Kind.UNIFORM, micros(bounds[0]), micros(bounds[1]));
+            case "exp":
+                return new DelayDistribution(Kind.EXPONENTIAL, micros(parts[1]), 0);
+            default:
+                throw new IllegalArgumentException("Unknown delay distribution: " + spec);
+        }
+    }
+
+    /**
+     * @return очередная задержка в микросекундах
+     */
+    long nextMicros() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (kind) {
+            case UNIFORM:
+                return firstMicros >= secondMicros ? firstMicros : random.nextLong(firstMicros, secondMicros + 1);
+            case EXPONENTIAL:
+                return (long) (-Math.log(1 - random.nextDouble()) * firstMicros);
+            default:
+                return firstMicros;
+        }
+    }
+
+    private static long micros(String millis) {
+        return (long) (Double.parseDouble(millis.trim()) * 1000);
+    }
+}
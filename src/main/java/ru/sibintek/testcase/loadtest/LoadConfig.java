@@ -0,0 +1,27 @@
+package ru.sibintek.testcase.loadtest;
+
+import ru.sibintek.testcase.common.Settings;
+import ru.sibintek.testcase.common.SharedMemoryChannel;
+import ru.sibintek.testcase.common.Subscription;
+
+/**
+ * Параметры нагрузочного прогона, читаются из настроек load.* и системных свойств
+ */
+class LoadConfig {
+    final String host = Settings.getString("load.host", "localhost");
+    final int port = Settings.getInt("load.port", 5555);
+    final String transport = Settings.getString("load.transport", Settings.getString("client.transport", "tcp"));
+    final int ipcRingBytes = Settings.getInt("client.ipc.ringBytes", SharedMemoryChannel.DEFAULT_RING_BYTES);
+    final int clients = Settings.getInt("load.clients", 100);
+    final int rampUpMillis = Settings.getInt("load.rampUpMillis", 5000);
+    final int durationSeconds = Settings.getInt("load.durationSeconds", 60);
+    final int reportSeconds = Settings.getInt("load.reportSeconds", 5);
+    final int credits = Settings.getInt("load.credits", Settings.getInt("client.credits", 16));
+    final Subscription subscription = Subscription.parse(Settings.getString("load.subscription", Settings.getString("client.subscription", "")));
+    final String compression = Settings.getString("load.compression", Settings.getString("client.compression", "none"));
+    final String processingSpec = Settings.getString("load.processing", "fixed:0");
+    final DelayDistribution processing = DelayDistribution.parse(processingSpec);
+    final double ackDropRate = Settings.getDouble("load.ackDropRate", 0);
+    final double disconnectRate = Settings.getDouble("load.disconnectRate", 0);
+    final int reconnectDelayMillis = Settings.getInt("load.reconnectDelayMillis", 1000);
+}
@@ -0,0 +1,89 @@
+package ru.sibintek.testcase.loadtest;
+
+import ru.sibintek.testcase.common.ConsoleHelper;
+import ru.sibintek.testcase.common.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Нагрузочный клиент без консоли: в одной JVM подключает load.clients имитируемых клиентов с равномерным разгоном
+ * за load.rampUpMillis, держит нагрузку load.durationSeconds и печатает пропускную способность и перцентили
+ * задержки от генерации сообщения на сервере до получения клиентом.
+ * Каждый клиент читает сокет в своем виртуальном потоке, обработка имитируется общим таймером
+ */
+public class LoadGenerator {
+    private final LoadConfig config = new LoadConfig();
+    private final LoadStats stats = new LoadStats();
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), Thread.ofPlatform().daemon().name("load-timer-", 0).factory());
+    private final ThreadFactory clientThreads = Thread.ofVirtual().name("load-client-", 0).factory();
+    private final List<SimulatedClient> clients = new ArrayList<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator().run();
+    }
+
+    private void run() throws InterruptedException {
+        ConsoleHelper.writeMessage(String.format("Нагрузка на %s:%d: клиентов %d, разгон %d мс, длительность %d с, обработка %s, потеря ACK %.3f, обрыв %.4f",
+                config.host, config.port, config.clients, config.rampUpMillis, config.durationSeconds,
+                config.processingSpec, config.ackDropRate, config.disconnectRate));
+        String prefix = "load-" + UUID.randomUUID().toString().substring(0, 8) + "-";
+        for (int i = 0; i < config.clients; i++) {
+            SimulatedClient client = new SimulatedClient(prefix + i, config, stats, timer);
+            clients.add(client);
+            long delayNanos = config.clients <= 1 ? 0 : TimeUnit.MILLISECONDS.toNanos(config.rampUpMillis) * i / config.clients;
+            timer.schedule(() -> clientThreads.newThread(client).start(), delayNanos, TimeUnit.NANOSECONDS);
+        }
+        long start = System.nanoTime();
+        Interval interval = new Interval(start);
+        timer.scheduleAtFixedRate(interval::report, config.reportSeconds, config.reportSeconds, TimeUnit.SECONDS);
+        TimeUnit.SECONDS.sleep(config.durationSeconds);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        clients.forEach(SimulatedClient::stop);
+        timer.shutdownNow();
+        report(seconds);
+    }
+
+    private void report(double seconds) {
+        long received = stats.received.sum();
+        LatencyHistogram latency = stats.latency;
+        ConsoleHelper.writeMessage(String.format("Итого за %.1f с: получено %d (%.0f сообщений/с), подтверждений %d, потеряно ACK %d, обрывов %d, ошибок соединения %d",
+                seconds, received, received / seconds, stats.acked.sum(), stats.acksDropped.sum(), stats.disconnects.sum(), stats.failures.sum()));
+        ConsoleHelper.writeMessage(String.format("Задержка, мс: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+                millis(latency.percentile(0.5)), millis(latency.percentile(0.9)), millis(latency.percentile(0.99)),
+                millis(latency.percentile(0.999)), millis(latency.max())));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    /**
+     * Промежуточный отчет: скорость получения за последний интервал и текущие перцентили
+     */
+    private class Interval {
+        private long lastTime;
+        private long lastReceived;
+
+        Interval(long start) {
+            this.lastTime = start;
+        }
+
+        void report() {
+            long now = System.nanoTime();
+            long received = stats.received.sum();
+            double seconds = (now - lastTime) / 1e9;
+            ConsoleHelper.writeMessage(String.format("Подключено %d, %.0f сообщений/с, задержка p50 %.2f мс, p99 %.2f мс",
+                    stats.connected.get(), (received - lastReceived) / seconds,
+                    millis(stats.latency.percentile(0.5)), millis(stats.latency.percentile(0.99))));
+            lastTime = now;
+            lastReceived = received;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package ru.sibintek.testcase.loadtest;
+
+import ru.sibintek.testcase.common.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Общие для всех имитируемых клиентов счетчики. Задержка - от генерации сообщения на сервере до получения клиентом,
+ * в микросекундах, поэтому клиенты и сервер должны работать на одной машине или с синхронизированными часами
+ */
+class LoadStats {
+    final LongAdder received = new LongAdder();
+    final LongAdder acked = new LongAdder();
+    final LongAdder acksDropped = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final AtomicInteger connected = new AtomicInteger();
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    void received(long timestampMicros, long nowMicros) {
+        received.increment();
+        if (timestampMicros > 0) {
+            latency.record(nowMicros - timestampMicros);
+        }
+    }
+}
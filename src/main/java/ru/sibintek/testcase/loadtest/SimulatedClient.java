@@ -0,0 +1,154 @@
+package ru.sibintek.testcase.loadtest;
+
+import ru.sibintek.testcase.client.AckSequencer;
+import ru.sibintek.testcase.common.Connection;
+import ru.sibintek.testcase.common.FrameCompressor;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageType;
+import ru.sibintek.testcase.common.SharedMemoryChannel;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Один имитируемый клиент: регистрируется как ClientA, но без консоли. Время обработки берется из распределения,
+ * таймер завершает обработку и отдает номер доставки в {@link AckSequencer}. Поток чтения не ждет обработки.
+ * Подтверждение может быть потеряно с вероятностью ackDropRate, тогда его покроет следующее накопительное
+ * или сервер повторит сообщения по таймауту. После каждого сообщения с вероятностью disconnectRate
+ * соединение обрывается без DEREGISTER и через reconnectDelayMillis открывается заново под тем же именем:
+ * сервер продолжает рассылку с первого неподтвержденного сообщения
+ */
+class SimulatedClient implements Runnable {
+    private static final String IPC_TRANSPORT = "ipc";
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String name;
+    private final LoadConfig config;
+    private final LoadStats stats;
+    private final ScheduledExecutorService timer;
+    private volatile boolean running = true;
+    private volatile Connection connection;
+
+    SimulatedClient(String name, LoadConfig config, LoadStats stats, ScheduledExecutorService timer) {
+        this.name = name;
+        this.config = config;
+        this.stats = stats;
+        this.timer = timer;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            boolean injected = false;
+            try (Connection current = connect()) {
+                connection = current;
+                handshake(current, name);
+                stats.connected.incrementAndGet();
+                try {
+                    injected = readLoop(current);
+                } finally {
+                    stats.connected.decrementAndGet();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    stats.failures.increment();
+                }
+            }
+            if (running) {
+                if (injected) {
+                    stats.disconnects.increment();
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(config.reconnectDelayMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Завершает работу клиента так же, как хук ClientA: сервер считает отправленные сообщения обработанными
+     */
+    void stop() {
+        running = false;
+        Connection current = connection;
+        if (current != null) {
+            try {
+                current.send(new Message(MessageType.DEREGISTER));
+            } catch (IOException ignored) {
+                //соединение уже закрыто
+            }
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Connection connect() throws IOException {
+        if (IPC_TRANSPORT.equals(config.transport)) {
+            return SharedMemoryChannel.connect(SharedMemoryChannel.directory(), config.ipcRingBytes, CONNECT_TIMEOUT_MILLIS);
+        }
+        return new Connection(new Socket(config.host, config.port));
+    }
+
+    private void handshake(Connection connection, String serviceName) throws IOException {
+        while (true) {
+            Message message = connection.receive();
+            if (message.getType() == MessageType.HEART_BEAT) {
+                connection.send(new Message(MessageType.HEART_BEAT, config.subscription.heartBeat(serviceName)));
+            } else if (message.getType() == MessageType.REGISTERED) {
+                if (!FrameCompressor.NONE.equals(config.compression)) {
+                    connection.send(new Message(MessageType.COMPRESSION, config.compression));
+                }
+                connection.send(new Message(MessageType.CREDIT, String.valueOf(config.credits)));
+                return;
+            } else {
+                throw new IOException("Unexpected MessageType");
+            }
+        }
+    }
+
+    /**
+     * @return true, если соединение оборвано намеренно
+     */
+    private boolean readLoop(Connection connection) throws IOException {
+        AckSequencer sequencer = new AckSequencer(tag -> sendAck(connection, tag));
+        while (running) {
+            Message message = connection.receive();
+            if (message.getType() != MessageType.SERVER_PUSH) {
+                throw new IOException("Unexpected MessageType");
+            }
+            stats.received(message.getTimestamp(), Message.currentTimeMicros());
+            long deliveryTag = message.getDeliveryTag();
+            sequencer.received(deliveryTag);
+            long delayMicros = config.processing.nextMicros();
+            if (delayMicros <= 0) {
+                sequencer.completed(deliveryTag);
+            } else {
+                timer.schedule(() -> sequencer.completed(deliveryTag), delayMicros, TimeUnit.MICROSECONDS);
+            }
+            if (config.disconnectRate > 0 && ThreadLocalRandom.current().nextDouble() < config.disconnectRate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendAck(Connection connection, long deliveryTag) {
+        if (config.ackDropRate > 0 && ThreadLocalRandom.current().nextDouble() < config.ackDropRate) {
+            stats.acksDropped.increment();
+            return;
+        }
+        try {
+            connection.send(new Message(MessageType.ACK, deliveryTag));
+            stats.acked.increment();
+        } catch (IOException ignored) {
+            //соединение оборвано, неподтвержденное сервер повторит
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.FrameCompressor;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+import ru.sibintek.testcase.common.SharedFrame;
+import ru.sibintek.testcase.common.Subscription;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Общая для всех видов соединений логика доставки: чтение общего журнала {@link MessageLog} своим курсором и окно отправки.
+ * Журнал читается в sendExecutor по событиям (новое сообщение, подтверждение, кредиты), не более чем одной задачей за раз,
+ * поэтому медленный клиент не задерживает ни рассылку, ни остальных клиентов.
+ * Курсор привязан к имени сервиса и сдвигается до первого неподтвержденного сообщения, переподключившийся клиент
+ * дочитывает журнал с этого места. Неподтвержденное вовремя сообщение перечитывается из журнала и отправляется повторно
+ * только этому клиенту, таймаут каждого следующего повтора вдвое длиннее, но не больше server.ackTimeoutMaxMillis.
+ * Сообщения уходят пакетами: размер пакета - сколько есть в очереди в пределах окна и server.batch.max.
+ * Пока у клиента есть неподтвержденные сообщения, неполный пакет до server.batch.lingerMicros ждет добора,
+ * так под нагрузкой получается несколько крупных записей вместо множества мелких, а простаивающий клиент получает сообщение сразу.
+ * Клиенту, попросившему сжатие, пакеты от server.compression.minBytes уходят сжатыми {@link FrameCompressor}.
+ * Сообщения, не подходящие под {@link Subscription} клиента, пропускаются при чтении журнала, не занимая окна,
+ * и подтверждаются в журнале вместе с остальными
+ */
+abstract class AbstractSubscriber implements Subscriber {
+    protected final DeliveryContext context;
+    protected final DeliveryWindow window;
+    private final ClientMetrics metrics;
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    protected volatile String serviceName;
+    protected volatile Subscription subscription = Subscription.ALL;
+    private volatile MessageLog.Cursor cursor;
+    private volatile boolean deregistered;
+    private volatile FrameCompressor compressor;
+    //Поля ниже меняются под блокировкой this: следующее непрочитанное смещение журнала,
+    //смещения, ждущие повторной отправки, все прочитанные, но еще не подтвержденные смещения
+    //и сколько раз истекал таймаут подтверждения - только для смещений, которые уже повторялись
+    private long readPosition;
+    private final TreeSet<Long> retries = new TreeSet<>();
+    private final TreeSet<Long> unacked = new TreeSet<>();
+    private final Map<Long, Integer> attempts = new HashMap<>();
+    //Поля ниже меняются только внутри drain, который выполняется не более чем одной задачей за раз
+    private long nextDeliveryTag = 1;
+    private long lingerDeadline;
+    private volatile boolean lingerScheduled;
+
+    AbstractSubscriber(DeliveryContext context) {
+        this.context = context;
+        this.window = new DeliveryWindow(context.settings.maxInFlight, this::scheduleDrain);
+        this.metrics = new ClientMetrics(window::inFlight, this::backlog);
+    }
+
+    @Override
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    @Override
+    public Subscription getSubscription() {
+        return subscription;
+    }
+
+    @Override
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void attach(MessageLog.Cursor cursor) {
+        synchronized (this) {
+            readPosition = cursor.committed();
+        }
+        this.cursor = cursor;
+        scheduleDrain();
+    }
+
+    @Override
+    public void onAppended() {
+        scheduleDrain();
+    }
+
+    /**
+     * Записывает пакет уже закодированных сообщений в соединение, подтверждение придет позже.
+     * Ссылки на кадры переходят к реализации: она отпускает их, когда запись завершена или соединение закрыто.
+     * Сам список после возврата переиспользуется вызывающим
+     *
+     * @param firstDeliveryTag номер доставки первого сообщения, у следующих он увеличивается на единицу
+     * @param frames           кадры сообщений пакета
+     * @throws IOException ошибка записи
+     */
+    protected abstract void send(long firstDeliveryTag, List<SharedFrame> frames) throws IOException;
+
+    /**
+     * Записывает готовый кадр, например сжатый пакет
+     *
+     * @param frame кадр в режиме чтения
+     * @throws IOException ошибка записи
+     */
+    protected abstract void send(ByteBuffer frame) throws IOException;
+
+    /**
+     * Закрывает само соединение
+     */
+    protected abstract void closeConnection();
+
+    /**
+     * Клиент попросил сжимать пакеты. Сервер соглашается, если алгоритм известен и сжатие не выключено настройкой,
+     * иначе пакеты идут без сжатия - ответа клиенту не нужно, сжатый пакет помечен флагом
+     *
+     * @param algorithm алгоритм из сообщения COMPRESSION
+     */
+    protected void requestCompression(String algorithm) {
+        if (context.settings.compressionLevel >= 0 && FrameCompressor.DEFLATE.equals(algorithm)) {
+            compressor = new FrameCompressor(context.settings.compressionLevel, context.settings.compressionMinBytes);
+        }
+    }
+
+    protected boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Клиент завершает работу: все отправленные ему сообщения считаются обработанными
+     */
+    protected void deregister() {
+        deregistered = true;
+        window.close(true);
+        close();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        window.close(false);
+        //Курсор отпускается раньше, чем имя сервиса: переподключение под тем же именем найдет его свободным
+        if (cursor != null) {
+            context.metrics.dropped(context.log.detach(cursor, deregistered));
+        }
+        context.routes.remove(this);
+        if (serviceName != null && context.connectionMap.remove(serviceName, this)) {
+            context.metrics.clientClosed(serviceName);
+        }
+        closeConnection();
+    }
+
+    private void scheduleDrain() {
+        if (drainRequests.getAndIncrement() == 0) {
+            context.sendExecutor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        MessageLog.Cursor cursor = this.cursor;
+        if (cursor != null && cursor.isEvicted()) {
+            //Журнал удалил курсор: клиент слишком долго не подтверждал сообщения и держал рассылку остальным
+            close();
+            return;
+        }
+        int requests = drainRequests.get();
+        while (true) {
+            drainQueue();
+            requests = drainRequests.addAndGet(-requests);
+            if (requests == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Отправляет пакетами сначала сообщения для повтора, затем новые сообщения журнала, пока у клиента есть кредиты
+     */
+    private void drainQueue() {
+        List<Message> messages = new ArrayList<>();
+        List<SharedFrame> frames = new ArrayList<>();
+        long[] offsets = new long[context.settings.batchMax];
+        int[] timeouts = new int[context.settings.batchMax];
+        while (!closed.get()) {
+            int limit = Math.min(window.available(), context.settings.batchMax);
+            int depth = backlog();
+            if (limit == 0 || depth == 0 || shouldLinger(depth, limit)) {
+                return;
+            }
+            int count = read(limit, offsets, timeouts, messages, frames);
+            if (count == 0) {
+                //Все прочитанное не подошло под подписку - курсор сдвигается без отправки
+                commit();
+                continue;
+            }
+            long firstDeliveryTag = nextDeliveryTag;
+            long sentAt = System.nanoTime();
+            int reserved = 0;
+            for (int i = 0; i < count; i++) {
+                Message message = messages.get(i);
+                CompletableFuture<Boolean> future = window.tryReserve(nextDeliveryTag);
+                if (future == null) {
+                    //Окно закрылось, пока собирали пакет
+                    retry(offsets[i]);
+                    frames.get(i).release();
+                    continue;
+                }
+                nextDeliveryTag++;
+                watchAcknowledgement(offsets[i], timeouts[i], message, future, sentAt);
+                frames.set(reserved++, frames.get(i));
+                context.metrics.sent(message.getPriority());
+            }
+            frames.subList(reserved, count).clear();
+            messages.clear();
+            try {
+                ByteBuffer compressed = frames.isEmpty() ? null : compress(firstDeliveryTag, frames);
+                if (compressed != null) {
+                    frames.forEach(SharedFrame::release);
+                    send(compressed);
+                } else if (!frames.isEmpty()) {
+                    send(firstDeliveryTag, frames);
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            frames.clear();
+        }
+    }
+
+    /**
+     * @return сжатый пакет или null, если клиент не просил сжатия, пакет мал или не сжимается
+     */
+    private ByteBuffer compress(long firstDeliveryTag, List<SharedFrame> frames) {
+        FrameCompressor current = compressor;
+        if (current == null) {
+            return null;
+        }
+        int framesLength = 0;
+        for (SharedFrame frame : frames) {
+            framesLength += frame.length();
+        }
+        if (!current.accepts(framesLength)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        ByteBuffer batch = current.compressBatch(firstDeliveryTag, frames, framesLength);
+        int inputBytes = MessageCodec.BATCH_HEADER_SIZE + framesLength;
+        context.metrics.compressed(inputBytes, batch == null ? inputBytes : batch.remaining(), System.nanoTime() - start);
+        return batch;
+    }
+
+    /**
+     * @return сколько сообщений ждет отправки клиенту: повторы и непрочитанная часть журнала
+     */
+    private synchronized int backlog() {
+        if (cursor == null) {
+            return 0;
+        }
+        return retries.size() + (int) (context.log.endOffset() - readPosition);
+    }
+
+    /**
+     * Забирает до limit сообщений для отправки и помечает их неподтвержденными.
+     * Неподходящие под подписку сообщения журнала пропускаются и в limit не входят
+     *
+     * @param limit    максимум сообщений
+     * @param offsets  смещения забранных сообщений
+     * @param timeouts сколько раз у забранного сообщения уже истекал таймаут подтверждения
+     * @param messages список, в который добавляются сообщения
+     * @param frames   список, в который добавляются кадры сообщений со ссылкой для записи
+     * @return количество забранных сообщений
+     */
+    private synchronized int read(int limit, long[] offsets, int[] timeouts, List<Message> messages, List<SharedFrame> frames) {
+        int count = 0;
+        while (count < limit && !retries.isEmpty()) {
+            long offset = retries.pollFirst();
+            timeouts[count] = attempts.getOrDefault(offset, 0);
+            offsets[count++] = offset;
+            context.log.read(offset, 1, messages, frames);
+        }
+        Subscription current = subscription;
+        int read;
+        while (count < limit && (read = context.log.read(readPosition, limit - count, messages, frames)) > 0) {
+            int first = messages.size() - read;
+            for (int i = first; i < first + read; i++) {
+                long offset = readPosition++;
+                if (!current.matches(messages.get(i))) {
+                    frames.get(i).release();
+                    continue;
+                }
+                unacked.add(offset);
+                timeouts[count] = 0;
+                offsets[count] = offset;
+                messages.set(count, messages.get(i));
+                frames.set(count, frames.get(i));
+                count++;
+            }
+            messages.subList(count, messages.size()).clear();
+            frames.subList(count, frames.size()).clear();
+        }
+        return count;
+    }
+
+    private synchronized void retry(long offset) {
+        retries.add(offset);
+    }
+
+    /**
+     * Ставит сообщение в повтор после истекшего таймаута, следующий таймаут будет вдвое длиннее
+     */
+    private synchronized void timedOut(long offset) {
+        attempts.merge(offset, 1, Integer::sum);
+        retries.add(offset);
+    }
+
+    private void acknowledged(long offset) {
+        synchronized (this) {
+            unacked.remove(offset);
+            if (!attempts.isEmpty()) {
+                attempts.remove(offset);
+            }
+        }
+        commit();
+    }
+
+    /**
+     * Сдвигает курсор до первого неподтвержденного сообщения
+     */
+    private void commit() {
+        long committed;
+        synchronized (this) {
+            committed = unacked.isEmpty() ? readPosition : unacked.first();
+        }
+        context.log.commit(cursor, committed);
+    }
+
+    /**
+     * Решает, ждать ли добора неполного пакета. Ждем, только если клиент еще обрабатывает предыдущие сообщения,
+     * и не дольше server.batch.lingerMicros с момента, когда пакет впервые оказался неполным
+     */
+    private boolean shouldLinger(int depth, int limit) {
+        if (depth >= limit || context.settings.batchLingerNanos <= 0 || window.inFlight() == 0) {
+            lingerDeadline = 0;
+            return false;
+        }
+        long now = System.nanoTime();
+        if (lingerDeadline == 0) {
+            lingerDeadline = now + context.settings.batchLingerNanos;
+        } else if (now - lingerDeadline >= 0) {
+            lingerDeadline = 0;
+            return false;
+        }
+        if (!lingerScheduled) {
+            lingerScheduled = true;
+            context.lingerExecutor.schedule(this::lingerExpired, lingerDeadline - now, TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    private void lingerExpired() {
+        lingerScheduled = false;
+        scheduleDrain();
+    }
+
+    /**
+     * Ждет подтверждения на колесе таймеров: первый раз server.ackTimeoutMillis, после каждого истекшего таймаута вдвое дольше
+     *
+     * @param timeouts сколько раз таймаут этого сообщения уже истекал
+     */
+    private void watchAcknowledgement(long offset, int timeouts, Message message, CompletableFuture<Boolean> future, long sentAt) {
+        TimingWheel.Timeout timeout = context.ackTimer
+                .schedule(() -> future.complete(false), context.ackTimeoutMillis(timeouts), TimeUnit.MILLISECONDS);
+        future.whenComplete((delivered, e) -> {
+            timeout.cancel();
+            if (Boolean.TRUE.equals(delivered)) {
+                metrics.acked(System.nanoTime() - sentAt);
+                context.metrics.acked(message.getPriority());
+                acknowledged(offset);
+            } else if (!closed.get()) {
+                //Не подтверждено вовремя - повторяем только этому клиенту
+                timedOut(offset);
+                metrics.resent();
+                context.metrics.resent();
+                scheduleDrain();
+            }
+            //Клиент отключился - сообщение остается за курсором до переподключения
+        });
+    }
+}
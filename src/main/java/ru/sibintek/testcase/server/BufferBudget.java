@@ -0,0 +1,88 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Бюджет памяти под сообщения сервера в байтах: буфер ожидающих рассылки и журнал разосланных, но не подтвержденных.
+ * Пока занятое ниже верхней отметки, генератор кладет сообщения прямо в буфер, выше - в дисковое хранилище.
+ * Хранилище возвращается в память, только когда занятое опустилось ниже нижней отметки, и не выше верхней,
+ * так разница между отметками не дает генератору и дозагрузке переключаться на каждом сообщении.
+ * Оба уровня заполнены, когда память выше верхней отметки, а хранилища нет или оно достигло своего предела
+ */
+public class BufferBudget {
+    //Заголовки объектов сообщения, его id и строки данных - сверх закодированного размера
+    private static final int MESSAGE_OVERHEAD = 96;
+
+    private final long highBytes;
+    private final long lowBytes;
+    private final long spillMaxBytes;
+    private final boolean backpressure;
+    private final LongSupplier usedBytes;
+
+    /**
+     * @param budgetBytes   бюджет памяти
+     * @param highWatermark доля бюджета, выше которой сообщения уходят в хранилище
+     * @param lowWatermark  доля бюджета, ниже которой хранилище возвращается в память
+     * @param spillMaxBytes предел дискового хранилища, 0 - без предела
+     * @param backpressure  true - при заполненных уровнях генератор ждет, false - пропускает генерацию
+     * @param usedBytes     сколько памяти сейчас занято сообщениями
+     */
+    public BufferBudget(long budgetBytes, double highWatermark, double lowWatermark, long spillMaxBytes,
+                        boolean backpressure, LongSupplier usedBytes) {
+        if (budgetBytes <= 0 || lowWatermark <= 0 || lowWatermark > highWatermark || highWatermark > 1) {
+            throw new IllegalArgumentException("Expected positive budget and 0 < low <= high <= 1");
+        }
+        this.highBytes = (long) (budgetBytes * highWatermark);
+        this.lowBytes = (long) (budgetBytes * lowWatermark);
+        this.spillMaxBytes = spillMaxBytes;
+        this.backpressure = backpressure;
+        this.usedBytes = usedBytes;
+    }
+
+    /**
+     * @param message сообщение
+     * @return примерный размер сообщения в памяти
+     */
+    public static int footprint(Message message) {
+        return MESSAGE_OVERHEAD + MessageCodec.encodedLength(message);
+    }
+
+    /**
+     * @return занятая сообщениями память
+     */
+    public long used() {
+        return usedBytes.getAsLong();
+    }
+
+    /**
+     * @return сколько байт сообщений еще помещается в память до верхней отметки
+     */
+    public long room() {
+        return Math.max(0, highBytes - used());
+    }
+
+    /**
+     * @return пора ли возвращать сообщения из хранилища в память
+     */
+    public boolean belowLow() {
+        return used() < lowBytes;
+    }
+
+    /**
+     * @param spill дисковое хранилище или null, если его нет
+     * @return заполнены ли и память, и хранилище
+     */
+    public boolean saturated(SpillStore spill) {
+        if (room() > 0) {
+            return false;
+        }
+        return spill == null || spillMaxBytes > 0 && spill.pendingBytes() >= spillMaxBytes;
+    }
+
+    public boolean backpressure() {
+        return backpressure;
+    }
+}
@@ -0,0 +1,86 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Счетчики одного клиента, задержки подтверждения записываются в наносекундах
+ */
+class ClientMetrics implements ClientMetricsMXBean {
+    private final IntSupplier inFlight;
+    private final IntSupplier queueDepth;
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder resent = new LongAdder();
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+
+    ClientMetrics(IntSupplier inFlight, IntSupplier queueDepth) {
+        this.inFlight = inFlight;
+        this.queueDepth = queueDepth;
+    }
+
+    void acked(long latencyNanos) {
+        acked.increment();
+        ackLatency.record(latencyNanos);
+    }
+
+    void resent() {
+        resent.increment();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.getAsInt();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public long getAckedTotal() {
+        return acked.sum();
+    }
+
+    @Override
+    public long getResentTotal() {
+        return resent.sum();
+    }
+
+    @Override
+    public long getAckLatencyP50Micros() {
+        return micros(ackLatency.percentile(0.5));
+    }
+
+    @Override
+    public long getAckLatencyP90Micros() {
+        return micros(ackLatency.percentile(0.9));
+    }
+
+    @Override
+    public long getAckLatencyP99Micros() {
+        return micros(ackLatency.percentile(0.99));
+    }
+
+    @Override
+    public long getAckLatencyP999Micros() {
+        return micros(ackLatency.percentile(0.999));
+    }
+
+    @Override
+    public long getAckLatencyMaxMicros() {
+        return micros(ackLatency.max());
+    }
+
+    @Override
+    public void resetAckLatency() {
+        ackLatency.reset();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
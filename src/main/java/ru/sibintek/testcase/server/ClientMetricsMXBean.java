@@ -0,0 +1,34 @@
+package ru.sibintek.testcase.server;
+
+/**
+ * Метрики одного клиента, доступные по JMX под именем ru.sibintek.testcase:type=Client,name="имя сервиса".
+ * Задержка подтверждения - от записи пакета до подтверждения сообщения, в микросекундах
+ */
+public interface ClientMetricsMXBean {
+
+    int getInFlight();
+
+    /**
+     * @return сколько сообщений журнала клиент еще не получил, включая ожидающие повтора
+     */
+    int getQueueDepth();
+
+    long getAckedTotal();
+
+    long getResentTotal();
+
+    long getAckLatencyP50Micros();
+
+    long getAckLatencyP90Micros();
+
+    long getAckLatencyP99Micros();
+
+    long getAckLatencyP999Micros();
+
+    long getAckLatencyMaxMicros();
+
+    /**
+     * Обнуляет гистограмму задержек, например перед новым замером
+     */
+    void resetAckLatency();
+}
@@ -0,0 +1,68 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.Connection;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageType;
+import ru.sibintek.testcase.common.SharedFrame;
+import ru.sibintek.testcase.common.Subscription;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Клиент, обслуживаемый блокирующим {@link Connection}.
+ * Сообщения из очереди клиента пишутся в сокет задачами sendExecutor, ответы читает поток обработчика соединения
+ */
+class ConnectionSubscriber extends AbstractSubscriber {
+    private final Connection connection;
+
+    ConnectionSubscriber(String serviceName, Subscription subscription, Connection connection, DeliveryContext context) {
+        super(context);
+        this.serviceName = serviceName;
+        this.subscription = subscription;
+        this.connection = connection;
+    }
+
+    @Override
+    protected void send(long firstDeliveryTag, List<SharedFrame> frames) throws IOException {
+        try {
+            connection.sendFrames(firstDeliveryTag, frames);
+        } finally {
+            frames.forEach(SharedFrame::release);
+        }
+    }
+
+    @Override
+    protected void send(ByteBuffer frame) throws IOException {
+        connection.sendFrame(frame);
+    }
+
+    /**
+     * Чтение ответов клиента: подтверждения, выдача кредитов, запрос сжатия и отключение
+     * @throws IOException ошибка чтения, соединение разорвано
+     */
+    void readLoop() throws IOException {
+        while (!isClosed()) {
+            Message message = connection.receive();
+            if (message.getType() == MessageType.ACK) {
+                window.acknowledgeUpTo(message.getDeliveryTag());
+            } else if (message.getType() == MessageType.COMPRESSION) {
+                requestCompression(message.getData());
+            } else if (message.getType() == MessageType.CREDIT) {
+                window.grant(DeliveryWindow.parseCredits(message.getData()));
+            } else if (message.getType() == MessageType.DEREGISTER) {
+                //клиент "отвалился" - выкидываем его из списка доступных
+                deregister();
+            }
+        }
+    }
+
+    @Override
+    protected void closeConnection() {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.ConsoleHelper;
+import ru.sibintek.testcase.common.Subscription;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Общие для всех клиентов настройки и потоки доставки, передаются каждому {@link AbstractSubscriber}
+ */
+class DeliveryContext {
+    final Map<String, Subscriber> connectionMap;
+    //Клиенты по приоритетам подписки, по нему рассылка будит только подходящих клиентов
+    final RoutingIndex routes;
+    //Потоки, выполняющие отправку из очередей клиентов
+    final ExecutorService sendExecutor;
+    //Таймеры добора неполных пакетов, им нужна точность в микросекунды
+    final ScheduledExecutorService lingerExecutor;
+    //Таймеры ожидания подтверждений: неподтвержденное вовремя сообщение считается недоставленным
+    final TimingWheel ackTimer;
+    //Общий журнал рассылки, каждый клиент читает его своим курсором
+    final MessageLog log;
+    final ServerMetrics metrics;
+    final DeliverySettings settings;
+    //Вызывается после регистрации нового клиента
+    private final Runnable onRegistered;
+
+    DeliveryContext(Map<String, Subscriber> connectionMap, RoutingIndex routes, Runnable onRegistered, ExecutorService sendExecutor,
+                    ScheduledExecutorService lingerExecutor, TimingWheel ackTimer, MessageLog log, ServerMetrics metrics,
+                    DeliverySettings settings) {
+        this.connectionMap = connectionMap;
+        this.routes = routes;
+        this.onRegistered = onRegistered;
+        this.sendExecutor = sendExecutor;
+        this.lingerExecutor = lingerExecutor;
+        this.ackTimer = ackTimer;
+        this.log = log;
+        this.metrics = metrics;
+        this.settings = settings;
+    }
+
+    /**
+     * @param timeouts сколько раз таймаут подтверждения сообщения уже истекал
+     * @return сколько ждать подтверждения очередной отправки
+     */
+    long ackTimeoutMillis(int timeouts) {
+        //Сдвиг ограничен, чтобы удвоение не переполнило long
+        return Math.min(settings.ackTimeoutMillis << Math.min(timeouts, 20), settings.ackTimeoutMaxMillis);
+    }
+
+    /**
+     * Добавляет клиента в список доступных для рассылки и подключает его к курсору журнала.
+     * Если курсор с этим именем сервиса уже есть, клиент продолжает с первого неподтвержденного сообщения
+     *
+     * @param subscriber клиент с уже известным именем сервиса
+     * @return false, если клиент с таким именем уже зарегистрирован
+     */
+    boolean register(Subscriber subscriber) {
+        String serviceName = subscriber.getServiceName();
+        if (connectionMap.putIfAbsent(serviceName, subscriber) != null) {
+            return false;
+        }
+        MessageLog.Cursor cursor = log.attach(serviceName, subscriber.getSubscription(), subscriber::onAppended);
+        if (cursor == null) {
+            //Прежнее соединение с этим именем еще не освободило курсор
+            connectionMap.remove(serviceName, subscriber);
+            return false;
+        }
+        if (subscriber.getSubscription() != Subscription.ALL) {
+            ConsoleHelper.writeMessage("Сервис " + serviceName + " подписан на " + subscriber.getSubscription());
+        }
+        long behind = log.endOffset() - cursor.committed();
+        if (behind > 0) {
+            ConsoleHelper.writeMessage("Сервис " + serviceName + " продолжает с позиции " + cursor.committed()
+                    + ", не получено сообщений: " + behind);
+        }
+        metrics.clientRegistered(serviceName, subscriber.getMetrics());
+        //В индекс до начала чтения: закрытие клиента, начиная с этого момента, уберет его и из индекса
+        routes.add(subscriber);
+        subscriber.attach(cursor);
+        onRegistered.run();
+        return true;
+    }
+
+    /**
+     * Удаляет курсоры клиентов, не переподключившихся за server.cursor.ttlMillis, вызывается периодически
+     */
+    void expireDetachedCursors() {
+        metrics.dropped(log.expireDetached(settings.cursorTtlNanos));
+    }
+}
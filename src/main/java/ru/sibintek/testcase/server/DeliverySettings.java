@@ -0,0 +1,37 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.Settings;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Настройки доставки клиентам, читаются один раз из настроек server.* и системных свойств
+ */
+class DeliverySettings {
+    //Сколько сообщений клиенту можно отправить без подтверждения
+    final int maxInFlight = Settings.getInt("server.window", 64);
+    //Таймаут подтверждения первой отправки и предел, до которого он удваивается с каждым повтором
+    final long ackTimeoutMillis = Settings.getInt("server.ackTimeoutMillis", 5000);
+    final long ackTimeoutMaxMillis = Math.max(ackTimeoutMillis, Settings.getInt("server.ackTimeoutMaxMillis", 60000));
+    //Сколько курсор отключившегося клиента ждет переподключения
+    final long cursorTtlNanos = TimeUnit.MILLISECONDS.toNanos(Settings.getInt("server.cursor.ttlMillis", 30000));
+    //Максимум сообщений в одном кадре BATCH
+    final int batchMax = Settings.getInt("server.batch.max", 256);
+    //Сколько неполный пакет может ждать добора, пока предыдущие сообщения клиента еще не подтверждены
+    final long batchLingerNanos = TimeUnit.MICROSECONDS.toNanos(Settings.getInt("server.batch.lingerMicros", 1000));
+    //Уровень сжатия пакетов для клиентов, попросивших сжатие, -1 - сжатие выключено
+    final int compressionLevel;
+    //С какого размера кадров сообщений пакет сжимается
+    final int compressionMinBytes = Settings.getInt("server.compression.minBytes", 1024);
+
+    DeliverySettings() {
+        this(Boolean.parseBoolean(Settings.getString("server.compression.enabled", "true")));
+    }
+
+    /**
+     * @param compression false - сжатие выключено, даже если клиент его просит
+     */
+    DeliverySettings(boolean compression) {
+        this.compressionLevel = compression ? Settings.getInt("server.compression.level", 1) : -1;
+    }
+}
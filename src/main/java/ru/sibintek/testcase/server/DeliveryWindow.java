@@ -0,0 +1,146 @@
+package ru.sibintek.testcase.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Окно отправки одного клиента с кредитным управлением потоком.
+ * Клиент выдает кредиты сообщением CREDIT - столько сообщений он готов принять без подтверждения,
+ * сервер дополнительно ограничивает число неподтвержденных сообщений своей настройкой server.window.
+ * Каждое отправленное сообщение получает номер доставки, подтверждение ACK накопительное:
+ * закрывает все сообщения с номером до указанного включительно и освобождает место в окне.
+ * Сообщение с истекшим таймаутом подтверждения место не освобождает: исходная отправка может быть еще у клиента,
+ * и место переходит к повторной отправке, так неподтвержденных сообщений у клиента не больше выданных кредитов
+ */
+class DeliveryWindow {
+    private final int maxInFlight;
+    private final Runnable onCapacity;
+    private final ConcurrentNavigableMap<Long, CompletableFuture<Boolean>> pendingAcks = new ConcurrentSkipListMap<>();
+    private int credits;
+    private int inFlight;
+    //Места сообщений с истекшим таймаутом, ждущие повторной отправки; входят в inFlight
+    private int held;
+    private boolean closed;
+
+    /**
+     * @param maxInFlight максимум неподтвержденных сообщений со стороны сервера
+     * @param onCapacity  вызывается, когда в окне появилось место: пришло подтверждение или новые кредиты
+     */
+    DeliveryWindow(int maxInFlight, Runnable onCapacity) {
+        this.maxInFlight = maxInFlight;
+        this.onCapacity = onCapacity;
+    }
+
+    /**
+     * @return сколько сообщений можно отправить прямо сейчас, включая повторы на удержанные места
+     */
+    synchronized int available() {
+        return closed ? 0 : Math.max(0, Math.min(credits, maxInFlight) - inFlight) + held;
+    }
+
+    /**
+     * Занимает место в окне под сообщение, не блокируясь. Сначала берется место, удержанное сообщением
+     * с истекшим таймаутом, - повторы забираются на отправку первыми
+     *
+     * @param deliveryTag номер доставки сообщения
+     * @return результат подтверждения сообщения или null, если кредитов сейчас нет
+     */
+    CompletableFuture<Boolean> tryReserve(long deliveryTag) {
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+            if (held > 0) {
+                held--;
+            } else if (inFlight >= Math.min(credits, maxInFlight)) {
+                return null;
+            } else {
+                inFlight++;
+            }
+        }
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        pendingAcks.put(deliveryTag, future);
+        //Подтверждение и закрытие соединения освобождают место, таймаут удерживает его для повтора
+        future.whenComplete((delivered, e) -> {
+            if (pendingAcks.remove(deliveryTag, future)) {
+                if (Boolean.TRUE.equals(delivered) || !hold()) {
+                    release();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @param data содержимое сообщения CREDIT
+     * @return количество выданных кредитов
+     * @throws IOException клиент прислал некорректное значение
+     */
+    static int parseCredits(String data) throws IOException {
+        try {
+            int credits = Integer.parseInt(data);
+            if (credits < 0) {
+                throw new IOException("Negative credit: " + credits);
+            }
+            return credits;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid credit: " + data);
+        }
+    }
+
+    /**
+     * @param credits количество кредитов, выданных клиентом
+     */
+    void grant(int credits) {
+        synchronized (this) {
+            //Сумма насыщается: два CREDIT по Integer.MAX_VALUE не должны сделать кредиты отрицательными
+            this.credits = (int) Math.min(Integer.MAX_VALUE, (long) this.credits + credits);
+        }
+        onCapacity.run();
+    }
+
+    /**
+     * @param deliveryTag номер доставки, до которого включительно клиент обработал сообщения
+     */
+    void acknowledgeUpTo(long deliveryTag) {
+        pendingAcks.headMap(deliveryTag, true).values().forEach(future -> future.complete(true));
+    }
+
+    /**
+     * Завершает все ожидающие подтверждения и больше не выдает места в окне
+     *
+     * @param delivered результат для ожидающих сообщений
+     */
+    void close(boolean delivered) {
+        synchronized (this) {
+            closed = true;
+            inFlight -= held;
+            held = 0;
+        }
+        pendingAcks.values().forEach(future -> future.complete(delivered));
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return место удержано для повтора; false - окно закрыто, место надо освободить
+     */
+    private synchronized boolean hold() {
+        if (closed) {
+            return false;
+        }
+        held++;
+        return true;
+    }
+
+    private void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        onCapacity.run();
+    }
+}
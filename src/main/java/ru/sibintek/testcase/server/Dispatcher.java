@@ -0,0 +1,166 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Перенос сообщений из общего буфера в журнал рассылки {@link MessageLog}, откуда их читают клиенты.
+ * Поток рассылки спит, пока нет сообщения или ни одного курсора, и просыпается по {@link #signal()}:
+ * генератор сигналит после пополнения буфера, {@link DeliveryContext} - после регистрации клиента.
+ * После каждой забранной пачки вызывается onTaken, чтобы дисковое хранилище успело пополнить буфер до того, как он опустеет.
+ * О новой пачке узнают только клиенты, подписанные на ее приоритеты, их список берется из {@link RoutingIndex}
+ */
+class Dispatcher {
+    //Сколько сообщений забирается из буфера за один подход
+    private static final int DISPATCH_BATCH = 64;
+
+    private final RoutingIndex routes;
+    private final MessageBuffer messagesBuffer;
+    private final MessageLog log;
+    private final Runnable onTaken;
+    private final Object lock = new Object();
+    private volatile boolean running;
+    private volatile boolean draining;
+    private Thread thread;
+
+    /**
+     * @param routes         зарегистрированные клиенты по приоритетам подписки
+     * @param messagesBuffer буфер сообщений, ожидающих рассылки
+     * @param log            журнал рассылки
+     */
+    Dispatcher(RoutingIndex routes, MessageBuffer messagesBuffer, MessageLog log) {
+        this(routes, messagesBuffer, log, () -> { });
+    }
+
+    /**
+     * @param routes         зарегистрированные клиенты по приоритетам подписки
+     * @param messagesBuffer буфер сообщений, ожидающих рассылки
+     * @param log            журнал рассылки
+     * @param onTaken        вызывается после того, как из буфера забрана пачка
+     */
+    Dispatcher(RoutingIndex routes, MessageBuffer messagesBuffer, MessageLog log, Runnable onTaken) {
+        this.routes = routes;
+        this.messagesBuffer = messagesBuffer;
+        this.log = log;
+        this.onTaken = onTaken;
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        draining = false;
+        thread = new Thread(this::run, "dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Будит поток рассылки: в буфере появились сообщения или зарегистрировался клиент
+     */
+    void signal() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Останавливает рассылку, не дожидаясь разбора буфера. Оставшиеся сообщения остаются в буфере
+     *
+     * @throws InterruptedException поток прерван во время ожидания остановки
+     */
+    void stop() throws InterruptedException {
+        Thread current = stopRunning();
+        if (current != null) {
+            current.interrupt();
+            current.join();
+        }
+    }
+
+    /**
+     * Переносит в журнал все, что уже есть в буфере, и останавливается.
+     * Если курсоров нет, разбирать буфер некому - рассылка останавливается сразу
+     *
+     * @param timeout максимальное время ожидания
+     * @param unit    единица измерения времени
+     * @return true, если буфер разобран до истечения времени, иначе рассылка прерывается
+     * @throws InterruptedException поток прерван во время ожидания
+     */
+    boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current == null) {
+            return true;
+        }
+        draining = true;
+        signal();
+        current.join(unit.toMillis(timeout));
+        boolean drained = !current.isAlive();
+        stop();
+        return drained;
+    }
+
+    private synchronized Thread stopRunning() {
+        running = false;
+        Thread current = thread;
+        thread = null;
+        return current;
+    }
+
+    private void run() {
+        Queue<Message> batch = new ArrayDeque<>(DISPATCH_BATCH);
+        try {
+            while (awaitMessages(batch)) {
+                onTaken.run();
+                int priorities = 0;
+                for (Message message : batch) {
+                    priorities |= Subscription.mask(message.getPriority());
+                }
+                int taken = batch.size();
+                try {
+                    //Сообщение хранится в журнале один раз, клиентам достаточно узнать, что журнал вырос
+                    log.append(batch);
+                } finally {
+                    //Прерванная запись могла успеть добавить часть пачки
+                    if (batch.size() < taken) {
+                        for (Subscriber subscriber : routes.subscribers(priorities)) {
+                            subscriber.onAppended();
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            //Остановка посреди пачки: не попавшие в журнал сообщения старше всего, что в буфере, - возвращаются в его начало
+            messagesBuffer.requeue(batch);
+        }
+    }
+
+    /**
+     * Ждет, пока есть и сообщения, и хотя бы один курсор, и забирает пачку сообщений из буфера
+     *
+     * @param batch список, в который добавляются сообщения
+     * @return false, если рассылка завершается
+     * @throws InterruptedException поток прерван
+     */
+    private boolean awaitMessages(Queue<Message> batch) throws InterruptedException {
+        synchronized (lock) {
+            while (running) {
+                if (log.hasCursors() && messagesBuffer.drainTo(batch, DISPATCH_BATCH) > 0) {
+                    return true;
+                }
+                if (draining) {
+                    return false;
+                }
+                lock.wait();
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.ConsoleHelper;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Поток с собственным {@link Selector}, обслуживающий множество неблокирующих каналов.
+ * Все операции с каналами выполняются только в этом потоке, другие потоки передают их через {@link #execute(Runnable)}
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+    private volatile boolean running = true;
+    private volatile Thread thread;
+
+    EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Ставит задачу в очередь потока и будит его, если он ждет в select
+     *
+     * @param task задача
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (running) {
+            try {
+                selector.select();
+                wakenUp.set(false);
+                runTasks();
+                processSelectedKeys();
+            } catch (IOException e) {
+                ConsoleHelper.writeMessage("Ошибка в event loop: " + e.getMessage());
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((SelectionHandler) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            SelectionHandler handler = (SelectionHandler) key.attachment();
+            try {
+                handler.handle(key);
+            } catch (IOException | RuntimeException e) {
+                //Ошибка одного канала не должна останавливать весь event loop
+                handler.close();
+            }
+        }
+    }
+
+    /**
+     * Обработчик готовности канала, прикрепляется к {@link SelectionKey}
+     */
+    interface SelectionHandler {
+
+        void handle(SelectionKey key) throws IOException;
+
+        void close();
+    }
+}
@@ -1,110 +1,242 @@
 package ru.sibintek.testcase.server;
 
 import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Класс генератора сообщений
+ * Класс генератора сообщений.
+ * Производители в отдельных потоках выпускают сообщения с заданной скоростью, темп задает общее {@link TokenBucket}:
+ * за один раз поток резервирует burst токенов, выпускает пачку и ждет, пока накопятся следующие.
+ * Место в памяти отмеряет {@link BufferBudget} в байтах: пока занятое ниже верхней отметки и на диске нет очереди,
+ * пачка сразу попадает в буфер, иначе - в дисковое хранилище, откуда ее в собственном потоке возвращает в память
+ * {@link SpillRefill}, когда занятое опустится ниже нижней отметки или буфер почти разобран. Когда заполнены и память, и хранилище, генератор ждет
+ * при включенном обратном давлении или пропускает пачки без него.
+ * Если включен журнал {@link WriteAheadLog}, пачка попадает в рассылку только после того, как записана на диск,
+ * а при запуске первыми рассылаются недоставленные сообщения прошлого запуска
  */
-public class Generator implements Runnable {
+public class Generator {
 
-    private final PriorityBlockingQueue<Message> messagesBuffer;
-    private int messagesPerSecond;
-    private final Path tempDirForMessagesSaving;
-    private int bufferSize;
+    //Как часто проверять, не освободилось ли место, пока генератор ждет
+    private static final long BACKPRESSURE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
-    private Generator() {
-        this(new PriorityBlockingQueue<>(), 0);
-    }
+    private final MessageBuffer messagesBuffer;
+    private final BufferBudget budget;
+    private final Runnable onRefill;
+    private final ServerMetrics metrics;
+    private int messagesPerSecond;
+    private final int burst;
+    private final TokenBucket bucket;
+    private final List<Thread> producers = new ArrayList<>();
+    private volatile boolean running;
+    private final SpillStore spillStore;
+    //Перенос из хранилища в буфер, null - хранилища нет
+    private final SpillRefill spillRefill;
+    private final WriteAheadLog wal;
 
-    Generator(PriorityBlockingQueue<Message> messagesBuffer, int messagesPerSecond) {
+    /**
+     * @param messagesBuffer   буфер сообщений, ожидающих рассылки
+     * @param budget           бюджет памяти буфера и журнала рассылки с отметками перехода на диск и обратно
+     * @param onRefill         вызывается после пополнения буфера, будит рассылку
+     * @param metrics          счетчики сервера, генератор отмечает в них новые сообщения и показывает через них свое хранилище
+     * @param wal              журнал постановки сообщений в рассылку или null, если сообщения не должны переживать перезапуск
+     * @param messagesPerSecond количество генерируемых сообщений в секунду
+     * @param burst            сколько сообщений поток выпускает за один раз, 0 - сколько генерируется за миллисекунду
+     * @param threads          количество потоков-производителей
+     * @param readAhead        сколько сообщений читать из хранилища за один раз
+     * @param refillBelow      при скольких сообщениях в буфере пополнять его из хранилища независимо от отметок
+     */
+    Generator(MessageBuffer messagesBuffer, BufferBudget budget, Runnable onRefill, ServerMetrics metrics,
+              WriteAheadLog wal, int messagesPerSecond, int burst, int threads, int readAhead, int refillBelow) {
         this.messagesBuffer = messagesBuffer;
+        this.budget = budget;
+        this.onRefill = onRefill;
+        this.metrics = metrics;
+        this.wal = wal;
         this.messagesPerSecond = messagesPerSecond;
-        this.tempDirForMessagesSaving = createTempDirInClassPath();
-        this.bufferSize = 10 * messagesPerSecond;
+        this.burst = burst > 0 ? burst : Math.max(1, messagesPerSecond / 1000);
+        //Запас ведра - 10 мс генерации, чтобы потерянное на пробуждении потока время возвращалось
+        this.bucket = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, Math.max(this.burst, messagesPerSecond / 100)) : null;
+        this.spillStore = openSpillStore();
+        this.spillRefill = spillStore == null ? null
+                : new SpillRefill(spillStore, messagesBuffer, budget, onRefill, metrics, readAhead, refillBelow);
+        for (int i = 0; i < threads; i++) {
+            Thread producer = new Thread(this::produce, "generator-" + i);
+            producer.setDaemon(true);
+            producers.add(producer);
+        }
+        metrics.watchSpillStore(spillStore);
+        metrics.targetGenerationRate(messagesPerSecond);
     }
 
     /**
-     * Когда буфер сообщений заполняется - то сообщения пишутся во временную директорию,
-     * это сделано для того, чтобы при долгой работе сервера без клиентов - не было переполнения heap
+     * Рассылает восстановленные из журнала сообщения и запускает потоки-производители и перенос из хранилища
      */
-    @Override
-    public void run() {
-        if (tempDirForMessagesSaving != null) {
-            for (int i = 0; i < messagesPerSecond; i++) {
-                Message msg = Message.generateMessage();
-                saveMessageToFile(msg);
+    void start() {
+        if (spillRefill != null) {
+            spillRefill.start();
+        }
+        if (wal != null) {
+            List<Message> recovered = wal.takeRecovered();
+            if (!recovered.isEmpty()) {
+                route(recovered);
+            }
+        }
+        if (bucket == null) {
+            return;
+        }
+        running = true;
+        producers.forEach(Thread::start);
+    }
+
+    /**
+     * Останавливает производителей и перенос из хранилища и дожидается их завершения
+     */
+    void stop() throws InterruptedException {
+        running = false;
+        for (Thread producer : producers) {
+            producer.interrupt();
+            producer.join();
+        }
+        if (spillRefill != null) {
+            spillRefill.stop();
+        }
+    }
+
+    /**
+     * Рассылка забрала сообщения из буфера: если на диске есть очередь, а буфер нуждается в пополнении,
+     * поток переноса просыпается сразу, не дожидаясь очередной проверки
+     */
+    void bufferTaken() {
+        if (spillRefill != null) {
+            spillRefill.signal();
+        }
+    }
+
+    private void produce() {
+        while (running) {
+            long deadline = System.nanoTime() + bucket.reserve(burst);
+            long remaining;
+            while (running && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
             }
-            Optional<Message> msgToWrite;
-            //Заполняем буфер, если есть место и доступные сообщения
-            while (messagesBuffer.size() < bufferSize && (msgToWrite = readFirstMessageFromDir(tempDirForMessagesSaving)).isPresent()) {
-                msgToWrite.ifPresent(messagesBuffer::add);
+            if (running) {
+                publish();
             }
         }
     }
 
     /**
-     * Метод чтения сообщения из файла
-     *
-     * @param tempDir директория для поиска сообщений
-     * @return Message
+     * Выпускает пачку: сколько помещается - сразу в буфер, остальное в хранилище.
+     * Если заполнены и память, и хранилище, пачка ждет места или пропускается
      */
-    private Optional<Message> readFirstMessageFromDir(Path tempDir) {
-        Path earliestFile = getEarliestFileFromTempDir(tempDir);
-        try (ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(earliestFile))) {
-            earliestFile.toFile()
-                    .delete();
-            return Optional.ofNullable((Message) ois.readObject());
-        } catch (IOException | ClassNotFoundException e) {
-            return Optional.empty();
+    private void publish() {
+        if (budget.saturated(spillStore) && !awaitCapacity()) {
+            return;
+        }
+        List<Message> messages = Message.generateMessages(burst);
+        if (wal != null) {
+            try {
+                wal.awaitDurable(wal.enqueue(messages));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
+        for (Message message : messages) {
+            metrics.generated(message.getPriority());
+        }
+        route(messages);
     }
 
-    private Path getEarliestFileFromTempDir(Path tempDir) {
-        try {
-            return Files.list(tempDir)
-                    .findFirst()
-                    .get();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Ждет, пока в памяти или хранилище не освободится место, если включено обратное давление
+     *
+     * @return true - место есть, false - пачку нужно пропустить
+     */
+    private boolean awaitCapacity() {
+        if (!budget.backpressure()) {
+            return false;
         }
+        //Время ожидания учитывается по ходу, чтобы метрика росла, пока генератор стоит
+        long parkedAt = System.nanoTime();
+        while (running && budget.saturated(spillStore)) {
+            LockSupport.parkNanos(BACKPRESSURE_PARK_NANOS);
+            long now = System.nanoTime();
+            metrics.backpressure(now - parkedAt);
+            parkedAt = now;
+        }
+        return running;
     }
 
+    /**
+     * Без хранилища все идет в буфер: пачка начата, только если память была ниже верхней отметки.
+     * С хранилищем сообщения распределяет {@link SpillRefill#route(List)}
+     */
+    private void route(List<Message> messages) {
+        if (spillRefill != null) {
+            spillRefill.route(messages);
+            return;
+        }
+        messages.forEach(messagesBuffer::offer);
+        onRefill.run();
+    }
 
     /**
-     * Сохраняем сообщение в файл таким образом, чтобы файл назывался: уровень приоритета + время создания,
-     * чтобы поиск по файлам при чтении самого приоритетного сообщения занимал константное время
+     * Открываем хранилище сообщений во временной директории, сегменты от предыдущего запуска подхватываются.
+     * С журналом сегменты прошлого запуска удаляются: недоставленное восстановит журнал
      *
-     * @param msg сообщение
+     * @return хранилище или null, если директорию создать не удалось
+     * @throws IllegalStateException в директории сегменты, записанные неизвестной версией формата
      */
-    private void saveMessageToFile(Message msg) {
-        Path tmpFile;
+    private SpillStore openSpillStore() {
+        Path tempDir = createDirInClassPath("tmp");
+        if (tempDir == null) {
+            return null;
+        }
         try {
-            tmpFile = Files.createFile(Paths.get(tempDirForMessagesSaving + "/" + msg.getPriority().getOrder() + System.currentTimeMillis() + ".tmp"));
-            writeObjectToFile(tmpFile, msg);
+            if (wal != null) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(tempDir)) {
+                    for (Path file : files) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+            return new SpillStore(tempDir, SpillStore.DEFAULT_SEGMENT_SIZE);
+        } catch (MessageCodec.UnsupportedVersionException e) {
+            //Сегменты записаны более новым сервером: без хранилища они остались бы лежать непрочитанными
+            throw new IllegalStateException("Spill store " + tempDir + " cannot be read by this server version", e);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return null;
     }
 
-    private Path createTempDirInClassPath() {
+    /**
+     * @param name имя директории рядом с application.properties
+     * @return директория или null, если создать ее не удалось
+     */
+    static Path createDirInClassPath(String name) {
         try {
-            ClassLoader classLoader = getClass().getClassLoader();
+            ClassLoader classLoader = Generator.class.getClassLoader();
             URI resourceUri = Objects.requireNonNull(classLoader.getResource("application.properties")).toURI();
             Path file = Paths.get(resourceUri);
-            Path tempDir = Paths.get(file.getParent().toString() + "/tmp");
+            Path tempDir = Paths.get(file.getParent().toString() + "/" + name);
             if (!Files.exists(tempDir)) {
                 Files.createDirectory(tempDir);
             }
@@ -114,15 +246,4 @@ public class Generator implements Runnable {
         }
         return null;
     }
-
-    private void writeObjectToFile(Path file, Message msg) throws IOException {
-        OutputStream fos = Files.newOutputStream(file);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        try {
-            oos.writeObject(msg);
-        } finally {
-            oos.close();
-            fos.close();
-        }
-    }
 }
@@ -0,0 +1,88 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.Connection;
+import ru.sibintek.testcase.common.ConsoleHelper;
+import ru.sibintek.testcase.common.SharedMemoryChannel;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.function.Consumer;
+
+/**
+ * Прием локальных клиентов через общую память {@link SharedMemoryChannel}: поток следит за каталогом
+ * и принимает каждый появившийся файл соединения. Кольца не работают с селектором, поэтому принятое соединение
+ * обслуживается обработчиком с собственным потоком в любом режиме сервера
+ */
+class IpcAcceptor {
+    private final Path dir;
+    private final Consumer<Connection> onAccepted;
+    private final WatchService watcher;
+    private final Thread thread;
+
+    /**
+     * @param dir        каталог, в котором клиенты создают файлы соединений
+     * @param onAccepted получает принятое соединение
+     * @throws IOException ошибка создания каталога или подписки на его изменения
+     */
+    IpcAcceptor(Path dir, Consumer<Connection> onAccepted) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.onAccepted = onAccepted;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        this.thread = new Thread(this::run, "ipc-acceptor");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    private void run() {
+        //Клиенты, пришедшие до запуска сервера, ждут в каталоге
+        acceptExisting();
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        acceptExisting();
+                    } else {
+                        accept(dir.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    ConsoleHelper.writeMessage("Каталог " + dir + " больше недоступен, прием через общую память остановлен");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            //сервер остановлен
+        }
+    }
+
+    private void acceptExisting() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SharedMemoryChannel.SUFFIX)) {
+            files.forEach(this::accept);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept(Path file) {
+        if (!file.getFileName().toString().endsWith(SharedMemoryChannel.SUFFIX) || !Files.exists(file)) {
+            return;
+        }
+        try {
+            onAccepted.accept(SharedMemoryChannel.accept(file));
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Не удалось принять соединение " + file + ": " + e.getMessage());
+        }
+    }
+}
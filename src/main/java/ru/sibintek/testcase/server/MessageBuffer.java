@@ -0,0 +1,303 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessagePriority;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Буфер сообщений, ожидающих рассылки: очередь на каждый приоритет.
+ * Сообщения выдаются по убыванию приоритета, внутри одного приоритета - строго в порядке поступления.
+ * Производители и потребители не берут общих блокировок, блокировка нужна только чтобы разбудить
+ * потребителя, ждущего в {@link #take()} или {@link #poll(long, TimeUnit)}.
+ * В режиме {@link Storage#OFF_HEAP} сообщения хранятся закодированными вне кучи, см. {@link OffHeapBand}:
+ * там производители и потребители полосы берут по своей блокировке, но друг друга не ждут
+ */
+public class MessageBuffer {
+    //Размер участка памяти вне кучи, из которых состоит очередь приоритета
+    private static final int OFF_HEAP_CHUNK_SIZE = 1024 * 1024;
+
+    private final Band[] bands;
+    //размер ConcurrentLinkedDeque считается обходом, поэтому ведем счетчики сами
+    private final AtomicInteger[] bandSizes;
+    private final AtomicInteger size = new AtomicInteger();
+    //Примерный объем сообщений в памяти для {@link BufferBudget}
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    public MessageBuffer() {
+        this(Storage.HEAP);
+    }
+
+    /**
+     * @param storage где хранятся сообщения, ожидающие рассылки
+     */
+    public MessageBuffer(Storage storage) {
+        int bandCount = MessagePriority.values().length;
+        this.bands = new Band[bandCount];
+        this.bandSizes = new AtomicInteger[bandCount];
+        for (int i = 0; i < bandCount; i++) {
+            bands[i] = storage == Storage.OFF_HEAP ? new OffHeapBand(OFF_HEAP_CHUNK_SIZE) : new HeapBand();
+            bandSizes[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Добавляет сообщение в конец полосы его приоритета
+     *
+     * @param message сообщение с заданным приоритетом
+     */
+    public void offer(Message message) {
+        int band = message.getPriority().ordinal();
+        bands[band].offer(message);
+        bandSizes[band].incrementAndGet();
+        size.incrementAndGet();
+        bytes.addAndGet(bands[band].footprint(message));
+        if (waiters.get() > 0) {
+            signalNotEmpty();
+        }
+    }
+
+    /**
+     * Возвращает забранные сообщения в начало полос их приоритетов, перед поступившими позже
+     *
+     * @param messages сообщения в том порядке, в котором их выдал буфер
+     */
+    public void requeue(Collection<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        //С конца, чтобы первое сообщение оказалось первым в своей полосе
+        List<Message> reversed = new ArrayList<>(messages);
+        Collections.reverse(reversed);
+        for (Message message : reversed) {
+            int band = message.getPriority().ordinal();
+            bands[band].requeue(message);
+            bandSizes[band].incrementAndGet();
+            bytes.addAndGet(bands[band].footprint(message));
+        }
+        size.addAndGet(reversed.size());
+        if (waiters.get() > 0) {
+            signalNotEmpty();
+        }
+    }
+
+    /**
+     * @return самое приоритетное из самых ранних сообщений или null, если буфер пуст
+     */
+    public Message poll() {
+        for (int band = 0; band < bands.length; band++) {
+            Message message = bands[band].poll();
+            if (message != null) {
+                bandSizes[band].decrementAndGet();
+                size.decrementAndGet();
+                bytes.addAndGet(-bands[band].footprint(message));
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ждет сообщение не дольше заданного времени
+     *
+     * @param timeout максимальное время ожидания
+     * @param unit    единица измерения времени
+     * @return сообщение или null, если время вышло
+     * @throws InterruptedException поток прерван
+     */
+    public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Message message = poll();
+        if (message != null) {
+            return message;
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        waiters.incrementAndGet();
+        try {
+            //Проверяем после регистрации ожидающего: производитель, не увидевший нас, добавил сообщение раньше этой проверки
+            while ((message = poll()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return message;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ждет сообщение, пока оно не появится
+     *
+     * @return сообщение
+     * @throws InterruptedException поток прерван
+     */
+    public Message take() throws InterruptedException {
+        Message message = poll();
+        if (message != null) {
+            return message;
+        }
+        lock.lockInterruptibly();
+        waiters.incrementAndGet();
+        try {
+            while ((message = poll()) == null) {
+                notEmpty.await();
+            }
+            return message;
+        } finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Забирает до maxMessages сообщений в том же порядке, в котором их выдал бы {@link #poll()}
+     *
+     * @param target      коллекция, в которую добавляются сообщения
+     * @param maxMessages максимум сообщений
+     * @return количество забранных сообщений
+     */
+    public int drainTo(Collection<? super Message> target, int maxMessages) {
+        int drained = 0;
+        long drainedBytes = 0;
+        for (int band = 0; band < bands.length && drained < maxMessages; band++) {
+            int fromBand = 0;
+            Message message;
+            while (drained < maxMessages && (message = bands[band].poll()) != null) {
+                target.add(message);
+                drainedBytes += bands[band].footprint(message);
+                drained++;
+                fromBand++;
+            }
+            if (fromBand > 0) {
+                bandSizes[band].addAndGet(-fromBand);
+            }
+        }
+        size.addAndGet(-drained);
+        bytes.addAndGet(-drainedBytes);
+        return drained;
+    }
+
+    /**
+     * @return количество сообщений во всех полосах, при одновременных изменениях значение приблизительное
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @param priority приоритет
+     * @return количество сообщений этого приоритета
+     */
+    public int size(MessagePriority priority) {
+        return bandSizes[priority.ordinal()].get();
+    }
+
+    /**
+     * @return примерный объем сообщений буфера в куче или вне ее, байт
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Столько {@link #bytes()} увеличится при добавлении сообщения: по этому размеру сверяются с бюджетом памяти
+     *
+     * @param message сообщение
+     * @return сколько байт займет сообщение в полосе своего приоритета
+     */
+    public int footprint(Message message) {
+        return bands[message.getPriority().ordinal()].footprint(message);
+    }
+
+    public boolean isEmpty() {
+        return size.get() <= 0;
+    }
+
+    private void signalNotEmpty() {
+        lock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Где хранятся сообщения, ожидающие рассылки
+     */
+    public enum Storage {
+        //Объекты Message в куче
+        HEAP,
+        //Закодированные кадры в direct-буферах, Message создается при выдаче из буфера
+        OFF_HEAP
+    }
+
+    /**
+     * Очередь сообщений одного приоритета, допускает несколько производителей и потребителей
+     */
+    interface Band {
+        /**
+         * @param message сообщение
+         */
+        void offer(Message message);
+
+        /**
+         * @param message сообщение, которое вернется из {@link #poll()} раньше всех остальных
+         */
+        void requeue(Message message);
+
+        /**
+         * @return самое раннее сообщение или null, если очередь пуста
+         */
+        Message poll();
+
+        /**
+         * @param message сообщение
+         * @return сколько байт оно занимает в очереди, одинаково при добавлении и при выдаче
+         */
+        int footprint(Message message);
+    }
+
+    /**
+     * Очередь объектов в куче без блокировок
+     */
+    private static class HeapBand implements Band {
+        private final Deque<Message> queue = new ConcurrentLinkedDeque<>();
+
+        @Override
+        public void offer(Message message) {
+            queue.offerLast(message);
+        }
+
+        @Override
+        public void requeue(Message message) {
+            queue.offerFirst(message);
+        }
+
+        @Override
+        public Message poll() {
+            return queue.pollFirst();
+        }
+
+        @Override
+        public int footprint(Message message) {
+            return BufferBudget.footprint(message);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.ConsoleHelper;
+import ru.sibintek.testcase.common.FramePool;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.SharedFrame;
+import ru.sibintek.testcase.common.Subscription;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Общий для всех клиентов упорядоченный журнал разосланных сообщений. Каждое сообщение хранится один раз
+ * и получает смещение - сквозной номер в журнале. Клиент читает журнал своим курсором, который привязан
+ * к имени сервиса и хранит подтвержденное смещение: переподключившийся под тем же именем клиент продолжает
+ * с первого неподтвержденного сообщения. Голова журнала освобождается, когда ее подтвердили все курсоры.
+ * Журнал ограничен емкостью: добавление ждет, пока самый медленный курсор не освободит место.
+ * Если заполненный журнал простоял дольше maxStallNanos, курсоры, стоящие на его голове, удаляются вместе с
+ * неподтвержденными ими сообщениями, а их клиенты будятся и закрывают соединение: клиент, который перестал
+ * подтверждать, не останавливает рассылку всем остальным.
+ * Курсор отключившегося без DEREGISTER клиента хранится до {@link #expireDetached(long)}.
+ * Вместе с сообщением хранится его кадр {@link SharedFrame}, закодированный один раз при добавлении:
+ * всем клиентам уходят одни и те же байты, стоимость кодирования не растет с числом клиентов.
+ * Клиент с {@link Subscription} пропускает неподходящие сообщения сам и подтверждает их вместе с остальными.
+ * Рассылка его не будит, поэтому, когда журнал заполнен больше чем наполовину, журнал будит такие курсоры,
+ * если они держат голову
+ */
+public class MessageLog {
+    //Сколько байт свободных буферов кадров держать в пуле на каждый размер
+    private static final int FRAME_POOL_BYTES = 4 * 1024 * 1024;
+
+    private final Message[] entries;
+    private final SharedFrame[] frames;
+    private final FramePool framePool = new FramePool(FRAME_POOL_BYTES);
+    private final Consumer<Message> onDelivered;
+    private final Consumer<Message> onDropped;
+    private final long maxStallNanos;
+    private final Map<String, Cursor> cursors = new HashMap<>();
+    //Смещение самого старого хранимого сообщения и следующего добавляемого
+    private long head;
+    private long tail;
+    //Примерный объем хранимых сообщений вместе с их кадрами
+    private long bytes;
+
+    /**
+     * @param capacity    сколько сообщений журнал хранит, на столько самый медленный клиент может отстать от остальных
+     * @param onDelivered вызывается для сообщения, подтвержденного всеми курсорами
+     */
+    public MessageLog(int capacity, Consumer<Message> onDelivered) {
+        this(capacity, Long.MAX_VALUE, onDelivered, message -> { });
+    }
+
+    /**
+     * @param capacity      сколько сообщений журнал хранит, на столько самый медленный клиент может отстать от остальных
+     * @param maxStallNanos сколько добавление ждет места в заполненном журнале, прежде чем удалить курсоры на его голове,
+     *                      Long.MAX_VALUE - ждать без предела
+     * @param onDelivered   вызывается для сообщения, подтвержденного всеми курсорами
+     * @param onDropped     вызывается для сообщения, освобожденного удалением курсора, который его не подтвердил
+     */
+    public MessageLog(int capacity, long maxStallNanos, Consumer<Message> onDelivered, Consumer<Message> onDropped) {
+        this.entries = new Message[capacity];
+        this.frames = new SharedFrame[capacity];
+        this.maxStallNanos = maxStallNanos;
+        this.onDelivered = onDelivered;
+        this.onDropped = onDropped;
+    }
+
+    /**
+     * Кодирует сообщения и добавляет их в конец журнала, ожидая места не дольше maxStallNanos,
+     * после чего курсоры, держащие голову, удаляются
+     *
+     * @param messages сообщения в порядке рассылки
+     * @throws InterruptedException поток прерван, недобавленные сообщения остаются в коллекции
+     */
+    public void append(Collection<Message> messages) throws InterruptedException {
+        //Кодирование идет вне блокировки, читатели журнала его не ждут
+        SharedFrame[] encoded = new SharedFrame[messages.size()];
+        int next = 0;
+        for (Message message : messages) {
+            encoded[next++] = SharedFrame.encode(message, framePool);
+        }
+        next = 0;
+        Iterator<Message> iterator = messages.iterator();
+        List<Message> delivered = new ArrayList<>();
+        List<Message> dropped = new ArrayList<>();
+        List<Cursor> evicted = new ArrayList<>();
+        try {
+            synchronized (this) {
+                while (iterator.hasNext()) {
+                    long stalledSince = 0;
+                    while (tail - head >= entries.length) {
+                        long now = System.nanoTime();
+                        if (stalledSince == 0) {
+                            //Рассылка узнает о пачке только после добавления целиком, а уже добавленную часть
+                            //клиенты должны прочитать и подтвердить, иначе голову никто не сдвинет
+                            stalledSince = now;
+                            wakeAttached();
+                        } else {
+                            wakePinningHead();
+                        }
+                        long remaining = maxStallNanos - (now - stalledSince);
+                        if (remaining > 0) {
+                            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        } else {
+                            delivered.addAll(evictPinningHead(dropped, evicted));
+                            stalledSince = 0;
+                        }
+                    }
+                    int index = index(tail++);
+                    entries[index] = iterator.next();
+                    frames[index] = encoded[next++];
+                    bytes += BufferBudget.footprint(entries[index]) + frames[index].length();
+                    iterator.remove();
+                }
+                if (tail - head > entries.length / 2) {
+                    wakePinningHead();
+                }
+            }
+        } finally {
+            for (; next < encoded.length; next++) {
+                encoded[next].release();
+            }
+            delivered.forEach(onDelivered);
+            dropped.forEach(onDropped);
+            //Клиент удаленного курсора при пробуждении видит, что курсор удален, и закрывает соединение
+            evicted.forEach(cursor -> cursor.wakeup.run());
+        }
+    }
+
+    /**
+     * Копирует сообщения журнала начиная со смещения вместе с их кадрами.
+     * Каждый кадр выдается с собственной ссылкой, которую читатель отпускает после записи
+     *
+     * @param from        смещение первого сообщения, не меньше подтвержденного курсором
+     * @param maxMessages максимум сообщений
+     * @param messages    список, в который добавляются сообщения
+     * @param frames      список, в который добавляются кадры сообщений
+     * @return количество скопированных сообщений
+     */
+    public synchronized int read(long from, int maxMessages, List<Message> messages, List<SharedFrame> frames) {
+        int count = (int) Math.max(0, Math.min(maxMessages, tail - from));
+        for (long offset = from; offset < from + count; offset++) {
+            int index = index(offset);
+            messages.add(entries[index]);
+            frames.add(this.frames[index].retain());
+        }
+        return count;
+    }
+
+    /**
+     * @param offset смещение
+     * @return сообщение или null, если его уже подтвердили все курсоры
+     */
+    public synchronized Message get(long offset) {
+        return offset >= head && offset < tail ? entries[index(offset)] : null;
+    }
+
+    /**
+     * @return смещение, которое получит следующее сообщение
+     */
+    public synchronized long endOffset() {
+        return tail;
+    }
+
+    /**
+     * @return сколько сообщений хранит журнал
+     */
+    public synchronized int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return примерный объем хранимых сообщений и их кадров, байт
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return есть ли хотя бы один курсор, подключенный или ожидающий переподключения.
+     * Без курсоров рассылать некому, сообщения ждут в буфере
+     */
+    public synchronized boolean hasCursors() {
+        return !cursors.isEmpty();
+    }
+
+    public synchronized int detachedCursors() {
+        int detached = 0;
+        for (Cursor cursor : cursors.values()) {
+            if (!cursor.attached) {
+                detached++;
+            }
+        }
+        return detached;
+    }
+
+    /**
+     * Подключает клиента с подпиской на все сообщения
+     *
+     * @param serviceName имя сервиса
+     * @return курсор или null, если он уже подключен
+     */
+    public Cursor attach(String serviceName) {
+        return attach(serviceName, Subscription.ALL, () -> { });
+    }
+
+    /**
+     * Подключает клиента к его курсору. Новый клиент начинает с конца журнала,
+     * переподключившийся - с первого неподтвержденного им сообщения
+     *
+     * @param serviceName  имя сервиса
+     * @param subscription какие сообщения клиент читает
+     * @param wakeup       будит клиента с подпиской, чтобы он пропустил неподходящие сообщения в голове журнала.
+     *                     Вызывается под блокировкой журнала, поэтому не должен блокироваться
+     * @return курсор или null, если он уже подключен
+     */
+    public synchronized Cursor attach(String serviceName, Subscription subscription, Runnable wakeup) {
+        Cursor cursor = cursors.get(serviceName);
+        if (cursor == null) {
+            cursor = new Cursor(serviceName, tail);
+            cursors.put(serviceName, cursor);
+        } else if (cursor.attached) {
+            return null;
+        }
+        cursor.attached = true;
+        cursor.subscription = subscription;
+        cursor.wakeup = wakeup;
+        return cursor;
+    }
+
+    /**
+     * Отключает клиента от курсора
+     *
+     * @param cursor курсор
+     * @param remove true - клиент завершил работу и больше не вернется, курсор удаляется;
+     *               false - курсор ждет переподключения
+     * @return сколько сообщений удаленный курсор так и не получил
+     */
+    public int detach(Cursor cursor, boolean remove) {
+        int dropped;
+        List<Message> delivered;
+        List<Message> undelivered = new ArrayList<>();
+        synchronized (this) {
+            if (cursors.get(cursor.serviceName) != cursor) {
+                //Курсор удален за отставание, недоставленное ему учитывается один раз - при отключении клиента
+                int lost = cursor.evictedDropped;
+                cursor.evictedDropped = 0;
+                return lost;
+            }
+            cursor.attached = false;
+            cursor.detachedAt = System.nanoTime();
+            if (!remove) {
+                return 0;
+            }
+            cursors.remove(cursor.serviceName);
+            dropped = (int) (tail - cursor.committed);
+            delivered = truncate(cursor.committed, undelivered);
+        }
+        delivered.forEach(onDelivered);
+        undelivered.forEach(onDropped);
+        return dropped;
+    }
+
+    /**
+     * Сдвигает подтвержденное смещение курсора вперед
+     *
+     * @param cursor курсор
+     * @param offset смещение первого неподтвержденного клиентом сообщения
+     */
+    public void commit(Cursor cursor, long offset) {
+        List<Message> delivered;
+        synchronized (this) {
+            if (offset <= cursor.committed || cursors.get(cursor.serviceName) != cursor) {
+                return;
+            }
+            //Голову держит только курсор, стоящий на ней, остальным пересчитывать минимум не нужно
+            boolean atHead = cursor.committed <= head;
+            cursor.committed = Math.min(offset, tail);
+            if (!atHead) {
+                return;
+            }
+            delivered = truncate(Long.MAX_VALUE, null);
+        }
+        delivered.forEach(onDelivered);
+    }
+
+    /**
+     * Удаляет курсоры клиентов, не переподключившихся за отведенное время
+     *
+     * @param ttlNanos сколько курсор ждет переподключения
+     * @return сколько сообщений так и не было доставлено удаленным курсорам
+     */
+    public int expireDetached(long ttlNanos) {
+        int dropped = 0;
+        List<Message> delivered;
+        List<Message> undelivered = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            long droppedFrom = Long.MAX_VALUE;
+            Iterator<Cursor> iterator = cursors.values().iterator();
+            while (iterator.hasNext()) {
+                Cursor cursor = iterator.next();
+                if (!cursor.attached && now - cursor.detachedAt >= ttlNanos) {
+                    dropped += (int) (tail - cursor.committed);
+                    droppedFrom = Math.min(droppedFrom, cursor.committed);
+                    iterator.remove();
+                }
+            }
+            if (dropped == 0) {
+                return 0;
+            }
+            delivered = truncate(droppedFrom, undelivered);
+        }
+        delivered.forEach(onDelivered);
+        undelivered.forEach(onDropped);
+        return dropped;
+    }
+
+    /**
+     * Удаляет курсоры, стоящие на голове заполненного журнала, и освобождает голову
+     *
+     * @param dropped список, в который попадают сообщения, не подтвержденные удаленными курсорами
+     * @param evicted список, в который попадают удаленные курсоры
+     * @return освобожденные сообщения, подтвержденные всеми курсорами
+     */
+    private List<Message> evictPinningHead(List<Message> dropped, List<Cursor> evicted) {
+        Iterator<Cursor> iterator = cursors.values().iterator();
+        while (iterator.hasNext()) {
+            Cursor cursor = iterator.next();
+            if (cursor.committed <= head) {
+                ConsoleHelper.writeMessage("Сервис " + cursor.serviceName + " не подтверждает сообщения, журнал заполнен"
+                        + " дольше допустимого - курсор удален, не получено сообщений: " + (tail - cursor.committed));
+                cursor.evicted = true;
+                cursor.evictedDropped = (int) (tail - cursor.committed);
+                iterator.remove();
+                evicted.add(cursor);
+            }
+        }
+        return truncate(head, dropped);
+    }
+
+    /**
+     * Освобождает голову журнала до наименьшего подтвержденного смещения, без курсоров - весь журнал
+     *
+     * @param droppedFrom с какого смещения сообщения не подтвердил удаленный курсор, Long.MAX_VALUE - курсоры не удалялись
+     * @param dropped     список, в который попадают освобожденные сообщения начиная с droppedFrom
+     * @return освобожденные сообщения, подтвержденные всеми курсорами
+     */
+    private List<Message> truncate(long droppedFrom, List<Message> dropped) {
+        long min = tail;
+        for (Cursor cursor : cursors.values()) {
+            min = Math.min(min, cursor.committed);
+        }
+        if (min <= head) {
+            return List.of();
+        }
+        List<Message> delivered = new ArrayList<>((int) (min - head));
+        for (; head < min; head++) {
+            int index = index(head);
+            (head < droppedFrom ? delivered : dropped).add(entries[index]);
+            bytes -= BufferBudget.footprint(entries[index]) + frames[index].length();
+            entries[index] = null;
+            frames[index].release();
+            frames[index] = null;
+        }
+        notifyAll();
+        return delivered;
+    }
+
+    /**
+     * Будит подключенные курсоры с подпиской, стоящие на голове журнала: их держат сообщения, о которых им не сообщали
+     */
+    private void wakePinningHead() {
+        for (Cursor cursor : cursors.values()) {
+            if (cursor.attached && cursor.committed == head && cursor.subscription != Subscription.ALL) {
+                cursor.wakeup.run();
+            }
+        }
+    }
+
+    /**
+     * Будит все подключенные курсоры
+     */
+    private void wakeAttached() {
+        for (Cursor cursor : cursors.values()) {
+            if (cursor.attached) {
+                cursor.wakeup.run();
+            }
+        }
+    }
+
+    private int index(long offset) {
+        return (int) (offset % entries.length);
+    }
+
+    /**
+     * Позиция клиента в журнале, переживает переподключение клиента с тем же именем сервиса
+     */
+    public static class Cursor {
+        private final String serviceName;
+        //Меняются под блокировкой журнала
+        private volatile long committed;
+        private boolean attached;
+        private long detachedAt;
+        private Subscription subscription = Subscription.ALL;
+        private Runnable wakeup;
+        private volatile boolean evicted;
+        private int evictedDropped;
+
+        private Cursor(String serviceName, long committed) {
+            this.serviceName = serviceName;
+            this.committed = committed;
+        }
+
+        public String getServiceName() {
+            return serviceName;
+        }
+
+        /**
+         * @return курсор удален, потому что держал заполненный журнал дольше допустимого
+         */
+        public boolean isEvicted() {
+            return evicted;
+        }
+
+        /**
+         * @return смещение первого сообщения, которое клиент еще не подтвердил
+         */
+        public long committed() {
+            return committed;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.ConsoleHelper;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Неблокирующий сервер на {@link java.nio.channels.Selector}: небольшой фиксированный набор event loop'ов
+ * обслуживает прием соединений, регистрацию, отправку сообщений и подтверждения для всех клиентов
+ */
+class NioServer implements EventLoop.SelectionHandler {
+    private final int port;
+    private final DeliveryContext context;
+    private final EventLoop[] eventLoops;
+    private final Thread[] threads;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+
+    NioServer(int port, int eventLoopCount, DeliveryContext context) throws IOException {
+        this.port = port;
+        this.context = context;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        this.threads = new Thread[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop();
+            threads[i] = new Thread(eventLoops[i], "nio-event-loop-" + i);
+        }
+    }
+
+    /**
+     * Открывает серверный сокет и запускает потоки event loop'ов, прием соединений идет в первом из них
+     *
+     * @throws IOException ошибка открытия порта
+     */
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        EventLoop acceptLoop = eventLoops[0];
+        acceptLoop.execute(() -> {
+            try {
+                serverChannel.register(acceptLoop.selector(), SelectionKey.OP_ACCEPT, this);
+            } catch (IOException e) {
+                close();
+            }
+        });
+    }
+
+    /**
+     * @return фактический порт сервера, полезно при запуске на порту 0
+     * @throws IOException ошибка получения адреса
+     */
+    int localPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    void awaitTermination() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            EventLoop eventLoop = eventLoops[nextLoop];
+            nextLoop = (nextLoop + 1) % eventLoops.length;
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                NioSession session = new NioSession(channel, eventLoop, context);
+                eventLoop.execute(() -> {
+                    try {
+                        session.open();
+                    } catch (IOException e) {
+                        session.close();
+                    }
+                });
+            } catch (IOException e) {
+                //Ошибка одного соединения не должна останавливать прием остальных
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Закрывает серверный сокет и останавливает все event loop'ы вместе с их соединениями
+     */
+    @Override
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Ошибка при закрытии серверного сокета");
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.ConsoleHelper;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+import ru.sibintek.testcase.common.MessageType;
+import ru.sibintek.testcase.common.SharedFrame;
+import ru.sibintek.testcase.common.Subscription;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Неблокирующее соединение с клиентом, обслуживаемое {@link EventLoop}.
+ * Проходит ту же регистрацию по хартбиту, что и {@link Server}, после чего получает рассылку
+ * пакетами в пределах кредитов клиента, подтверждения накопительные по номеру доставки.
+ * Пакет пишется одной записью из нескольких буферов: свой заголовок BATCH и общие для всех клиентов кадры сообщений
+ */
+class NioSession extends AbstractSubscriber implements EventLoop.SelectionHandler {
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    private static final SharedFrame[] NO_FRAMES = new SharedFrame[0];
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final SocketAddress remoteAddress;
+    private final Queue<PendingWrite> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private SelectionKey key;
+
+    NioSession(SocketChannel channel, EventLoop eventLoop, DeliveryContext context) throws IOException {
+        super(context);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.remoteAddress = channel.getRemoteAddress();
+    }
+
+    /**
+     * Регистрирует канал в селекторе и начинает регистрацию клиента, вызывается в потоке event loop
+     *
+     * @throws IOException ошибка регистрации канала
+     */
+    void open() throws IOException {
+        ConsoleHelper.writeMessage("Установленно соединение с адресом " + remoteAddress);
+        key = channel.register(eventLoop.selector(), SelectionKey.OP_READ, this);
+        write(new Message(MessageType.HEART_BEAT));
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        Message message;
+        while (!isClosed() && (message = MessageCodec.decode(readBuffer)) != null) {
+            onMessage(message);
+        }
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            //Кадр не помещается в буфер целиком - увеличиваем буфер
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    private void onMessage(Message message) throws IOException {
+        if (serviceName == null) {
+            serverHandshake(message);
+            return;
+        }
+        if (message.getType() == MessageType.ACK) {
+            window.acknowledgeUpTo(message.getDeliveryTag());
+        } else if (message.getType() == MessageType.COMPRESSION) {
+            requestCompression(message.getData());
+        } else if (message.getType() == MessageType.CREDIT) {
+            window.grant(DeliveryWindow.parseCredits(message.getData()));
+        } else if (message.getType() == MessageType.DEREGISTER) {
+            //клиент завершает работу, выкидываем его из списка доступных
+            deregister();
+        }
+    }
+
+    /**
+     * Регистрация клиента: ждем хартбит с уникальным непустым именем сервиса и, возможно, подпиской, иначе повторяем запрос
+     *
+     * @param message ответ клиента
+     */
+    private void serverHandshake(Message message) {
+        String data = message.getData();
+        String name = data == null ? null : Subscription.serviceName(data);
+        Subscription requested = name == null ? null : Server.parseSubscription(data);
+        if (message.getType() == MessageType.HEART_BEAT && requested != null && !name.isEmpty() && !context.connectionMap.containsKey(name)) {
+            subscription = requested;
+            serviceName = name;
+            if (context.register(this)) {
+                ConsoleHelper.writeMessage("Сервис: " + remoteAddress + " зарегистрирован под именем: " + name);
+                write(new Message(MessageType.REGISTERED));
+                return;
+            }
+            //Имя заняли параллельно, или прежнее соединение с этим именем еще держит курсор - запрашиваем хартбит снова
+            serviceName = null;
+            subscription = Subscription.ALL;
+        }
+        write(new Message(MessageType.HEART_BEAT));
+    }
+
+    @Override
+    protected void send(long firstDeliveryTag, List<SharedFrame> frames) {
+        ByteBuffer[] buffers = new ByteBuffer[frames.size() + 1];
+        int framesLength = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            buffers[i + 1] = frames.get(i).duplicate();
+            framesLength += buffers[i + 1].remaining();
+        }
+        ByteBuffer header = ByteBuffer.allocate(MessageCodec.BATCH_HEADER_SIZE);
+        MessageCodec.encodeBatchHeader(firstDeliveryTag, frames.size(), framesLength, header);
+        buffers[0] = header.flip();
+        enqueue(new PendingWrite(buffers, frames.toArray(NO_FRAMES)));
+    }
+
+    @Override
+    protected void send(ByteBuffer frame) {
+        enqueue(new PendingWrite(new ByteBuffer[]{frame}, NO_FRAMES));
+    }
+
+    /**
+     * Кодирует сообщение в очередь записи и планирует ее сброс в потоке event loop
+     *
+     * @param message сообщение
+     */
+    private void write(Message message) {
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.encodedLength(message));
+        MessageCodec.encode(message, frame);
+        enqueue(new PendingWrite(new ByteBuffer[]{frame.flip()}, NO_FRAMES));
+    }
+
+    private void enqueue(PendingWrite write) {
+        writeQueue.add(write);
+        if (isClosed()) {
+            //Соединение закрылось раньше, чем запись попала в очередь: кадры отпускаем сами
+            releasePendingWrites();
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (eventLoop.inEventLoop()) {
+                flushSafely();
+            } else {
+                eventLoop.execute(this::flushSafely);
+            }
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Пишет очередь кадров в канал, пока сокет принимает данные. Остаток дописывается по готовности OP_WRITE
+     *
+     * @throws IOException ошибка записи
+     */
+    private void flush() throws IOException {
+        flushScheduled.set(false);
+        if (isClosed()) {
+            return;
+        }
+        PendingWrite write;
+        while ((write = writeQueue.peek()) != null) {
+            if (!write.writeTo(channel)) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeQueue.poll();
+            write.release();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    protected void closeConnection() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        releasePendingWrites();
+        ConsoleHelper.writeMessage("Соединение с удаленным адресом " + remoteAddress + " закрыто");
+    }
+
+    /**
+     * Отпускает кадры недописанных пакетов. Выполняется в потоке event loop,
+     * чтобы не вернуть в пул буфер, который flush пишет в этот момент
+     */
+    private void releasePendingWrites() {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(this::releasePendingWrites);
+            return;
+        }
+        PendingWrite write;
+        while ((write = writeQueue.poll()) != null) {
+            write.release();
+        }
+    }
+
+    /**
+     * Запись в очереди соединения: буферы пишутся в канал одним вызовом, кадры отпускаются после записи
+     */
+    private static class PendingWrite {
+        private final ByteBuffer[] buffers;
+        private final SharedFrame[] frames;
+        private int first;
+
+        PendingWrite(ByteBuffer[] buffers, SharedFrame[] frames) {
+            this.buffers = buffers;
+            this.frames = frames;
+        }
+
+        /**
+         * @return true, если записано все, иначе сокет не принимает данные и остаток ждет OP_WRITE
+         */
+        boolean writeTo(SocketChannel channel) throws IOException {
+            while (first < buffers.length) {
+                if (!buffers[first].hasRemaining()) {
+                    first++;
+                } else if (channel.write(buffers, first, buffers.length - first) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void release() {
+            for (SharedFrame frame : frames) {
+                frame.release();
+            }
+        }
+    }
+}
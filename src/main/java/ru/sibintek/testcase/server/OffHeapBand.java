@@ -0,0 +1,152 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Очередь сообщений одного приоритета вне кучи: кадры {@link MessageCodec} пишутся подряд в direct-участки,
+ * участки связаны в список - прочитанный целиком участок возвращается в запас и принимает новые кадры.
+ * Индекс не нужен: кадр начинается с длины, следующий идет сразу за ним. В куче на сообщение не остается
+ * ничего, поэтому глубина буфера не увеличивает ни старое поколение, ни паузы сборщика мусора.
+ * Объект {@link Message} создается только при выдаче из очереди.
+ * <p>
+ * Кадр кодируется и декодируется прямо в общей памяти, поэтому без блокировок не обойтись. Блокировок две,
+ * как в {@link java.util.concurrent.LinkedBlockingQueue}: производители пишут в хвостовой участок под своей,
+ * потребители читают головной под своей, друг друга они не ждут. Граница записанного публикуется
+ * volatile-полем участка, переход к следующему участку - ссылкой на него
+ */
+class OffHeapBand implements MessageBuffer.Band {
+    //Сколько пустых участков держать в запасе, остальные отдаются сборщику мусора
+    private static final int SPARE_CHUNKS = 4;
+
+    private final int chunkSize;
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final ReentrantLock takeLock = new ReentrantLock();
+    //Возвращают потребители, берут производители
+    private final Queue<Chunk> spare = new ConcurrentLinkedQueue<>();
+    //Под putLock
+    private Chunk tail;
+    //Под takeLock
+    private Chunk head;
+    //Возвращенные в начало очереди сообщения, выдаются раньше кадров; под takeLock
+    private final ArrayDeque<Message> returned = new ArrayDeque<>();
+
+    /**
+     * @param chunkSize размер участка; кадр больше участка получает собственный участок
+     */
+    OffHeapBand(int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.head = this.tail = new Chunk(ByteBuffer.allocateDirect(chunkSize));
+    }
+
+    @Override
+    public void offer(Message message) {
+        int length = MessageCodec.encodedLength(message);
+        putLock.lock();
+        try {
+            if (tail.writer.remaining() < length) {
+                Chunk next = acquire(length);
+                //После перехода в этот участок больше не пишут, потребитель может вернуть его в запас
+                tail.next = next;
+                tail = next;
+            }
+            MessageCodec.encode(message, tail.writer);
+            tail.committed = tail.writer.position();
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    @Override
+    public void requeue(Message message) {
+        //Возвращают редко и ненадолго, поэтому сообщение не кодируется обратно
+        takeLock.lock();
+        try {
+            returned.addFirst(message);
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    @Override
+    public Message poll() {
+        takeLock.lock();
+        try {
+            if (!returned.isEmpty()) {
+                return returned.pollFirst();
+            }
+            while (true) {
+                int committed = head.committed;
+                if (head.reader.position() < committed) {
+                    head.reader.limit(committed);
+                    return MessageCodec.decode(head.reader);
+                }
+                Chunk next = head.next;
+                if (next == null) {
+                    return null;
+                }
+                //Производитель дописал участок до перехода к следующему - граница могла сдвинуться после первой проверки
+                if (head.reader.position() < head.committed) {
+                    continue;
+                }
+                Chunk read = head;
+                head = next;
+                release(read);
+            }
+        } catch (IOException e) {
+            //Кадры пишет только эта очередь, поврежденный кадр - ошибка в коде
+            throw new UncheckedIOException(e);
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    @Override
+    public int footprint(Message message) {
+        return MessageCodec.encodedLength(message);
+    }
+
+    private Chunk acquire(int length) {
+        Chunk chunk = length <= chunkSize ? spare.poll() : null;
+        return chunk != null ? chunk : new Chunk(ByteBuffer.allocateDirect(Math.max(chunkSize, length)));
+    }
+
+    private void release(Chunk chunk) {
+        //Запас пополняют только потребители под takeLock, поэтому размер не превысит предела
+        if (chunk.writer.capacity() == chunkSize && spare.size() < SPARE_CHUNKS) {
+            chunk.clear();
+            spare.add(chunk);
+        }
+    }
+
+    /**
+     * Участок памяти: запись идет позицией writer, чтение - позицией reader до опубликованной границы committed
+     */
+    private static class Chunk {
+        private final ByteBuffer writer;
+        private final ByteBuffer reader;
+        private volatile int committed;
+        private volatile Chunk next;
+
+        Chunk(ByteBuffer buffer) {
+            this.writer = buffer;
+            this.reader = buffer.duplicate();
+            reader.limit(0);
+        }
+
+        void clear() {
+            writer.clear();
+            reader.clear().limit(0);
+            committed = 0;
+            next = null;
+        }
+    }
+}
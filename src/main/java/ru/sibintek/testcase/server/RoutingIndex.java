@@ -0,0 +1,55 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.MessagePriority;
+import ru.sibintek.testcase.common.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Индекс подписок для рассылки: для каждого набора приоритетов заранее собран массив клиентов,
+ * подписанных хотя бы на один из них. Рассылка будит только клиентов из массива для приоритетов пачки,
+ * стоимость - O(подходящих клиентов), а не O(всех). Регистрация редка, поэтому индекс пересобирается
+ * целиком при каждом изменении, а читается без блокировок
+ */
+class RoutingIndex {
+    private static final Subscriber[] EMPTY = new Subscriber[0];
+    private static final int MASKS = 1 << MessagePriority.values().length;
+
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private volatile Subscriber[][] byMask = build(List.of());
+
+    synchronized void add(Subscriber subscriber) {
+        subscribers.add(subscriber);
+        byMask = build(subscribers);
+    }
+
+    synchronized void remove(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            byMask = build(subscribers);
+        }
+    }
+
+    /**
+     * @param priorityMask приоритеты сообщений битами {@link Subscription#mask(MessagePriority)}
+     * @return клиенты, подписанные хотя бы на один из приоритетов; массив общий, менять его нельзя
+     */
+    Subscriber[] subscribers(int priorityMask) {
+        return byMask[priorityMask];
+    }
+
+    private static Subscriber[][] build(List<Subscriber> subscribers) {
+        Subscriber[][] index = new Subscriber[MASKS][];
+        index[0] = EMPTY;
+        for (int mask = 1; mask < MASKS; mask++) {
+            List<Subscriber> matching = new ArrayList<>();
+            for (Subscriber subscriber : subscribers) {
+                if ((subscriber.getSubscription().priorityMask() & mask) != 0) {
+                    matching.add(subscriber);
+                }
+            }
+            index[mask] = matching.toArray(EMPTY);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,269 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.ConsoleHelper;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+import ru.sibintek.testcase.common.MessagePriority;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only лог сообщений одного приоритета, нарезанный на сегменты фиксированного размера.
+ * Запись идет только в хвостовой сегмент, чтение - из головного, полностью прочитанный сегмент удаляется целиком.
+ * Запись в сегменте - это кадр {@link MessageCodec}, тот же, что уходит в сокет.
+ * Сегменты прошлого запуска с кадрами неизвестной версии не открываются: пропустить их значило бы потерять сообщения
+ */
+class SegmentLog implements Closeable {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final int RECORD_HEADER_SIZE = MessageCodec.LENGTH_FIELD_SIZE;
+
+    private final Path dir;
+    private final String prefix;
+    private final int segmentSize;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+    //Позиция в головном сегменте, с которой начинается содержимое readBuffer
+    private long readBufferPosition;
+    //Сколько записей головного сегмента уже прочитано
+    private long headRecordsRead;
+    private long nextSegmentId;
+
+    SegmentLog(Path dir, MessagePriority priority, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.prefix = priority.getOrder() + "-";
+        this.segmentSize = segmentSize;
+        this.readBuffer.flip();
+        recoverSegments();
+        rollSegment();
+    }
+
+    /**
+     * Дописывает сообщение в хвостовой сегмент, при нехватке места открывает новый сегмент
+     *
+     * @param message сообщение
+     * @throws IOException ошибка записи
+     */
+    synchronized void append(Message message) throws IOException {
+        int recordSize = MessageCodec.encodedLength(message);
+        Segment tail = segments.getLast();
+        if (tail.size + writeBuffer.position() + recordSize > segmentSize && tail.size + writeBuffer.position() > 0) {
+            flush();
+            rollSegment();
+        }
+        if (writeBuffer.remaining() < recordSize) {
+            flush();
+            if (writeBuffer.capacity() < recordSize) {
+                writeBuffer = ByteBuffer.allocate(recordSize);
+            }
+        }
+        MessageCodec.encode(message, writeBuffer);
+        segments.getLast().records++;
+    }
+
+    /**
+     * Читает следующее сообщение, удаляя полностью прочитанные сегменты
+     *
+     * @return сообщение или null, если лог пуст
+     * @throws IOException ошибка чтения
+     */
+    synchronized Message poll() throws IOException {
+        while (true) {
+            Segment head = segments.getFirst();
+            if (head == segments.getLast() && writeBuffer.position() > 0) {
+                flush();
+            }
+            if (readBuffer.remaining() >= RECORD_HEADER_SIZE) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length <= 0 || readBufferPosition + readBuffer.position() + RECORD_HEADER_SIZE + length > head.size) {
+                    //Недописанный или поврежденный хвост сегмента - пропускаем его
+                    skipSegmentRemainder(head, "torn record");
+                } else if (readBuffer.remaining() >= RECORD_HEADER_SIZE + length) {
+                    try {
+                        Message message = MessageCodec.decode(readBuffer);
+                        headRecordsRead++;
+                        return message;
+                    } catch (IOException e) {
+                        //Версии проверены при открытии, значит запись повреждена - остаток сегмента прочитать не получится
+                        skipSegmentRemainder(head, e.getMessage());
+                    }
+                }
+            }
+            long position = readBufferPosition + readBuffer.position();
+            if (position < head.size) {
+                fillReadBuffer(head, position);
+            } else if (head != segments.getLast()) {
+                deleteHead();
+            } else {
+                return null;
+            }
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return segments.size() == 1 && writeBuffer.position() == 0
+                && readBufferPosition + readBuffer.position() >= segments.getFirst().size;
+    }
+
+    /**
+     * @return количество непрочитанных байт в логе
+     */
+    synchronized long pendingBytes() {
+        long bytes = writeBuffer.position() - readBufferPosition - readBuffer.position();
+        for (Segment segment : segments) {
+            bytes += segment.size;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return количество непрочитанных сообщений в логе
+     */
+    synchronized long pendingMessages() {
+        long records = -headRecordsRead;
+        for (Segment segment : segments) {
+            records += segment.records;
+        }
+        return records;
+    }
+
+    synchronized void flush() throws IOException {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        Segment tail = segments.getLast();
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            tail.size += tail.channel.write(writeBuffer, tail.size);
+        }
+        writeBuffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+    }
+
+    private void fillReadBuffer(Segment head, long position) throws IOException {
+        int pending = readBuffer.remaining();
+        if (pending >= RECORD_HEADER_SIZE) {
+            int required = RECORD_HEADER_SIZE + readBuffer.getInt(readBuffer.position());
+            if (readBuffer.capacity() < required) {
+                ByteBuffer larger = ByteBuffer.allocate(required);
+                larger.put(readBuffer);
+                larger.flip();
+                readBuffer = larger;
+            }
+        }
+        readBuffer.compact();
+        readBufferPosition = position;
+        long from = position + pending;
+        int read = from < head.size ? head.channel.read(readBuffer, from) : 0;
+        readBuffer.flip();
+        if (read <= 0 && pending == readBuffer.remaining()) {
+            skipSegmentRemainder(head, "unreadable tail");
+        }
+    }
+
+    private void skipSegmentRemainder(Segment head, String reason) {
+        long position = readBufferPosition + readBuffer.position();
+        ConsoleHelper.writeMessage(String.format("Сегмент %s: пропущено %d байт, %d записей с позиции %d (%s)",
+                head.path.getFileName(), head.size - position, head.records - headRecordsRead, position, reason));
+        readBuffer.clear().flip();
+        readBufferPosition = head.size;
+        headRecordsRead = head.records;
+    }
+
+    private void deleteHead() throws IOException {
+        Segment head = segments.removeFirst();
+        head.channel.close();
+        Files.deleteIfExists(head.path);
+        readBuffer.clear().flip();
+        readBufferPosition = 0;
+        headRecordsRead = 0;
+    }
+
+    private void rollSegment() throws IOException {
+        Path path = dir.resolve(String.format("%s%019d%s", prefix, nextSegmentId++, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.addLast(new Segment(path, channel, 0));
+    }
+
+    /**
+     * Подхватываем сегменты, оставшиеся от предыдущего запуска сервера, чтобы не потерять сообщения
+     */
+    private void recoverSegments() throws IOException {
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(existing::add);
+        }
+        existing.sort(null);
+        for (Path path : existing) {
+            String name = path.getFileName().toString();
+            nextSegmentId = Long.parseLong(name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length())) + 1;
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(path, channel, channel.size());
+            segment.records = countRecords(segment);
+            segments.addLast(segment);
+        }
+    }
+
+    /**
+     * Считает целые записи сегмента по полям длины и проверяет их версию, не разбирая сами сообщения
+     *
+     * @throws MessageCodec.UnsupportedVersionException запись сделана версией сервера, формат которой неизвестен
+     */
+    private long countRecords(Segment segment) throws IOException {
+        //Поле длины и версия
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + 1);
+        long records = 0;
+        long position = 0;
+        while (position + RECORD_HEADER_SIZE <= segment.size) {
+            header.clear();
+            while (header.hasRemaining() && segment.channel.read(header, position + header.position()) > 0) {
+            }
+            int length = header.getInt(0);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > segment.size) {
+                break;
+            }
+            try {
+                MessageCodec.checkVersion(header.get(RECORD_HEADER_SIZE));
+            } catch (MessageCodec.UnsupportedVersionException e) {
+                segment.channel.close();
+                throw new MessageCodec.UnsupportedVersionException(e.getVersion(), segment.path + " at " + position);
+            }
+            records++;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return records;
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private long size;
+        //Записи сегмента, включая еще не сброшенные на диск
+        private long records;
+
+        Segment(Path path, FileChannel channel, long size) {
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+}
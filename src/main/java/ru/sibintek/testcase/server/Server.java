@@ -4,30 +4,72 @@ import ru.sibintek.testcase.common.Connection;
 import ru.sibintek.testcase.common.ConsoleHelper;
 import ru.sibintek.testcase.common.Message;
 import ru.sibintek.testcase.common.MessageType;
+import ru.sibintek.testcase.common.Settings;
+import ru.sibintek.testcase.common.SharedMemoryChannel;
+import ru.sibintek.testcase.common.Subscription;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.List;
+import java.nio.file.Path;
 import java.util.Map;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
 
 /**
  * Класс сервера, отвечает за регистрацию клиентов и отправку сообщений
+ * Режим работы задается настройкой server.mode: nio - неблокирующие event loop'ы, blocking - поток на соединение.
+ * Настройка server.threads=virtual переводит обработчики соединений и задачи отправки на виртуальные потоки.
+ * При server.ipc.enabled=true клиенты на том же хосте могут подключаться через общую память {@link SharedMemoryChannel}
  */
 public class Server {
-    private final static Map<String, Connection> connectionMap = new ConcurrentHashMap<>();
+    private static final String NIO_MODE = "nio";
+    private static final String VIRTUAL_THREADS = "virtual";
+    private static final String OFF_HEAP_STORAGE = "offheap";
+    //Корзин в колесе таймаутов подтверждений: при тике 10 мс оборот - около 5 секунд, таймаут по умолчанию укладывается в один оборот
+    private static final int ACK_TIMER_WHEEL_SIZE = 512;
+
+    private final static Map<String, Subscriber> connectionMap = new ConcurrentHashMap<>();
 
     private final ScheduledExecutorService generateMessagesExecutor = Executors.newScheduledThreadPool(1);
 
-    private final ExecutorService sendExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private Generator generator;
+
+    //Сообщения, ожидающие рассылки: по приоритету, внутри приоритета в порядке генерации
+    private static final MessageBuffer messagesBuffer = new MessageBuffer(
+            OFF_HEAP_STORAGE.equals(Settings.getString("server.buffer.storage", "heap"))
+                    ? MessageBuffer.Storage.OFF_HEAP : MessageBuffer.Storage.HEAP);
+
+    private final ServerMetrics metrics = new ServerMetrics(messagesBuffer::size);
+
+    //Журнал постановки и доставки сообщений, null - режим без сохранения между перезапусками
+    private final WriteAheadLog wal = openWriteAheadLog();
+
+    //Разосланные сообщения, которые подтвердили еще не все курсоры
+    private final MessageLog messageLog = new MessageLog(Settings.getInt("server.log.capacity", 10000),
+            TimeUnit.MILLISECONDS.toNanos(Settings.getInt("server.log.maxStallMillis", 30000)),
+            wal == null ? message -> { } : wal::completed, wal == null ? message -> { } : wal::dropped);
+
+    //Зарегистрированные клиенты по приоритетам подписки
+    private final RoutingIndex routes = new RoutingIndex();
+
+    private final Dispatcher dispatcher = new Dispatcher(routes, messagesBuffer, messageLog, this::bufferTaken);
 
-    private static PriorityBlockingQueue<Message> messagesBuffer = new PriorityBlockingQueue<>(150, (msg1, msg2) -> {
-        if (msg1.getPriority().getOrder() == msg2.getPriority().getOrder()) return 0;
-        return msg1.getPriority().getOrder() < msg2.getPriority().getOrder() ? -1 : 1; //PriorityQueue ставит в хэд самый маленький элемент, поэтому реверсный порядок
-    });
+    private final boolean virtualThreads = VIRTUAL_THREADS.equals(Settings.getString("server.threads", "platform"));
+
+    //Потоки обработчиков соединений в режиме blocking
+    private final ThreadFactory handlerThreads = virtualThreads
+            ? Thread.ofVirtual().name("handler-", 0).factory()
+            : Thread.ofPlatform().name("handler-", 0).factory();
+
+    private final DeliveryContext deliveryContext = new DeliveryContext(connectionMap, routes, dispatcher::signal,
+            virtualThreads
+                    ? Executors.newVirtualThreadPerTaskExecutor()
+                    : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()),
+            Executors.newSingleThreadScheduledExecutor(),
+            new TimingWheel(Settings.getInt("server.ackTimer.tickMillis", 10), TimeUnit.MILLISECONDS, ACK_TIMER_WHEEL_SIZE, "ack-timer"),
+            messageLog,
+            metrics,
+            new DeliverySettings());
 
 
 
@@ -44,182 +86,233 @@ public class Server {
         int serverPort = ConsoleHelper.readInt();
         ConsoleHelper.writeMessage("Введите количество генерируемых сообщений в секунду:");
         int messagesPerSecond = ConsoleHelper.readInt();
+        BufferBudget budget = new BufferBudget(Settings.getLong("server.memory.budgetBytes", Runtime.getRuntime().maxMemory() / 4),
+                Settings.getDouble("server.memory.highWatermark", 0.8), Settings.getDouble("server.memory.lowWatermark", 0.6),
+                Settings.getLong("server.spill.maxBytes", 0), Boolean.parseBoolean(Settings.getString("server.backpressure", "false")),
+                () -> messagesBuffer.bytes() + messageLog.bytes());
+        metrics.watchBudget(budget);
+        generator = new Generator(messagesBuffer, budget, dispatcher::signal, metrics, wal, messagesPerSecond,
+                Settings.getInt("server.generator.burst", 0), Settings.getInt("server.generator.threads", 1),
+                Settings.getInt("server.spill.readAheadMessages", 1024), Settings.getInt("server.spill.refillBelowMessages", 1024));
+        metrics.watchLog(messageLog);
+        metrics.publish();
+        generateMessagesExecutor.scheduleAtFixedRate(metrics::tick, 1, 1, TimeUnit.SECONDS);
+        generateMessagesExecutor.scheduleAtFixedRate(deliveryContext::expireDetachedCursors, 1, 1, TimeUnit.SECONDS);
+        if (NIO_MODE.equals(Settings.getString("server.mode", NIO_MODE))) {
+            startNioServer(serverPort);
+        } else {
+            startBlockingServer(serverPort);
+        }
+    }
+
+    private void startBlockingServer(int serverPort) throws IOException {
         try (ServerSocket serverSocket = new ServerSocket(serverPort)) {
-            Runnable startGenerateMessagesTask = new Generator(messagesBuffer,messagesPerSecond);
             ConsoleHelper.writeMessage("Сервер запущен..");
-            generateMessagesExecutor.scheduleAtFixedRate(startGenerateMessagesTask, 1, 1, TimeUnit.SECONDS);
-            CompletableFuture.runAsync(this::sendBroadcastMessage);
+            startGenerator();
+            dispatcher.start();
+            startIpcAcceptor();
             while (true) {
                 //Слушаем
+                Socket socket;
                 try {
-                    Socket socket = serverSocket.accept();
-                    Handler handler = new Handler(socket);
-                    new Thread(handler).start();
+                    socket = serverSocket.accept();
                 } catch (IOException e) {
-                    generateMessagesExecutor.shutdown();
                     e.printStackTrace();
                     break;
                 }
+                try {
+                    startHandler(new Connection(socket));
+                } catch (IOException e) {
+                    //Соединение оборвалось сразу после установки, сервер продолжает слушать
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
             }
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void startNioServer(int serverPort) throws IOException {
+        int eventLoops = Settings.getInt("server.eventLoops", Runtime.getRuntime().availableProcessors());
+        NioServer nioServer = new NioServer(serverPort, eventLoops, deliveryContext);
+        nioServer.start();
+        ConsoleHelper.writeMessage("Сервер запущен..");
+        startGenerator();
+        dispatcher.start();
+        startIpcAcceptor();
+        try {
+            nioServer.awaitTermination();
+        } catch (InterruptedException e) {
+            nioServer.close();
+        } finally {
+            shutdown();
         }
     }
 
+    private void startHandler(Connection connection) {
+        handlerThreads.newThread(new Handler(connection, deliveryContext)).start();
+    }
+
     /**
-     * Метод отправки сообщений всем зарегестрированным клиентам
-     * Асинхронно отправляет сообщение каждому клиенту
+     * Начинает прием клиентов через общую память, если он включен настройкой server.ipc.enabled
      */
-    private void sendBroadcastMessage() {
-        final CompletionService<Boolean> completionService = new ExecutorCompletionService<>(sendExecutor);
-        while (true) {
-            if (!connectionMap.isEmpty() && !messagesBuffer.isEmpty()) {
-                Message message = messagesBuffer.peek();
-                List<Future<Boolean>> futures = connectionMap.entrySet().stream()
-                        .map((entry) -> completionService
-                                .submit(() -> sendMessage(entry.getKey(), entry.getValue(), message)))
-                        .collect(Collectors.toList());
-                boolean isMessageProcessedWithAllServices = checkIfAllServicesGetMessage(futures, completionService);
-                if (isMessageProcessedWithAllServices) {
-                    messagesBuffer.poll();
-                }
-            }
+    private void startIpcAcceptor() {
+        if (!Boolean.parseBoolean(Settings.getString("server.ipc.enabled", "false"))) {
+            return;
+        }
+        Path dir = SharedMemoryChannel.directory();
+        try {
+            new IpcAcceptor(dir, this::startHandler).start();
+            ConsoleHelper.writeMessage("Прием соединений через общую память в каталоге " + dir);
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Прием через общую память не запущен: " + e.getMessage());
         }
     }
 
+    private void startGenerator() {
+        generator.start();
+    }
+
     /**
-     * Проверяем все ли сервисы успешно обработали сообщение
-     * @param futures ссылки на отложенный результат отправки
-     * @param completionService сервис исполнения
-     * @return boolean
+     * Рассылка забрала пачку из буфера, генератор решает, пора ли пополнять буфер с диска
      */
-    private Boolean checkIfAllServicesGetMessage(List<Future<Boolean>> futures, CompletionService<Boolean> completionService) {
-        //Можно собирать коннекты от которых не удалось получить ответ, пробовать послать еще раз, или замутить какую нибудь логику по проверке
-        //хартбита, но сейчас просто будем послыать всем заново, если кто-то не получил (at least one доставка)
-        boolean isAllServicesGetMessage = true;
-        while (!futures.isEmpty()) {
-            try {
-                //Чтобы не блокировать получение результатов на каждой future, считаем задачу не завершенной, если по истечении 5 секунд нет результата
-                Future<Boolean> future = completionService.poll(5, TimeUnit.SECONDS);
-                if (future == null) {
-                    futures.forEach(f -> f.cancel(true));
-                    return false;
-                }
-                futures.remove(future);
-                Boolean isOk = future.get();
-                if (!isOk) {
-                    isAllServicesGetMessage = false;
-                }
-            } catch (ExecutionException | InterruptedException e) {
-                return false;
-            }
+    private void bufferTaken() {
+        Generator current = generator;
+        if (current != null) {
+            current.bufferTaken();
         }
-        return isAllServicesGetMessage;
     }
 
     /**
-     * Метод отправки сообщения клиенту
-     * @param serviceName имя клиента
-     * @param connection соединение
-     * @param message сообщение
-     * @return boolean true - доставлено, false - нет
-     * @throws IOException ошибка отправки/получения
-     * @throws ClassNotFoundException ошибка чтения сообщения
+     * Останавливает генерацию и рассылает клиентам то, что уже успело попасть в буфер
      */
-    private boolean sendMessage(String serviceName, Connection connection, Message message) throws IOException, ClassNotFoundException {
+    private void shutdown() {
         try {
-            connection.send(message);
-            Message receive = connection.receive();
-            //ждем ответ и проверяем тоже самое ли было обработано сообщение
-            if (receive.getType() == MessageType.RESPONSE) {
-                String receiveDataId = receive.getData();
-                return message.getId().equals(receiveDataId);
-            }
-            //если клиент "отвалился" то выкидываем его из списка доступных
-            if (receive.getType() == MessageType.DEREGISTER) {
-                connectionMap.remove(serviceName);
-                return true;
-            } else {
-                return false;
+            generator.stop();
+            generateMessagesExecutor.shutdown();
+            dispatcher.drain(Settings.getInt("server.drainTimeoutMillis", 5000), TimeUnit.MILLISECONDS);
+            if (wal != null) {
+                wal.close();
             }
-        } catch (SocketException ex) {
-            connectionMap.remove(serviceName);
-            connection.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Открывает журнал, если он включен настройкой server.wal.enabled. Журнал восстанавливает недоставленные
+     * сообщения прошлого запуска, генератор разошлет их первыми
+     */
+    private static WriteAheadLog openWriteAheadLog() {
+        if (!Boolean.parseBoolean(Settings.getString("server.wal.enabled", "false"))) {
+            return null;
+        }
+        Path dir = Generator.createDirInClassPath("wal");
+        if (dir == null) {
+            throw new IllegalStateException("Cannot create write-ahead log directory");
+        }
+        try {
+            WriteAheadLog wal = new WriteAheadLog(dir, Settings.getInt("server.wal.segmentSize", 64 * 1024 * 1024),
+                    Settings.getInt("server.wal.commitIntervalMicros", 2000), Settings.getInt("server.wal.batchSize", 4096));
+            ConsoleHelper.writeMessage("Журнал открыт, недоставленных сообщений: " + wal.recoveredCount());
+            return wal;
+        } catch (IOException e) {
+            //Без журнала сервер потерял бы и недоставленное прошлым запуском, и гарантию для новых сообщений
+            throw new IllegalStateException("Cannot open write-ahead log " + dir, e);
+        }
+    }
+
+    /**
+     * @param heartBeat ответ клиента на HEART_BEAT
+     * @return подписка клиента или null, если она записана с ошибкой - регистрация тогда повторяется
+     */
+    static Subscription parseSubscription(String heartBeat) {
+        try {
+            return Subscription.fromHeartBeat(heartBeat);
+        } catch (IllegalArgumentException e) {
+            ConsoleHelper.writeMessage("Неверная подписка: " + heartBeat + " - " + e.getMessage());
+            return null;
         }
-        return false;
     }
 
     /**
      * Класс, отвечающий за обмен информацией с каждым отдельным клиентом
      */
     private static class Handler implements Runnable {
-        private Socket socket;
+        private Connection connection;
+        private DeliveryContext deliveryContext;
 
         @Override
         public void run() {
-            ConsoleHelper.writeMessage("Установленно соединение с адресом " + socket.getRemoteSocketAddress());
-            String serviceName = null;
-            try (Connection connection = new Connection(socket)) {
+            ConsoleHelper.writeMessage("Установленно соединение с адресом " + connection.getRemoteSocketAddress());
+            try (Connection connection = this.connection) {
                 ConsoleHelper.writeMessage("Подключение к порту: " + connection.getRemoteSocketAddress());
-                serviceName = serverHandshake(connection);
-                serverMainLoop(connection, serviceName);
-            } catch (IOException | ClassNotFoundException e) {
+                ConnectionSubscriber subscriber = serverHandshake(connection);
+                serverMainLoop(subscriber);
+            } catch (IOException e) {
                 ConsoleHelper.writeMessage("Ошибка при обмене данными с удаленным адресом");
             }
-            if (serviceName != null) {
-                //После того как все исключения обработаны, удаляем запись из connectionMap
-                connectionMap.remove(serviceName);
-            }
             ConsoleHelper.writeMessage("Соединение с удаленным адресом закрыто");
         }
 
-        Handler(Socket socket) {
-            this.socket = socket;
+        Handler(Connection connection, DeliveryContext deliveryContext) {
+            this.connection = connection;
+            this.deliveryContext = deliveryContext;
         }
 
         /**
          * Метод, отвечающий за регистрацию клиента
          * @param connection соединение
-         * @return уникальное имя клиента
+         * @return зарегистрированный клиент
          * @throws IOException ошибка регистрации
-         * @throws ClassNotFoundException ошибка чтения сообщения
          */
-        private String serverHandshake(Connection connection) throws IOException, ClassNotFoundException {
+        private ConnectionSubscriber serverHandshake(Connection connection) throws IOException {
             while (true) {
                 // Сформировать и отправить команду на проверку сервиса
                 connection.send(new Message(MessageType.HEART_BEAT));
                 // Получить ответ клиента
                 Message message = connection.receive();
                 // Проверить, что получено сообщение хартбит
-                if (message.getType() == MessageType.HEART_BEAT) {
-                    String serviceName = message.getData();
+                if (message.getType() == MessageType.HEART_BEAT && message.getData() != null) {
+                    String serviceName = Subscription.serviceName(message.getData());
+                    Subscription subscription = parseSubscription(message.getData());
                     //Достать из ответа имя сервиса, проверить, что оно не пустое и сервис с таким именем еще не подключен
-                    if (!serviceName.isEmpty() && connectionMap.get(serviceName) == null) {
-                        // Добавить нового пользователя и соединение с ним в connectionMap
+                    if (subscription != null && !serviceName.isEmpty() && connectionMap.get(serviceName) == null) {
+                        // Добавить нового пользователя и соединение с ним в connectionMap. Имя могли занять параллельно,
+                        // или прежнее соединение с этим именем еще держит курсор - тогда запрашиваем хартбит снова
+                        ConnectionSubscriber subscriber = new ConnectionSubscriber(serviceName, subscription, connection, deliveryContext);
+                        if (!deliveryContext.register(subscriber)) {
+                            continue;
+                        }
                         ConsoleHelper.writeMessage("Сервис: " + connection.getRemoteSocketAddress() + " зарегистрирован под именем: " + serviceName);
                         // Отправить клиенту команду информирующую, что его хартбит принят
-                        connection.send(new Message(MessageType.REGISTERED));
-                        connectionMap.put(message.getData(), connection);
-                        return message.getData();
+                        try {
+                            connection.send(new Message(MessageType.REGISTERED));
+                        } catch (IOException e) {
+                            subscriber.close();
+                            throw e;
+                        }
+                        return subscriber;
                     }
                 }
             }
         }
 
         /**
-         * Метод отвечающий за обработку сообщений от клиента
-         * @param connection соединение
-         * @param serviceName имя клиента
+         * Метод отвечающий за обработку сообщений от клиента: подтверждения, кредиты и отключение
+         * @param subscriber зарегистрированный клиент
          * @throws IOException ошибка принятия сообщения
-         * @throws ClassNotFoundException ошибка чтения сообщения
          */
-        private void serverMainLoop(Connection connection, String serviceName) throws IOException, ClassNotFoundException {
-            while (true) {
-                //Пример
-                /*Message message = connection.receive();
-                if (message.getType() == MessageType.RESPONSE) {
-                    String s = serviceName + ": " + message.getData();
-                } else {
-                    ConsoleHelper.writeMessage("Error");
-                }*/
+        private void serverMainLoop(ConnectionSubscriber subscriber) throws IOException {
+            try {
+                subscriber.readLoop();
+            } finally {
+                subscriber.close();
             }
         }
     }
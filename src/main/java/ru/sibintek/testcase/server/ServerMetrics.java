@@ -0,0 +1,350 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.LatencyHistogram;
+import ru.sibintek.testcase.common.MessagePriority;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Счетчики сервера. Запись - инкремент LongAdder по индексу приоритета, без выделения памяти,
+ * скорости пересчитываются раз в секунду методом {@link #tick()}.
+ * Пока не вызван {@link #publish()}, метрики только считаются и в JMX не регистрируются
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+    static final String DOMAIN = "ru.sibintek.testcase";
+    private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+
+    private final IntSupplier bufferDepth;
+    private final LongAdder[] generated = counters();
+    private final LongAdder[] sent = counters();
+    private final LongAdder[] acked = counters();
+    private final LongAdder resent = new LongAdder();
+    private final LongAdder compressionInput = new LongAdder();
+    private final LongAdder compressionOutput = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder backpressureNanos = new LongAdder();
+    private final LongAdder refilled = new LongAdder();
+    private final LatencyHistogram refillLatency = new LatencyHistogram();
+    private final AtomicInteger clients = new AtomicInteger();
+    private volatile SpillStore spillStore;
+    private volatile MessageLog messageLog;
+    private volatile BufferBudget budget;
+    private volatile int targetGenerationRate;
+    private volatile MBeanServer mBeanServer;
+
+    //Значения счетчиков на прошлом тике и скорости за последнюю секунду, меняются только в tick
+    private final long[] lastGenerated = new long[PRIORITIES.length];
+    private final long[] lastSent = new long[PRIORITIES.length];
+    private final long[] lastAcked = new long[PRIORITIES.length];
+    private long lastTick = System.nanoTime();
+    private volatile double[][] rates = new double[3][PRIORITIES.length];
+
+    /**
+     * @param bufferDepth текущий размер буфера сообщений
+     */
+    ServerMetrics(IntSupplier bufferDepth) {
+        this.bufferDepth = bufferDepth;
+    }
+
+    /**
+     * Регистрирует метрики сервера в платформенном MBeanServer, клиенты регистрируются по мере подключения
+     */
+    void publish() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(DOMAIN + ":type=Server"));
+            mBeanServer = server;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void watchSpillStore(SpillStore spillStore) {
+        this.spillStore = spillStore;
+    }
+
+    void watchLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    void watchBudget(BufferBudget budget) {
+        this.budget = budget;
+    }
+
+    void targetGenerationRate(int messagesPerSecond) {
+        this.targetGenerationRate = messagesPerSecond;
+    }
+
+    void generated(MessagePriority priority) {
+        generated[priority.ordinal()].increment();
+    }
+
+    void sent(MessagePriority priority) {
+        sent[priority.ordinal()].increment();
+    }
+
+    void acked(MessagePriority priority) {
+        acked[priority.ordinal()].increment();
+    }
+
+    void resent() {
+        resent.increment();
+    }
+
+    /**
+     * @param inputBytes  размер пакета без сжатия
+     * @param outputBytes размер записанного пакета, равен входному, если сжатие не дало выигрыша
+     * @param nanos       время сжатия
+     */
+    void compressed(int inputBytes, int outputBytes, long nanos) {
+        compressionInput.add(inputBytes);
+        compressionOutput.add(outputBytes);
+        compressionNanos.add(nanos);
+    }
+
+    void backpressure(long nanos) {
+        backpressureNanos.add(nanos);
+    }
+
+    /**
+     * @param messages     сколько сообщений перенесено из хранилища в буфер
+     * @param latencyNanos от появления нужды в пополнении до сообщений в буфере
+     */
+    void refilled(int messages, long latencyNanos) {
+        refilled.add(messages);
+        refillLatency.record(latencyNanos);
+    }
+
+    void dropped() {
+        dropped.increment();
+    }
+
+    void dropped(int count) {
+        dropped.add(count);
+    }
+
+    void clientRegistered(String serviceName, ClientMetrics metrics) {
+        clients.incrementAndGet();
+        MBeanServer server = mBeanServer;
+        if (server != null) {
+            try {
+                server.registerMBean(metrics, clientName(serviceName));
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void clientClosed(String serviceName) {
+        clients.decrementAndGet();
+        MBeanServer server = mBeanServer;
+        if (server != null) {
+            try {
+                server.unregisterMBean(clientName(serviceName));
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Пересчитывает скорости по приращению счетчиков с прошлого вызова
+     */
+    synchronized void tick() {
+        long now = System.nanoTime();
+        double seconds = (now - lastTick) / 1e9;
+        lastTick = now;
+        if (seconds <= 0) {
+            return;
+        }
+        rates = new double[][]{rates(generated, lastGenerated, seconds), rates(sent, lastSent, seconds), rates(acked, lastAcked, seconds)};
+    }
+
+    @Override
+    public Map<String, Double> getGeneratedRate() {
+        return byPriority(rates[0]);
+    }
+
+    @Override
+    public Map<String, Double> getSentRate() {
+        return byPriority(rates[1]);
+    }
+
+    @Override
+    public Map<String, Double> getAckedRate() {
+        return byPriority(rates[2]);
+    }
+
+    @Override
+    public int getTargetGenerationRate() {
+        return targetGenerationRate;
+    }
+
+    @Override
+    public double getGenerationRate() {
+        double total = 0;
+        for (double rate : rates[0]) {
+            total += rate;
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getGeneratedTotal() {
+        return totals(generated);
+    }
+
+    @Override
+    public Map<String, Long> getSentTotal() {
+        return totals(sent);
+    }
+
+    @Override
+    public Map<String, Long> getAckedTotal() {
+        return totals(acked);
+    }
+
+    @Override
+    public int getBufferDepth() {
+        return bufferDepth.getAsInt();
+    }
+
+    @Override
+    public long getSpillBacklogMessages() {
+        SpillStore store = spillStore;
+        return store == null ? 0 : store.pendingMessages();
+    }
+
+    @Override
+    public long getSpillBacklogBytes() {
+        SpillStore store = spillStore;
+        return store == null ? 0 : store.pendingBytes();
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        BufferBudget current = budget;
+        return current == null ? 0 : current.used();
+    }
+
+    @Override
+    public long getBackpressureMillisTotal() {
+        return TimeUnit.NANOSECONDS.toMillis(backpressureNanos.sum());
+    }
+
+    @Override
+    public long getRefilledTotal() {
+        return refilled.sum();
+    }
+
+    @Override
+    public long getRefillLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(refillLatency.percentile(0.5));
+    }
+
+    @Override
+    public long getRefillLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(refillLatency.percentile(0.99));
+    }
+
+    @Override
+    public long getRefillLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(refillLatency.max());
+    }
+
+    @Override
+    public int getLogDepth() {
+        MessageLog log = messageLog;
+        return log == null ? 0 : log.size();
+    }
+
+    @Override
+    public int getDetachedCursors() {
+        MessageLog log = messageLog;
+        return log == null ? 0 : log.detachedCursors();
+    }
+
+    @Override
+    public long getCompressionInputBytesTotal() {
+        return compressionInput.sum();
+    }
+
+    @Override
+    public long getCompressionOutputBytesTotal() {
+        return compressionOutput.sum();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long output = compressionOutput.sum();
+        return output == 0 ? 1 : (double) compressionInput.sum() / output;
+    }
+
+    @Override
+    public long getCompressionMicrosTotal() {
+        return TimeUnit.NANOSECONDS.toMicros(compressionNanos.sum());
+    }
+
+    @Override
+    public long getResentTotal() {
+        return resent.sum();
+    }
+
+    @Override
+    public long getDroppedTotal() {
+        return dropped.sum();
+    }
+
+    @Override
+    public int getClients() {
+        return clients.get();
+    }
+
+    private static ObjectName clientName(String serviceName) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Client,name=" + ObjectName.quote(serviceName));
+    }
+
+    private static double[] rates(LongAdder[] counters, long[] last, double seconds) {
+        double[] rates = new double[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            long value = counters[i].sum();
+            rates[i] = (value - last[i]) / seconds;
+            last[i] = value;
+        }
+        return rates;
+    }
+
+    private static Map<String, Double> byPriority(double[] values) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (MessagePriority priority : PRIORITIES) {
+            result.put(priority.name(), values[priority.ordinal()]);
+        }
+        return result;
+    }
+
+    private static Map<String, Long> totals(LongAdder[] counters) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (MessagePriority priority : PRIORITIES) {
+            result.put(priority.name(), counters[priority.ordinal()].sum());
+        }
+        return result;
+    }
+
+    private static LongAdder[] counters() {
+        LongAdder[] counters = new LongAdder[PRIORITIES.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+}
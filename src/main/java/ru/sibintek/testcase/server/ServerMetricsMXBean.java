@@ -0,0 +1,107 @@
+package ru.sibintek.testcase.server;
+
+import java.util.Map;
+
+/**
+ * Метрики сервера, доступные по JMX под именем ru.sibintek.testcase:type=Server.
+ * Скорости - сообщений в секунду за последнюю секунду, ключ - приоритет
+ */
+public interface ServerMetricsMXBean {
+
+    Map<String, Double> getGeneratedRate();
+
+    Map<String, Double> getSentRate();
+
+    Map<String, Double> getAckedRate();
+
+    /**
+     * @return заданная скорость генерации, сообщений в секунду
+     */
+    int getTargetGenerationRate();
+
+    /**
+     * @return достигнутая за последнюю секунду скорость генерации по всем приоритетам
+     */
+    double getGenerationRate();
+
+    Map<String, Long> getGeneratedTotal();
+
+    Map<String, Long> getSentTotal();
+
+    Map<String, Long> getAckedTotal();
+
+    /**
+     * @return сообщений в буфере, ожидающих рассылки
+     */
+    int getBufferDepth();
+
+    /**
+     * @return сообщений в дисковом хранилище, еще не попавших в буфер
+     */
+    long getSpillBacklogMessages();
+
+    long getSpillBacklogBytes();
+
+    /**
+     * @return примерный объем сообщений в памяти: буфер и журнал рассылки, байт
+     */
+    long getMemoryBytes();
+
+    /**
+     * @return сколько генератор ждал места в памяти и хранилище при включенном обратном давлении
+     */
+    long getBackpressureMillisTotal();
+
+    /**
+     * @return сообщений, перенесенных из дискового хранилища обратно в буфер
+     */
+    long getRefilledTotal();
+
+    /**
+     * @return задержка пополнения буфера с диска: от момента, когда буфер стал нуждаться в сообщениях, до их появления в нем
+     */
+    long getRefillLatencyP50Micros();
+
+    long getRefillLatencyP99Micros();
+
+    long getRefillLatencyMaxMicros();
+
+    /**
+     * @return разосланных сообщений в журнале, которые подтвердили еще не все курсоры
+     */
+    int getLogDepth();
+
+    /**
+     * @return курсоры отключившихся клиентов, ожидающие переподключения
+     */
+    int getDetachedCursors();
+
+    /**
+     * @return байт в пакетах, которые пытались сжать, и байт, записанных вместо них
+     */
+    long getCompressionInputBytesTotal();
+
+    long getCompressionOutputBytesTotal();
+
+    /**
+     * @return во сколько раз сжатие уменьшило пакеты, 1 - сжатия не было
+     */
+    double getCompressionRatio();
+
+    /**
+     * @return суммарное время сжатия пакетов всеми потоками отправки
+     */
+    long getCompressionMicrosTotal();
+
+    /**
+     * @return повторные отправки после истечения таймаута подтверждения
+     */
+    long getResentTotal();
+
+    /**
+     * @return сообщения, не доставленные клиенту, который завершил работу или не переподключился вовремя
+     */
+    long getDroppedTotal();
+
+    int getClients();
+}
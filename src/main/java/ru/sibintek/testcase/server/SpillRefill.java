@@ -0,0 +1,208 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.Message;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Перенос сообщений из дискового хранилища обратно в буфер в собственном потоке, чтобы медленный диск
+ * не задерживал ни генерацию, ни планировщик сервера. Поток заранее читает из хранилища пачку до readAhead сообщений,
+ * поэтому, когда буфер нуждается в пополнении, сообщения переносятся из памяти, а диск читается для следующей пачки.
+ * Пополнение нужно, когда занятое бюджетом опустилось ниже нижней отметки - тогда буфер заполняется до верхней, -
+ * или когда в буфере меньше refillBelow сообщений - тогда переносится одна пачка даже сверх отметки:
+ * рассылка не должна простаивать с пустым буфером, пока на диске есть сообщения.
+ * Пачка читается в порядке приоритетов на момент чтения, в буфере сообщения снова упорядочиваются по приоритету.
+ * Генератор кладет сообщения через {@link #route(List)}: пока у пополнения есть очередь - на диске или в прочитанной пачке, -
+ * новые сообщения идут на диск за ней, иначе более новое сообщение обогнало бы в буфере более старое того же приоритета.
+ * О разобранных из буфера сообщениях сообщает рассылка через {@link #signal()}.
+ * Задержка пополнения - от появления нужды до сообщений в буфере - пишется в метрики
+ */
+class SpillRefill {
+    //Как часто перепроверять отметки, пока на диске есть сообщения: память освобождают и подтверждения клиентов
+    private static final long RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final SpillStore store;
+    private final MessageBuffer buffer;
+    private final BufferBudget budget;
+    private final Runnable onRefill;
+    private final ServerMetrics metrics;
+    private final int readAhead;
+    private final int refillBelow;
+    //Прочитанная заранее пачка, доступна только потоку пополнения
+    private final ArrayDeque<Message> prefetched = new ArrayDeque<>();
+    //Когда рассылка впервые сообщила о нужде, 0 - не сообщала
+    private final AtomicLong neededSince = new AtomicLong();
+    private final Thread thread;
+    //Сообщения, записанные на диск и еще не перенесенные в буфер, включая прочитанную пачку.
+    //Увеличивается до записи на диск, уменьшается после переноса в буфер: ноль значит, что все старые сообщения уже в буфере
+    private final AtomicLong backlog = new AtomicLong();
+    private volatile boolean running;
+    private volatile boolean waiting;
+
+    /**
+     * @param store       дисковое хранилище
+     * @param buffer      буфер сообщений, ожидающих рассылки
+     * @param budget      бюджет памяти с отметками
+     * @param onRefill    вызывается после пополнения буфера, будит рассылку
+     * @param metrics     метрики, в них пишется задержка пополнения
+     * @param readAhead   сколько сообщений читать с диска за один раз
+     * @param refillBelow сколько сообщений в буфере считается нехваткой независимо от отметок
+     */
+    SpillRefill(SpillStore store, MessageBuffer buffer, BufferBudget budget, Runnable onRefill, ServerMetrics metrics,
+                int readAhead, int refillBelow) {
+        this.store = store;
+        this.buffer = buffer;
+        this.budget = budget;
+        this.onRefill = onRefill;
+        this.metrics = metrics;
+        this.readAhead = Math.max(1, readAhead);
+        this.refillBelow = refillBelow;
+        //Сегменты прошлого запуска
+        this.backlog.set(store.pendingMessages());
+        this.thread = new Thread(this::run, "spill-refill");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Останавливает поток, прочитанную заранее пачку возвращает в буфер, чтобы она не потерялась
+     */
+    void stop() throws InterruptedException {
+        running = false;
+        thread.interrupt();
+        thread.join();
+        if (!prefetched.isEmpty()) {
+            //Пока пачка не в буфере, новые сообщения шли на диск, так что она старше всего, что в буфере
+            int count = prefetched.size();
+            prefetched.forEach(buffer::offer);
+            prefetched.clear();
+            backlog.addAndGet(-count);
+            onRefill.run();
+        }
+    }
+
+    /**
+     * Сообщения, помещающиеся в память до верхней отметки, - в буфер, остальные на диск.
+     * Пока у пополнения есть очередь, все идет на диск, чтобы внутри приоритета сохранялся порядок генерации
+     *
+     * @param messages сообщения в порядке генерации
+     */
+    void route(List<Message> messages) {
+        int direct = 0;
+        if (backlog.get() == 0) {
+            long room = budget.room();
+            //Последнее поместившееся сообщение может перейти отметку, тогда места не остается до ее снижения
+            while (direct < messages.size() && room > 0) {
+                Message message = messages.get(direct++);
+                buffer.offer(message);
+                room -= buffer.footprint(message);
+            }
+            if (direct > 0) {
+                onRefill.run();
+            }
+        }
+        if (direct == messages.size()) {
+            return;
+        }
+        backlog.addAndGet(messages.size() - direct);
+        int spilled = direct;
+        try {
+            for (; spilled < messages.size(); spilled++) {
+                store.append(messages.get(spilled));
+            }
+        } catch (IOException e) {
+            backlog.addAndGet(spilled - messages.size());
+            e.printStackTrace();
+        }
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Будит поток, если буфер нуждается в пополнении, а на диске есть сообщения. Вызывается рассылкой
+     * после каждой пачки, поэтому без нужды не делает ничего, кроме чтения счетчиков
+     */
+    void signal() {
+        if (waiting && backlog.get() > 0 && needed()) {
+            neededSince.compareAndSet(0, System.nanoTime());
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private boolean needed() {
+        return buffer.size() < refillBelow || budget.belowLow();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (prefetched.isEmpty()) {
+                    readAhead();
+                }
+                if (!prefetched.isEmpty() && needed()) {
+                    transfer();
+                    //Следующая пачка читается сразу, пока буфер разбирается
+                    continue;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            //Нужда, о которой сообщили, прошла сама, иначе задержка следующего пополнения считалась бы от нее
+            neededSince.set(0);
+            //Флаг ставится до проверки очереди: генератор, записавший на диск после проверки, увидит его и разбудит поток
+            waiting = true;
+            if (backlog.get() > 0) {
+                LockSupport.parkNanos(RECHECK_NANOS);
+            } else {
+                LockSupport.park();
+            }
+            waiting = false;
+        }
+    }
+
+    private void readAhead() throws IOException {
+        Message message;
+        while (prefetched.size() < readAhead && (message = store.poll()) != null) {
+            prefetched.add(message);
+        }
+    }
+
+    /**
+     * Ниже нижней отметки заполняет буфер до верхней, дочитывая диск, иначе переносит одну пачку
+     */
+    private void transfer() throws IOException {
+        long since = neededSince.getAndSet(0);
+        if (since == 0) {
+            since = System.nanoTime();
+        }
+        boolean fill = budget.belowLow();
+        long room = fill ? budget.room() : 0;
+        int moved = 0;
+        do {
+            Message message;
+            while ((fill ? room > 0 : moved < readAhead) && (message = prefetched.poll()) != null) {
+                buffer.offer(message);
+                room -= buffer.footprint(message);
+                moved++;
+            }
+            if (prefetched.isEmpty() && fill && room > 0) {
+                readAhead();
+            }
+        } while (fill && room > 0 && !prefetched.isEmpty());
+        if (moved > 0) {
+            backlog.addAndGet(-moved);
+            onRefill.run();
+            metrics.refilled(moved, System.nanoTime() - since);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessagePriority;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Дисковое хранилище сообщений, не поместившихся в буфер.
+ * Для каждого приоритета ведется свой сегментированный append-only лог, чтение идет от самого приоритетного лога
+ */
+public class SpillStore implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private final Map<MessagePriority, SegmentLog> logs = new EnumMap<>(MessagePriority.class);
+
+    public SpillStore(Path dir, int segmentSize) throws IOException {
+        for (MessagePriority priority : MessagePriority.values()) {
+            logs.put(priority, new SegmentLog(dir, priority, segmentSize));
+        }
+    }
+
+    /**
+     * Сохраняет сообщение в лог его приоритета
+     *
+     * @param message сообщение
+     * @throws IOException ошибка записи
+     */
+    public void append(Message message) throws IOException {
+        logs.get(message.getPriority()).append(message);
+    }
+
+    /**
+     * Достает самое приоритетное из сохраненных сообщений, внутри одного приоритета - в порядке записи
+     *
+     * @return сообщение или null, если хранилище пусто
+     * @throws IOException ошибка чтения
+     */
+    public Message poll() throws IOException {
+        for (SegmentLog log : logs.values()) {
+            Message message = log.poll();
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return logs.values().stream().allMatch(SegmentLog::isEmpty);
+    }
+
+    /**
+     * @return объем еще не прочитанных данных в байтах
+     */
+    public long pendingBytes() {
+        return logs.values().stream().mapToLong(SegmentLog::pendingBytes).sum();
+    }
+
+    /**
+     * @return количество еще не прочитанных сообщений
+     */
+    public long pendingMessages() {
+        return logs.values().stream().mapToLong(SegmentLog::pendingMessages).sum();
+    }
+
+    /**
+     * Сбрасывает накопленные в памяти записи на диск
+     *
+     * @throws IOException ошибка записи
+     */
+    public void flush() throws IOException {
+        for (SegmentLog log : logs.values()) {
+            log.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SegmentLog log : logs.values()) {
+            log.close();
+        }
+    }
+}
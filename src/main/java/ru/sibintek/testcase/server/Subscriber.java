@@ -0,0 +1,33 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.Subscription;
+
+/**
+ * Зарегистрированный на сервере клиент, которому рассылаются сообщения.
+ * Не зависит от того, обслуживается клиент отдельным потоком или event loop'ом
+ */
+interface Subscriber {
+
+    String getServiceName();
+
+    /**
+     * @return какие сообщения рассылать клиенту, задается при регистрации
+     */
+    Subscription getSubscription();
+
+    ClientMetrics getMetrics();
+
+    /**
+     * Вызывается после регистрации: клиент начинает читать журнал с подтвержденного смещения курсора
+     *
+     * @param cursor курсор клиента в журнале
+     */
+    void attach(MessageLog.Cursor cursor);
+
+    /**
+     * В журнал добавлены новые сообщения
+     */
+    void onAppended();
+
+    void close();
+}
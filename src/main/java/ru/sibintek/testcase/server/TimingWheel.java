@@ -0,0 +1,218 @@
+package ru.sibintek.testcase.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Хэшированное колесо таймеров для таймаутов подтверждений. Колесо - кольцо корзин, стрелка раз в тик
+ * переходит к следующей корзине и срабатывает ее таймеры, у которых не осталось полных оборотов.
+ * Постановка и отмена таймера - O(1) без блокировок: новые и отмененные таймеры проходят через очереди,
+ * корзины меняет только поток колеса. Точность - один тик, для таймаутов в секунды этого достаточно,
+ * а стоимость не растет с числом ожидающих подтверждений, в отличие от кучи ScheduledExecutorService.
+ * Задачи выполняются в потоке колеса, поэтому должны быть короткими
+ */
+public class TimingWheel implements AutoCloseable {
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean stopped;
+    //Номер тика, который обрабатывается следующим, меняется только потоком колеса
+    private long tick;
+
+    /**
+     * @param tick      длительность тика, она же точность таймеров
+     * @param unit      единица длительности
+     * @param wheelSize количество корзин, округляется вверх до степени двойки; таймеры дальше одного оборота ждут лишние обороты
+     * @param name      имя потока колеса
+     */
+    public TimingWheel(long tick, TimeUnit unit, int wheelSize, String name) {
+        if (tick <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+        this.tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        this.buckets = new Bucket[Math.max(size, 1)];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.mask = buckets.length - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Ставит задачу на выполнение через delay, но не раньше следующего тика
+     *
+     * @param task  задача
+     * @param delay задержка
+     * @param unit  единица задержки
+     * @return таймер, который можно отменить
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0)));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return сколько таймеров ждет срабатывания
+     */
+    public int pending() {
+        return pending.get();
+    }
+
+    /**
+     * Останавливает поток колеса, несработавшие таймеры не выполняются
+     */
+    @Override
+    public void close() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (!stopped) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            removeCancelled();
+            transferAdded();
+            buckets[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    /**
+     * Раскладывает новые таймеры по корзинам. Таймер с уже прошедшим сроком попадает в текущую корзину
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                continue;
+            }
+            long deadlineTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (deadlineTick - tick) / buckets.length;
+            buckets[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * Отложенная задача колеса
+     */
+    public class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        //Поля ниже меняются только потоком колеса
+        private long rounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Отменяет таймер, если он еще не сработал
+         *
+         * @return true, если задача теперь точно не выполнится
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+    }
+
+    /**
+     * Корзина - двусвязный список таймеров, доступна только потоку колеса
+     */
+    private class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.previous = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * Выполняет таймеры, дождавшиеся своего оборота, остальным уменьшает счетчик оборотов
+         */
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                        pending.decrementAndGet();
+                        try {
+                            timeout.task.run();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package ru.sibintek.testcase.server;
+
+/**
+ * Ведро токенов с наносекундным разрешением: токены прибывают равномерно со скоростью rate в секунду,
+ * копится не больше capacity. Потребитель резервирует токены заранее и ждет возвращенное время,
+ * поэтому несколько потоков делят одну скорость без общей очереди ожидания
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond скорость пополнения, токенов в секунду
+     * @param capacity      максимальный запас токенов, он же наибольший размер одного резерва.
+     *                      Запас больше резерва позволяет догнать скорость после того, как поток проспал дольше нужного
+     */
+    public TokenBucket(double ratePerSecond, int capacity) {
+        if (ratePerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Rate and capacity must be positive");
+        }
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Резервирует токены, при нехватке уходя в долг, который гасится поступлением следующих токенов
+     *
+     * @param count количество токенов, не больше capacity
+     * @return сколько наносекунд подождать, прежде чем использовать токены, 0 - можно сразу
+     */
+    public synchronized long reserve(int count) {
+        if (count > capacity) {
+            throw new IllegalArgumentException("Count " + count + " exceeds capacity " + (long) capacity);
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        tokens -= count;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+}
@@ -0,0 +1,583 @@
+package ru.sibintek.testcase.server;
+
+import ru.sibintek.testcase.common.ConsoleHelper;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Журнал упреждающей записи: постановка сообщения в рассылку (ENQUEUE), его полная доставка (COMPLETE)
+ * и выбывание без доставки части клиентов, чьи курсоры удалены (DROPPED).
+ * Записи копятся в памяти и сбрасываются на диск одним fsync на группу - по истечении commitInterval
+ * или при накоплении batchSize записей, так fsync не приходится на каждое сообщение.
+ * Генератор ждет {@link #awaitDurable(long)} перед тем, как отдать пачку в рассылку, подтверждения не ждут:
+ * потерянный при сбое COMPLETE приводит только к повторной доставке.
+ * <p>
+ * Журнал нарезан на сегменты, сегмент удаляется, когда доставлены все поставленные в нем сообщения
+ * и все сегменты до него уже удалены. При открытии недоставленные сообщения восстанавливаются,
+ * переписываются в новый сегмент, а старые сегменты удаляются. Записи, которые этот код не умеет разобрать,
+ * не пропускаются - журнал не открывается, а сегменты остаются на месте.
+ * <pre>
+ * Запись:
+ * int    длина записи без этого поля и контрольной суммы
+ * int    CRC32C типа и содержимого
+ * byte   тип: 1 - ENQUEUE, 2 - COMPLETE, 3 - DROPPED
+ * ...    ENQUEUE - кадр {@link MessageCodec}, COMPLETE и DROPPED - long эпоха и long порядковый номер id
+ * </pre>
+ */
+public final class WriteAheadLog implements Closeable {
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final byte ENQUEUE = 1;
+    private static final byte COMPLETE = 2;
+    private static final byte DROPPED = 3;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 1;
+    private static final int SETTLE_RECORD_SIZE = RECORD_HEADER_SIZE + 16;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Path dir;
+    private final long segmentSize;
+    private final long commitIntervalNanos;
+    private final int batchSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition commitRequested = lock.newCondition();
+    private final Condition committed = lock.newCondition();
+    //Поля ниже меняются под lock
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final ArrayDeque<Chunk> sealed = new ArrayDeque<>();
+    //Освобожденные после записи буферы кусков, чтобы не выделять новый на каждую группу
+    private final ArrayDeque<ByteBuffer> spareBuffers = new ArrayDeque<>();
+    private Chunk current;
+    private long appendedLsn;
+    private long durableLsn;
+    private int pendingRecords;
+    private long firstPendingAt;
+    private long nextSegmentId;
+    private IOException failure;
+    private boolean closed;
+    private final CRC32C crc = new CRC32C();
+
+    //Какому сегменту принадлежат сообщения: эпоха -> первый номер непрерывного диапазона -> диапазон
+    private final Map<Long, ConcurrentSkipListMap<Long, Block>> blocks = new ConcurrentHashMap<>();
+    private final Thread committer;
+    private List<Message> recovered;
+
+    /**
+     * Открывает журнал, восстанавливая недоставленные сообщения прошлого запуска
+     *
+     * @param dir                 директория журнала
+     * @param segmentSize         размер сегмента в байтах
+     * @param commitIntervalMicros сколько первая несброшенная запись может ждать fsync
+     * @param batchSize           количество записей, при котором fsync выполняется не дожидаясь интервала
+     * @throws IOException ошибка чтения или записи, в том числе запись неизвестного типа или версии
+     */
+    public WriteAheadLog(Path dir, long segmentSize, long commitIntervalMicros, int batchSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.commitIntervalNanos = TimeUnit.MICROSECONDS.toNanos(commitIntervalMicros);
+        this.batchSize = batchSize;
+        List<Path> previous = existingSegments();
+        List<Message> undelivered = recover(previous);
+        this.committer = new Thread(this::commitLoop, "wal-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+        if (!undelivered.isEmpty()) {
+            try {
+                awaitDurable(enqueue(undelivered));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while rewriting recovered messages", e);
+            }
+        }
+        for (Path path : previous) {
+            Files.deleteIfExists(path);
+        }
+        this.recovered = undelivered;
+    }
+
+    public int recoveredCount() {
+        return recovered.size();
+    }
+
+    /**
+     * @return недоставленные сообщения прошлого запуска в порядке генерации, возвращаются один раз
+     */
+    public List<Message> takeRecovered() {
+        List<Message> result = recovered;
+        recovered = new ArrayList<>();
+        return result;
+    }
+
+    /**
+     * Записывает постановку пачки сообщений в рассылку
+     *
+     * @param messages сообщения, подряд идущие номера одной эпохи хранятся одним диапазоном
+     * @return номер, который нужно передать в {@link #awaitDurable(long)}
+     * @throws IOException журнал закрыт или запись на диск завершилась ошибкой
+     */
+    public long enqueue(List<Message> messages) throws IOException {
+        lock.lock();
+        try {
+            checkWritable();
+            int size = 0;
+            for (Message message : messages) {
+                size += RECORD_HEADER_SIZE + MessageCodec.encodedLength(message);
+            }
+            Segment segment = reserve(size);
+            ByteBuffer buffer = current.buffer;
+            Block block = null;
+            for (Message message : messages) {
+                int start = buffer.position();
+                buffer.putInt(0).putInt(0).put(ENQUEUE);
+                MessageCodec.encode(message, buffer);
+                seal(buffer, start);
+                if (block == null || block.epoch != message.getEpoch() || block.last + 1 != message.getSequence()) {
+                    block = new Block(message.getEpoch(), message.getSequence(), segment);
+                    blocks.computeIfAbsent(block.epoch, epoch -> new ConcurrentSkipListMap<>()).put(block.first, block);
+                    segment.blocks.add(block);
+                } else {
+                    block.last = message.getSequence();
+                }
+            }
+            segment.live.addAndGet(messages.size());
+            return appended(messages.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Записывает полную доставку сообщения, на диск запись попадет с ближайшей группой
+     *
+     * @param message сообщение, ранее записанное через {@link #enqueue(List)}
+     */
+    public void completed(Message message) {
+        settle(message, COMPLETE);
+    }
+
+    /**
+     * Записывает, что сообщение больше не будет доставлено: его не подтвердил клиент, чей курсор удален.
+     * При восстановлении такое сообщение, как и доставленное, не возвращается в рассылку
+     *
+     * @param message сообщение, ранее записанное через {@link #enqueue(List)}
+     */
+    public void dropped(Message message) {
+        settle(message, DROPPED);
+    }
+
+    private void settle(Message message, byte kind) {
+        Segment segment = segmentOf(message);
+        if (segment == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (failure != null || closed) {
+                return;
+            }
+            reserve(SETTLE_RECORD_SIZE);
+            ByteBuffer buffer = current.buffer;
+            int start = buffer.position();
+            buffer.putInt(0).putInt(0).put(kind).putLong(message.getEpoch()).putLong(message.getSequence());
+            seal(buffer, start);
+            appended(1);
+        } finally {
+            lock.unlock();
+        }
+        segment.live.decrementAndGet();
+    }
+
+    /**
+     * Ждет, пока записи до указанного номера окажутся на диске
+     *
+     * @param lsn номер из {@link #enqueue(List)}
+     * @throws IOException          запись на диск завершилась ошибкой
+     * @throws InterruptedException поток прерван
+     */
+    public void awaitDurable(long lsn) throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            while (durableLsn < lsn && failure == null) {
+                committed.await();
+            }
+            if (durableLsn < lsn) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Сбрасывает накопленные записи на диск и закрывает журнал
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            commitRequested.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                segment.closeChannel();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Write-ahead log is closed");
+        }
+    }
+
+    /**
+     * Готовит место под записи в текущем куске, открывая новый сегмент, если текущий заполнен
+     *
+     * @return сегмент, в который попадут записи
+     */
+    private Segment reserve(int size) {
+        Segment segment = current == null ? null : current.segment;
+        if (segment == null || segment.appendedBytes > 0 && segment.appendedBytes + size > segmentSize) {
+            segment = new Segment(dir.resolve(String.format("%019d%s", nextSegmentId++, SEGMENT_SUFFIX)));
+            segments.addLast(segment);
+            sealCurrent();
+            current = newChunk(segment, size);
+        } else if (current.buffer.remaining() < size) {
+            sealCurrent();
+            current = newChunk(segment, size);
+        }
+        segment.appendedBytes += size;
+        return segment;
+    }
+
+    private Chunk newChunk(Segment segment, int size) {
+        ByteBuffer buffer = size <= CHUNK_SIZE ? spareBuffers.pollFirst() : null;
+        return new Chunk(segment, buffer != null ? buffer : ByteBuffer.allocate(Math.max(CHUNK_SIZE, size)));
+    }
+
+    private void sealCurrent() {
+        if (current != null && current.buffer.position() > 0) {
+            sealed.addLast(current);
+        }
+        current = null;
+    }
+
+    private long appended(int records) {
+        if (pendingRecords == 0) {
+            firstPendingAt = System.nanoTime();
+        }
+        pendingRecords += records;
+        appendedLsn += records;
+        if (pendingRecords >= batchSize) {
+            commitRequested.signal();
+        } else if (pendingRecords == records) {
+            //Первая запись группы - будим сборщик, чтобы он отсчитал интервал
+            commitRequested.signal();
+        }
+        return appendedLsn;
+    }
+
+    private void seal(ByteBuffer buffer, int start) {
+        int end = buffer.position();
+        int length = end - start - 8;
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + start + 8, length);
+        buffer.putInt(start, length);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private Segment segmentOf(Message message) {
+        ConcurrentSkipListMap<Long, Block> epochBlocks = blocks.get(message.getEpoch());
+        if (epochBlocks == null) {
+            return null;
+        }
+        Map.Entry<Long, Block> entry = epochBlocks.floorEntry(message.getSequence());
+        if (entry == null || entry.getValue().last < message.getSequence()) {
+            return null;
+        }
+        return entry.getValue().segment;
+    }
+
+    private void commitLoop() {
+        List<Chunk> chunks = new ArrayList<>();
+        Segment writing = null;
+        while (true) {
+            long lsn;
+            lock.lock();
+            try {
+                try {
+                    while (!commitDue()) {
+                        if (pendingRecords == 0) {
+                            commitRequested.await();
+                        } else {
+                            commitRequested.awaitNanos(firstPendingAt + commitIntervalNanos - System.nanoTime());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (pendingRecords == 0) {
+                    return;
+                }
+                chunks.addAll(sealed);
+                sealed.clear();
+                if (current != null && current.buffer.position() > 0) {
+                    chunks.add(current);
+                    current = newChunk(current.segment, 0);
+                }
+                lsn = appendedLsn;
+                pendingRecords = 0;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                for (Chunk chunk : chunks) {
+                    if (chunk.segment != writing) {
+                        if (writing != null) {
+                            //Сегмент больше не дописывается
+                            writing.channel.force(false);
+                            writing.closeChannel();
+                        }
+                        writing = chunk.segment;
+                        writing.channel = FileChannel.open(writing.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    }
+                    ByteBuffer buffer = chunk.buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        writing.channel.write(buffer);
+                    }
+                }
+                writing.channel.force(false);
+                lock.lock();
+                try {
+                    for (Chunk chunk : chunks) {
+                        if (chunk.buffer.capacity() == CHUNK_SIZE) {
+                            spareBuffers.addLast(chunk.buffer.clear());
+                        }
+                    }
+                    durableLsn = lsn;
+                    committed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                chunks.clear();
+                deleteDeliveredSegments(writing);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    committed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean commitDue() {
+        return pendingRecords > 0 && (closed || pendingRecords >= batchSize || System.nanoTime() - firstPendingAt >= commitIntervalNanos)
+                || pendingRecords == 0 && closed;
+    }
+
+    /**
+     * Удаляет сегменты с начала журнала, пока все поставленные в них сообщения доставлены.
+     * Удалять можно только с начала: в более новых сегментах лежат COMPLETE и DROPPED для более старых
+     */
+    private void deleteDeliveredSegments(Segment writing) throws IOException {
+        List<Segment> deleted = new ArrayList<>();
+        lock.lock();
+        try {
+            while (segments.size() > 1) {
+                Segment head = segments.peekFirst();
+                if (head == writing || current != null && head == current.segment || head.live.get() > 0) {
+                    break;
+                }
+                deleted.add(segments.removeFirst());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : deleted) {
+            for (Block block : segment.blocks) {
+                blocks.get(block.epoch).remove(block.first, block);
+            }
+            segment.closeChannel();
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    private List<Path> existingSegments() throws IOException {
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(existing::add);
+        }
+        existing.sort(null);
+        if (!existing.isEmpty()) {
+            String name = existing.get(existing.size() - 1).getFileName().toString();
+            nextSegmentId = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())) + 1;
+        }
+        return existing;
+    }
+
+    /**
+     * Проходит сегменты по порядку: ENQUEUE добавляет сообщение, COMPLETE и DROPPED убирают.
+     * Недописанная запись или запись с неверной контрольной суммой завершает чтение сегмента - это хвост,
+     * не попавший на диск при сбое, он отбрасывается с записью в консоль. Запись с верной суммой, которую
+     * не удается разобрать, - другой формат, а не сбой: пропустить ее значило бы молча потерять сообщения
+     *
+     * @throws IOException ошибка чтения или запись неизвестного типа или версии
+     */
+    private static List<Message> recover(List<Path> segments) throws IOException {
+        Map<Id, Message> undelivered = new LinkedHashMap<>();
+        CRC32C crc = new CRC32C();
+        for (Path path : segments) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                if (torn(buffer, crc)) {
+                    ConsoleHelper.writeMessage(String.format("Журнал %s: отброшен недописанный хвост %d байт с позиции %d",
+                            path.getFileName(), buffer.remaining(), start));
+                    break;
+                }
+                int length = buffer.getInt(start);
+                ByteBuffer record = buffer.duplicate().position(start + 9).limit(start + 8 + length);
+                byte kind = buffer.get(start + 8);
+                if (kind == ENQUEUE) {
+                    Message message = decode(record, path, start);
+                    undelivered.put(new Id(message.getEpoch(), message.getSequence()), message);
+                } else if ((kind == COMPLETE || kind == DROPPED) && record.remaining() == 16) {
+                    undelivered.remove(new Id(record.getLong(), record.getLong()));
+                } else {
+                    throw new IOException(String.format("Unknown record kind %d of %d bytes in %s at %d",
+                            kind, length, path, start));
+                }
+                buffer.position(start + 8 + length);
+            }
+        }
+        List<Message> result = new ArrayList<>(undelivered.values());
+        result.sort(Comparator.comparingLong(Message::getEpoch).thenComparingLong(Message::getSequence));
+        return result;
+    }
+
+    /**
+     * @return true, если с позиции буфера нет целой записи с верной контрольной суммой
+     */
+    private static boolean torn(ByteBuffer buffer, CRC32C crc) {
+        int start = buffer.position();
+        if (buffer.remaining() < RECORD_HEADER_SIZE) {
+            return true;
+        }
+        int length = buffer.getInt(start);
+        if (length < 1 || length > buffer.remaining() - 8) {
+            return true;
+        }
+        crc.reset();
+        crc.update(buffer.array(), start + 8, length);
+        return (int) crc.getValue() != buffer.getInt(start + 4);
+    }
+
+    private static Message decode(ByteBuffer record, Path path, int position) throws IOException {
+        Message message;
+        try {
+            message = MessageCodec.decode(record);
+        } catch (MessageCodec.UnsupportedVersionException e) {
+            throw new MessageCodec.UnsupportedVersionException(e.getVersion(), path + " at " + position);
+        } catch (IOException e) {
+            throw new IOException(String.format("Undecodable message record in %s at %d", path, position), e);
+        }
+        if (message == null || record.hasRemaining()) {
+            throw new IOException(String.format("Message frame does not match record length in %s at %d", path, position));
+        }
+        return message;
+    }
+
+    private record Id(long epoch, long sequence) {
+    }
+
+    /**
+     * Непрерывный диапазон номеров одной эпохи, поставленных в одном сегменте
+     */
+    private static class Block {
+        private final long epoch;
+        private final long first;
+        private final Segment segment;
+        private volatile long last;
+
+        Block(long epoch, long first, Segment segment) {
+            this.epoch = epoch;
+            this.first = first;
+            this.last = first;
+            this.segment = segment;
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final List<Block> blocks = new ArrayList<>();
+        //Сколько поставленных в сегменте сообщений еще не доставлено
+        private final AtomicLong live = new AtomicLong();
+        //Меняется под lock
+        private long appendedBytes;
+        //Используется только потоком сброса
+        private FileChannel channel;
+
+        Segment(Path path) {
+            this.path = path;
+        }
+
+        void closeChannel() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private static class Chunk {
+        private final Segment segment;
+        private final ByteBuffer buffer;
+
+        Chunk(Segment segment, ByteBuffer buffer) {
+            this.segment = segment;
+            this.buffer = buffer;
+        }
+    }
+}
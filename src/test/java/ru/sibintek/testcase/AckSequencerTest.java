@@ -0,0 +1,47 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.client.AckSequencer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class AckSequencerTest {
+
+    @Test
+    public void acknowledgesOnlyContiguousCompletedPrefix() {
+        List<Long> acks = new ArrayList<>();
+        AckSequencer sequencer = new AckSequencer(acks::add);
+        for (long tag = 1; tag <= 5; tag++) {
+            sequencer.received(tag);
+        }
+        sequencer.completed(3);
+        sequencer.completed(2);
+        Assert.assertTrue(acks.isEmpty());
+
+        sequencer.completed(1);
+        Assert.assertEquals(Collections.singletonList(3L), acks);
+
+        sequencer.completed(5);
+        sequencer.completed(4);
+        Assert.assertEquals(Arrays.asList(3L, 5L), acks);
+    }
+
+    @Test
+    public void failedTagStopsAcknowledgement() {
+        List<Long> acks = new ArrayList<>();
+        AckSequencer sequencer = new AckSequencer(acks::add);
+        for (long tag = 1; tag <= 5; tag++) {
+            sequencer.received(tag);
+        }
+        sequencer.completed(1);
+        sequencer.failed(3);
+        sequencer.completed(2);
+        sequencer.completed(4);
+        sequencer.completed(5);
+        Assert.assertEquals(Arrays.asList(1L, 2L), acks);
+    }
+}
@@ -0,0 +1,36 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.common.LatencyHistogram;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesStayWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value * 1000);
+        }
+        Assert.assertEquals(10_000, histogram.count());
+        assertClose(5_000_000, histogram.percentile(0.5));
+        assertClose(9_900_000, histogram.percentile(0.99));
+        assertClose(10_000_000, histogram.max());
+    }
+
+    @Test
+    public void emptyAndResetHistogramReportZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.percentile(0.99));
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+        Assert.assertEquals(Long.MAX_VALUE, histogram.max());
+        Assert.assertEquals(0, histogram.percentile(0.5));
+        histogram.reset();
+        Assert.assertEquals(0, histogram.count());
+    }
+
+    private static void assertClose(long expected, long actual) {
+        Assert.assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected * 1.125);
+    }
+}
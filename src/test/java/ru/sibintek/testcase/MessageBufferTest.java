@@ -0,0 +1,243 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessagePriority;
+import ru.sibintek.testcase.common.MessageType;
+import ru.sibintek.testcase.server.BufferBudget;
+import ru.sibintek.testcase.server.MessageBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MessageBufferTest {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    @Test
+    public void pollsByPriorityAndFifoWithinPriority() {
+        MessageBuffer buffer = new MessageBuffer();
+        List<Message> low = new ArrayList<>();
+        List<Message> high = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Message lowMessage = message(MessagePriority.LOW, i);
+            Message highMessage = message(MessagePriority.HIGH, i);
+            low.add(lowMessage);
+            high.add(highMessage);
+            buffer.offer(lowMessage);
+            buffer.offer(highMessage);
+        }
+        Assert.assertEquals(200, buffer.size());
+        Assert.assertEquals(100, buffer.size(MessagePriority.HIGH));
+        Assert.assertEquals(0, buffer.size(MessagePriority.MEDIUM));
+
+        List<Message> drained = new ArrayList<>();
+        Assert.assertEquals(150, buffer.drainTo(drained, 150));
+        Assert.assertEquals(high, drained.subList(0, 100));
+        Assert.assertEquals(low.subList(0, 50), drained.subList(100, 150));
+        for (Message expected : low.subList(50, 100)) {
+            Assert.assertEquals(expected, buffer.poll());
+        }
+        Assert.assertNull(buffer.poll());
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void blockingPollWakesOnOffer() throws Exception {
+        MessageBuffer buffer = new MessageBuffer();
+        Assert.assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+
+        CompletableFuture<Message> taken = CompletableFuture.supplyAsync(() -> {
+            try {
+                return buffer.take();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(50);
+        Assert.assertFalse(taken.isDone());
+        Message message = message(MessagePriority.MEDIUM, 0);
+        buffer.offer(message);
+        Assert.assertEquals(message, taken.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void offHeapStorageKeepsOrderAcrossChunks() {
+        MessageBuffer buffer = new MessageBuffer(MessageBuffer.Storage.OFF_HEAP);
+        List<Message> high = new ArrayList<>();
+        List<Message> low = new ArrayList<>();
+        //Несколько участков по 1 МБ на приоритет, выборка идет вперемешку с добавлением
+        List<Message> taken = new ArrayList<>();
+        for (int i = 0; i < 60_000; i++) {
+            Message lowMessage = message(MessagePriority.LOW, i);
+            Message highMessage = message(MessagePriority.HIGH, i);
+            low.add(lowMessage);
+            high.add(highMessage);
+            buffer.offer(lowMessage);
+            buffer.offer(highMessage);
+            if (i % 3 == 0) {
+                taken.add(buffer.poll());
+            }
+        }
+        Assert.assertEquals(120_000 - taken.size(), buffer.size());
+        Assert.assertEquals(high.subList(0, taken.size()), taken);
+        Assert.assertTrue(buffer.bytes() > 0);
+        List<Message> rest = new ArrayList<>();
+        buffer.drainTo(rest, Integer.MAX_VALUE);
+        Assert.assertEquals(high.subList(taken.size(), high.size()), rest.subList(0, high.size() - taken.size()));
+        Assert.assertEquals(low, rest.subList(high.size() - taken.size(), rest.size()));
+        Assert.assertEquals(low.get(7).getData(), rest.get(high.size() - taken.size() + 7).getData());
+        Assert.assertNull(buffer.poll());
+        Assert.assertEquals(0, buffer.bytes());
+
+        //Опустевший участок переиспользуется
+        Message again = message(MessagePriority.MEDIUM, 0);
+        buffer.offer(again);
+        Assert.assertEquals(again, buffer.poll());
+    }
+
+    @Test
+    public void budgetWatermarksFollowBufferBytes() {
+        MessageBuffer buffer = new MessageBuffer();
+        int footprint = BufferBudget.footprint(message(MessagePriority.LOW, 0));
+        //Верхняя отметка - 10 сообщений, нижняя - 5
+        BufferBudget budget = new BufferBudget(20L * footprint, 0.5, 0.25, 0, false, buffer::bytes);
+        for (int i = 0; i < 8; i++) {
+            buffer.offer(message(MessagePriority.LOW, i));
+        }
+        Assert.assertEquals(8L * footprint, budget.used());
+        Assert.assertEquals(2L * footprint, budget.room());
+        Assert.assertFalse(budget.belowLow());
+        Assert.assertFalse(budget.saturated(null));
+
+        buffer.offer(message(MessagePriority.LOW, 8));
+        buffer.offer(message(MessagePriority.LOW, 9));
+        Assert.assertTrue(budget.saturated(null));
+
+        buffer.drainTo(new ArrayList<>(), 4);
+        buffer.poll();
+        Assert.assertFalse(budget.belowLow());
+        buffer.poll();
+        Assert.assertTrue(budget.belowLow());
+        buffer.drainTo(new ArrayList<>(), 10);
+        Assert.assertEquals(0, buffer.bytes());
+    }
+
+    @Test
+    public void offHeapBytesMatchBudgetFootprint() {
+        MessageBuffer buffer = new MessageBuffer(MessageBuffer.Storage.OFF_HEAP);
+        int footprint = buffer.footprint(message(MessagePriority.LOW, 0));
+        //Вне кучи сообщение занимает свой кадр, без заголовков объектов
+        Assert.assertTrue(footprint < BufferBudget.footprint(message(MessagePriority.LOW, 0)));
+        BufferBudget budget = new BufferBudget(20L * footprint, 0.5, 0.25, 0, false, buffer::bytes);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(budget.room() > 0);
+            buffer.offer(message(MessagePriority.LOW, i));
+        }
+        Assert.assertEquals(10L * footprint, budget.used());
+        Assert.assertEquals(0, budget.room());
+
+        buffer.drainTo(new ArrayList<>(), 6);
+        Assert.assertTrue(budget.belowLow());
+        buffer.drainTo(new ArrayList<>(), 10);
+        Assert.assertEquals(0, buffer.bytes());
+    }
+
+    @Test
+    public void offHeapBandKeepsOrderOfEachProducerUnderConcurrency() throws Exception {
+        MessageBuffer buffer = new MessageBuffer(MessageBuffer.Storage.OFF_HEAP);
+        int producers = 4;
+        int perProducer = 50_000;
+        //Потребители крутятся в ожидании, поэтому у каждого участника свой поток
+        ExecutorService executor = Executors.newFixedThreadPool(producers + 2);
+        List<CompletableFuture<Void>> produced = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            produced.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    //Номер производителя в эпохе, порядковый номер - в последовательности
+                    buffer.offer(new Message(producer, i, MessageType.SERVER_PUSH, MessagePriority.MEDIUM, String.valueOf(i)));
+                }
+            }, executor));
+        }
+        List<List<Message>> received = new ArrayList<>();
+        List<CompletableFuture<Void>> consumed = new ArrayList<>();
+        AtomicLong total = new AtomicLong();
+        for (int c = 0; c < 2; c++) {
+            List<Message> messages = new ArrayList<>();
+            received.add(messages);
+            consumed.add(CompletableFuture.runAsync(() -> {
+                while (total.get() < (long) producers * perProducer) {
+                    Message message = buffer.poll();
+                    if (message != null) {
+                        messages.add(message);
+                        total.incrementAndGet();
+                    }
+                }
+            }, executor));
+        }
+        try {
+            CompletableFuture.allOf(produced.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+            CompletableFuture.allOf(consumed.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        int count = 0;
+        for (List<Message> messages : received) {
+            long[] seen = new long[producers];
+            Arrays.fill(seen, -1);
+            for (Message message : messages) {
+                int producer = (int) message.getEpoch();
+                //Каждый потребитель видит сообщения одного производителя по возрастанию
+                Assert.assertTrue(message.getSequence() > seen[producer]);
+                seen[producer] = message.getSequence();
+                last[producer] = Math.max(last[producer], message.getSequence());
+                count++;
+            }
+        }
+        Assert.assertEquals(producers * perProducer, count);
+        for (long sequence : last) {
+            Assert.assertEquals(perProducer - 1, sequence);
+        }
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertEquals(0, buffer.bytes());
+    }
+
+    @Test
+    public void requeuedMessagesComeBeforeNewerOnes() {
+        for (MessageBuffer.Storage storage : MessageBuffer.Storage.values()) {
+            MessageBuffer buffer = new MessageBuffer(storage);
+            List<Message> generated = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                generated.add(message(i % 2 == 0 ? MessagePriority.LOW : MessagePriority.HIGH, i));
+                buffer.offer(generated.get(i));
+            }
+            List<Message> taken = new ArrayList<>();
+            buffer.drainTo(taken, 4);
+            Message newer = message(MessagePriority.LOW, 6);
+            buffer.offer(newer);
+            buffer.requeue(taken);
+            Assert.assertEquals(7, buffer.size());
+            Assert.assertEquals(3, buffer.size(MessagePriority.HIGH));
+
+            List<Message> all = new ArrayList<>();
+            buffer.drainTo(all, Integer.MAX_VALUE);
+            Assert.assertEquals(Arrays.asList(generated.get(1), generated.get(3), generated.get(5),
+                    generated.get(0), generated.get(2), generated.get(4), newer), all);
+            Assert.assertEquals(0, buffer.bytes());
+        }
+    }
+
+    private static Message message(MessagePriority priority, int index) {
+        return new Message(1, SEQUENCE.incrementAndGet(), MessageType.SERVER_PUSH, priority, String.valueOf(index));
+    }
+}
@@ -0,0 +1,191 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.common.FrameCompressor;
+import ru.sibintek.testcase.common.FramePool;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+import ru.sibintek.testcase.common.MessagePriority;
+import ru.sibintek.testcase.common.MessageType;
+import ru.sibintek.testcase.common.SharedFrame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MessageCodecTest {
+
+    @Test
+    public void roundTripThroughReusedBuffer() throws IOException {
+        Message push = Message.generateMessage();
+        Message heartBeat = new Message(MessageType.HEART_BEAT);
+        Message response = new Message(MessageType.RESPONSE, "ответ 😀");
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        for (Message message : new Message[]{push, heartBeat, response}) {
+            int before = buffer.position();
+            MessageCodec.encode(message, buffer);
+            Assert.assertEquals(MessageCodec.encodedLength(message), buffer.position() - before);
+        }
+        buffer.flip();
+        Message decodedPush = MessageCodec.decode(buffer);
+        Assert.assertEquals(push, decodedPush);
+        Assert.assertTrue(push.getTimestamp() > 0);
+        Assert.assertEquals(push.getTimestamp(), decodedPush.getTimestamp());
+        Assert.assertEquals(push.getSequence(), decodedPush.getSequence());
+        Assert.assertEquals(push.getEpoch(), heartBeat.getEpoch());
+        Assert.assertTrue(heartBeat.getSequence() > push.getSequence());
+        Assert.assertEquals(heartBeat, MessageCodec.decode(buffer));
+        Assert.assertEquals(response, MessageCodec.decode(buffer));
+        Assert.assertNull(MessageCodec.decode(buffer));
+    }
+
+    @Test
+    public void batchAssignsConsecutiveDeliveryTags() throws IOException {
+        List<Message> batch = Arrays.asList(Message.generateMessage(), Message.generateMessage(), Message.generateMessage());
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.batchLength(batch) + MessageCodec.ACK_FRAME_SIZE);
+        MessageCodec.encodeBatch(41, batch, buffer);
+        MessageCodec.encode(new Message(MessageType.ACK, 43), buffer);
+        buffer.flip();
+
+        List<Message> decoded = new ArrayList<>();
+        Assert.assertTrue(MessageCodec.decode(buffer, decoded::add));
+        Assert.assertEquals(batch, decoded);
+        for (int i = 0; i < decoded.size(); i++) {
+            Assert.assertEquals(41 + i, decoded.get(i).getDeliveryTag());
+        }
+        Message ack = MessageCodec.decode(buffer);
+        Assert.assertEquals(MessageType.ACK, ack.getType());
+        Assert.assertEquals(43, ack.getDeliveryTag());
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void sharedFramesBehindBatchHeaderMatchEncodedBatch() throws IOException {
+        List<Message> batch = Arrays.asList(Message.generateMessage(), Message.generateMessage());
+        FramePool pool = new FramePool(1024 * 1024);
+        List<SharedFrame> frames = new ArrayList<>();
+        int framesLength = 0;
+        for (Message message : batch) {
+            SharedFrame frame = SharedFrame.encode(message, pool);
+            frames.add(frame);
+            framesLength += frame.length();
+        }
+        ByteBuffer gathered = ByteBuffer.allocate(MessageCodec.batchLength(batch));
+        MessageCodec.encodeBatchHeader(7, frames.size(), framesLength, gathered);
+        for (SharedFrame frame : frames) {
+            gathered.put(frame.duplicate());
+        }
+        ByteBuffer encoded = ByteBuffer.allocate(MessageCodec.batchLength(batch));
+        MessageCodec.encodeBatch(7, batch, encoded);
+        Assert.assertEquals(encoded.flip(), gathered.flip());
+
+        //Вид кадра не сдвигает общий буфер, кадр можно писать в несколько соединений
+        Assert.assertEquals(batch.get(0), MessageCodec.decode(frames.get(0).duplicate()));
+        Assert.assertEquals(batch.get(0), MessageCodec.decode(frames.get(0).retain().duplicate()));
+        frames.get(0).release();
+        frames.forEach(SharedFrame::release);
+        try {
+            frames.get(0).retain();
+            Assert.fail("Released frame must not be retained");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void compressedBatchDecodesToSameMessages() throws IOException {
+        List<Message> batch = Message.generateMessages(200);
+        FramePool pool = new FramePool(1024 * 1024);
+        List<SharedFrame> frames = new ArrayList<>();
+        int framesLength = 0;
+        for (Message message : batch) {
+            SharedFrame frame = SharedFrame.encode(message, pool);
+            frames.add(frame);
+            framesLength += frame.length();
+        }
+        FrameCompressor compressor = new FrameCompressor(1, 1024);
+        Assert.assertNull(compressor.compressBatch(1, frames.subList(0, 2), frames.get(0).length() + frames.get(1).length()));
+
+        ByteBuffer compressed = compressor.compressBatch(100, frames, framesLength);
+        Assert.assertNotNull(compressed);
+        Assert.assertTrue(compressed.remaining() < framesLength / 2);
+        List<Message> decoded = new ArrayList<>();
+        Assert.assertTrue(MessageCodec.decode(compressed, decoded::add));
+        Assert.assertFalse(compressed.hasRemaining());
+        Assert.assertEquals(batch, decoded);
+        Assert.assertEquals(299, decoded.get(199).getDeliveryTag());
+        Assert.assertEquals(batch.get(5).getData(), decoded.get(5).getData());
+
+        //Компрессор переиспользуется для следующего пакета соединения
+        ByteBuffer next = compressor.compressBatch(300, frames.subList(100, 200), framesLength / 2);
+        decoded.clear();
+        Assert.assertTrue(MessageCodec.decode(next, decoded::add));
+        Assert.assertEquals(batch.subList(100, 200), decoded);
+        frames.forEach(SharedFrame::release);
+    }
+
+    @Test
+    public void incompleteFrameLeavesBufferUntouched() throws IOException {
+        Message message = Message.generateMessage();
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.encodedLength(message));
+        MessageCodec.encode(message, buffer);
+        buffer.flip();
+        buffer.limit(buffer.limit() - 1);
+        Assert.assertNull(MessageCodec.decode(buffer));
+        Assert.assertEquals(0, buffer.position());
+        buffer.limit(buffer.capacity());
+        Assert.assertEquals(message, MessageCodec.decode(buffer));
+    }
+
+    @Test(expected = MessageCodec.UnsupportedVersionException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        Message message = Message.generateMessage();
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.encodedLength(message));
+        MessageCodec.encode(message, buffer);
+        buffer.put(MessageCodec.LENGTH_FIELD_SIZE, (byte) (MessageCodec.VERSION + 1));
+        buffer.flip();
+        MessageCodec.decode(buffer);
+    }
+
+    @Test
+    public void decodesMessageFramesOfOlderVersions() throws IOException {
+        for (byte version = MessageCodec.OLDEST_VERSION; version < MessageCodec.VERSION; version++) {
+            ByteBuffer buffer = legacyFrame(version, 0x1234L, 56L, 789L, "данные");
+            Message message = MessageCodec.decode(buffer);
+            Assert.assertFalse(buffer.hasRemaining());
+            Assert.assertEquals(0x1234L, message.getEpoch());
+            Assert.assertEquals(56L, message.getSequence());
+            Assert.assertEquals(version >= 3 ? 789L : 0L, message.getTimestamp());
+            Assert.assertEquals(MessageType.SERVER_PUSH, message.getType());
+            Assert.assertEquals(MessagePriority.HIGH, message.getPriority());
+            Assert.assertEquals("данные", message.getData());
+        }
+    }
+
+    /**
+     * Кадр сообщения в раскладке прежних версий: до 3 без времени генерации, до 4 с битами UUID вместо эпохи и номера
+     */
+    static ByteBuffer legacyFrame(byte version, long mostBits, long leastBits, long timestamp, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        int headerSize = version >= 3 ? MessageCodec.HEADER_SIZE : MessageCodec.HEADER_SIZE - 8;
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + bytes.length);
+        buffer.putInt(headerSize - MessageCodec.LENGTH_FIELD_SIZE + bytes.length);
+        buffer.put(version);
+        buffer.put((byte) MessageType.SERVER_PUSH.getCode());
+        buffer.put((byte) MessagePriority.HIGH.getOrder());
+        buffer.put((byte) 0);
+        buffer.putLong(mostBits);
+        buffer.putLong(leastBits);
+        if (version >= 3) {
+            buffer.putLong(timestamp);
+        }
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,143 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+import ru.sibintek.testcase.common.SharedFrame;
+import ru.sibintek.testcase.common.Subscription;
+import ru.sibintek.testcase.server.MessageLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessageLogTest {
+
+    @Test
+    public void headIsReleasedWhenAllCursorsCommit() throws Exception {
+        List<Message> delivered = new ArrayList<>();
+        MessageLog log = new MessageLog(100, delivered::add);
+        MessageLog.Cursor a = log.attach("a");
+        MessageLog.Cursor b = log.attach("b");
+        List<Message> messages = Message.generateMessages(10);
+        log.append(new ArrayList<>(messages));
+        Assert.assertEquals(10, log.size());
+
+        List<Message> read = new ArrayList<>();
+        List<SharedFrame> frames = new ArrayList<>();
+        Assert.assertEquals(4, log.read(6, 10, read, frames));
+        Assert.assertEquals(messages.subList(6, 10), read);
+        Assert.assertEquals(4, frames.size());
+        Assert.assertEquals(messages.get(6), MessageCodec.decode(frames.get(0).duplicate()));
+        frames.forEach(SharedFrame::release);
+
+        log.commit(a, 10);
+        Assert.assertTrue(delivered.isEmpty());
+        log.commit(b, 3);
+        Assert.assertEquals(messages.subList(0, 3), delivered);
+        Assert.assertNull(log.get(2));
+        Assert.assertEquals(messages.get(3), log.get(3));
+        Assert.assertEquals(7, log.size());
+    }
+
+    @Test
+    public void reconnectResumesFromCommittedOffset() throws Exception {
+        MessageLog log = new MessageLog(100, message -> { });
+        MessageLog.Cursor cursor = log.attach("service");
+        Assert.assertNull(log.attach("service"));
+        log.append(new ArrayList<>(Message.generateMessages(5)));
+        log.commit(cursor, 2);
+        Assert.assertEquals(0, log.detach(cursor, false));
+        Assert.assertEquals(1, log.detachedCursors());
+
+        log.append(new ArrayList<>(Message.generateMessages(5)));
+        MessageLog.Cursor resumed = log.attach("service");
+        Assert.assertSame(cursor, resumed);
+        Assert.assertEquals(2, resumed.committed());
+        Assert.assertEquals(8, log.size());
+        Assert.assertEquals(10, log.attach("other").committed());
+    }
+
+    @Test
+    public void expiredCursorReleasesLogAndCountsDropped() throws Exception {
+        List<Message> delivered = new ArrayList<>();
+        List<Message> dropped = new ArrayList<>();
+        MessageLog log = new MessageLog(100, Long.MAX_VALUE, delivered::add, dropped::add);
+        MessageLog.Cursor cursor = log.attach("service");
+        List<Message> messages = Message.generateMessages(5);
+        log.append(new ArrayList<>(messages));
+        log.commit(cursor, 1);
+        log.detach(cursor, false);
+
+        Assert.assertEquals(0, log.expireDetached(TimeUnit.HOURS.toNanos(1)));
+        Assert.assertEquals(4, log.expireDetached(0));
+        Assert.assertFalse(log.hasCursors());
+        //Доставленным считается только подтвержденное, остальные выбыли вместе с курсором
+        Assert.assertEquals(messages.subList(0, 1), delivered);
+        Assert.assertEquals(messages.subList(1, 5), dropped);
+        Assert.assertEquals(0, log.size());
+    }
+
+    @Test
+    public void removedCursorDropsOnlyWhatItDidNotCommit() throws Exception {
+        List<Message> delivered = new ArrayList<>();
+        List<Message> dropped = new ArrayList<>();
+        MessageLog log = new MessageLog(100, Long.MAX_VALUE, delivered::add, dropped::add);
+        MessageLog.Cursor slow = log.attach("slow");
+        MessageLog.Cursor fast = log.attach("fast");
+        List<Message> messages = Message.generateMessages(5);
+        log.append(new ArrayList<>(messages));
+        log.commit(fast, 4);
+        log.commit(slow, 2);
+        Assert.assertEquals(messages.subList(0, 2), delivered);
+
+        Assert.assertEquals(3, log.detach(slow, true));
+        //Сообщения, которые успел подтвердить быстрый клиент, медленный уже не получит
+        Assert.assertEquals(messages.subList(0, 2), delivered);
+        Assert.assertEquals(messages.subList(2, 4), dropped);
+        Assert.assertEquals(1, log.size());
+    }
+
+    @Test
+    public void appendWaitsForSlowestCursor() throws Exception {
+        MessageLog log = new MessageLog(4, message -> { });
+        MessageLog.Cursor cursor = log.attach("slow");
+        log.append(new ArrayList<>(Message.generateMessages(4)));
+
+        CompletableFuture<Void> appended = CompletableFuture.runAsync(() -> {
+            try {
+                log.append(new ArrayList<>(Message.generateMessages(2)));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(50);
+        Assert.assertFalse(appended.isDone());
+        log.commit(cursor, 2);
+        appended.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(6, log.endOffset());
+        Assert.assertEquals(4, log.size());
+    }
+
+    @Test
+    public void filteredCursorPinningHeadIsWokenWhenLogFillsUp() throws Exception {
+        MessageLog log = new MessageLog(4, message -> { });
+        AtomicInteger wakeups = new AtomicInteger();
+        MessageLog.Cursor filtered = log.attach("filtered", Subscription.parse("prefix=none"), wakeups::incrementAndGet);
+        AtomicInteger plainWakeups = new AtomicInteger();
+        log.attach("plain", Subscription.ALL, plainWakeups::incrementAndGet);
+
+        log.append(new ArrayList<>(Message.generateMessages(2)));
+        Assert.assertEquals(0, wakeups.get());
+        log.append(new ArrayList<>(Message.generateMessages(1)));
+        Assert.assertEquals(1, wakeups.get());
+        Assert.assertEquals(0, plainWakeups.get());
+
+        log.commit(filtered, 3);
+        log.append(new ArrayList<>(Message.generateMessages(1)));
+        Assert.assertEquals(1, wakeups.get());
+    }
+}
@@ -0,0 +1,67 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.client.ProcessingEngine;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageType;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProcessingEngineTest {
+
+    @Test
+    public void failedMessageIsNotAcknowledged() throws Exception {
+        List<Long> acks = new CopyOnWriteArrayList<>();
+        CountDownLatch failed = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+        //Один обработчик - сообщения идут по порядку
+        try (ProcessingEngine engine = new ProcessingEngine(message -> {
+            if (message.getDeliveryTag() == 3) {
+                throw new IllegalStateException("broken");
+            }
+        }, acks::add, () -> {
+            failures.incrementAndGet();
+            failed.countDown();
+        }, 1, 1000)) {
+            for (long tag = 1; tag <= 5; tag++) {
+                engine.submit(new Message(0, 0, MessageType.SERVER_PUSH, null, "data", 0, tag));
+            }
+            Assert.assertTrue(failed.await(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, failures.get());
+        Assert.assertFalse(acks.isEmpty());
+        Assert.assertEquals(2L, (long) acks.get(acks.size() - 1));
+    }
+
+    @Test
+    public void interruptedHandlerIsNotAcknowledged() throws Exception {
+        List<Long> acks = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+        ProcessingEngine engine = new ProcessingEngine(message -> {
+            started.countDown();
+            try {
+                TimeUnit.SECONDS.sleep(10);
+            } catch (InterruptedException e) {
+                //Как обработчик клиента по умолчанию: флаг восстанавливается, сообщение не обработано
+                Thread.currentThread().interrupt();
+            } finally {
+                finished.countDown();
+            }
+        }, acks::add, failures::incrementAndGet, 1, 1000);
+        engine.submit(new Message(0, 0, MessageType.SERVER_PUSH, null, "data", 0, 1));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        engine.close();
+        Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+        TimeUnit.MILLISECONDS.sleep(50);
+        Assert.assertTrue(acks.isEmpty());
+        //Закрытие движка - не ошибка обработки
+        Assert.assertEquals(0, failures.get());
+    }
+}
@@ -0,0 +1,90 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.common.Connection;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageType;
+import ru.sibintek.testcase.common.SharedMemoryChannel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class SharedMemoryChannelTest {
+
+    @Test
+    public void messagesPassBothWaysAndBatchLargerThanRingIsStreamed() throws Exception {
+        Path dir = Files.createTempDirectory("ipc-test");
+        CompletableFuture<Connection> client = connectAsync(dir);
+        Path file = awaitFile(dir);
+        try (Connection server = SharedMemoryChannel.accept(file);
+             Connection connection = client.get(5, TimeUnit.SECONDS)) {
+            Assert.assertFalse("Accepted file is removed", Files.exists(file));
+
+            connection.send(new Message(MessageType.HEART_BEAT, "service"));
+            Message heartBeat = server.receive();
+            Assert.assertEquals(MessageType.HEART_BEAT, heartBeat.getType());
+            Assert.assertEquals("service", heartBeat.getData());
+
+            //Пакет в несколько раз больше кольца уходит частями, пока другая сторона читает
+            List<Message> batch = Message.generateMessages(500);
+            CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+                try {
+                    server.sendBatch(1, batch);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            List<Message> received = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                received.add(connection.receive());
+            }
+            sent.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(batch, received);
+            Assert.assertEquals(500, received.get(received.size() - 1).getDeliveryTag());
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void closedPeerEndsStreamAfterPendingMessages() throws Exception {
+        Path dir = Files.createTempDirectory("ipc-test");
+        CompletableFuture<Connection> client = connectAsync(dir);
+        try (Connection server = SharedMemoryChannel.accept(awaitFile(dir))) {
+            Connection connection = client.get(5, TimeUnit.SECONDS);
+            connection.send(new Message(MessageType.DEREGISTER));
+            connection.close();
+            Assert.assertEquals(MessageType.DEREGISTER, server.receive().getType());
+            server.receive();
+        }
+    }
+
+    private static CompletableFuture<Connection> connectAsync(Path dir) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return SharedMemoryChannel.connect(dir, 4096, 5000);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static Path awaitFile(Path dir) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SharedMemoryChannel.SUFFIX)) {
+                for (Path file : files) {
+                    return file;
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        throw new AssertionError("Client did not create a connection file");
+    }
+}
@@ -0,0 +1,120 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+import ru.sibintek.testcase.common.MessagePriority;
+import ru.sibintek.testcase.server.SpillStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+public class SpillStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsInPriorityOrderAndDeletesConsumedSegments() throws IOException {
+        File dir = folder.newFolder();
+        List<Message> written = new ArrayList<>();
+        try (SpillStore store = new SpillStore(dir.toPath(), 512)) {
+            for (int i = 0; i < 100; i++) {
+                Message msg = Message.generateMessage();
+                written.add(msg);
+                store.append(msg);
+            }
+            Assert.assertTrue(Objects.requireNonNull(dir.list()).length > 3);
+
+            List<Message> read = new ArrayList<>();
+            Message msg;
+            while ((msg = store.poll()) != null) {
+                read.add(msg);
+            }
+            List<Message> expected = new ArrayList<>();
+            for (MessagePriority priority : MessagePriority.values()) {
+                for (Message message : written) {
+                    if (message.getPriority() == priority) {
+                        expected.add(message);
+                    }
+                }
+            }
+            Assert.assertEquals(expected, read);
+            Assert.assertTrue(store.isEmpty());
+            Assert.assertEquals(MessagePriority.values().length, Objects.requireNonNull(dir.list()).length);
+        }
+    }
+
+    @Test
+    public void recoversUnreadSegmentsAfterReopen() throws IOException {
+        File dir = folder.newFolder();
+        Message first = Message.generateMessage();
+        Message second = Message.generateMessage();
+        try (SpillStore store = new SpillStore(dir.toPath(), 512)) {
+            store.append(first);
+            store.append(second);
+            Assert.assertEquals(2, store.pendingMessages());
+        }
+        try (SpillStore store = new SpillStore(dir.toPath(), 512)) {
+            Assert.assertEquals(2, store.pendingMessages());
+            Message a = store.poll();
+            Message b = store.poll();
+            Assert.assertNull(store.poll());
+            Assert.assertEquals(0, store.pendingMessages());
+            Assert.assertTrue(a.equals(first) && b.equals(second) || a.equals(second) && b.equals(first));
+        }
+    }
+
+    @Test
+    public void readsSegmentsWrittenInOlderVersion() throws IOException {
+        File dir = folder.newFolder();
+        Path segment = writeSingleRecordSegment(dir);
+        Files.write(segment, bytes(MessageCodecTest.legacyFrame((byte) 2, 7L, 8L, 0L, "old")));
+        try (SpillStore store = new SpillStore(dir.toPath(), 512)) {
+            Assert.assertEquals(1, store.pendingMessages());
+            Message message = store.poll();
+            Assert.assertEquals(7L, message.getEpoch());
+            Assert.assertEquals(8L, message.getSequence());
+            Assert.assertEquals("old", message.getData());
+            Assert.assertNull(store.poll());
+        }
+    }
+
+    @Test(expected = MessageCodec.UnsupportedVersionException.class)
+    public void refusesSegmentsOfUnknownVersion() throws IOException {
+        File dir = folder.newFolder();
+        Path segment = writeSingleRecordSegment(dir);
+        byte[] content = Files.readAllBytes(segment);
+        content[MessageCodec.LENGTH_FIELD_SIZE] = MessageCodec.VERSION + 1;
+        Files.write(segment, content);
+        new SpillStore(dir.toPath(), 512).close();
+    }
+
+    /**
+     * @return единственный непустой сегмент с одной записью
+     */
+    private static Path writeSingleRecordSegment(File dir) throws IOException {
+        try (SpillStore store = new SpillStore(dir.toPath(), 512)) {
+            store.append(Message.generateMessage());
+        }
+        try (Stream<Path> files = Files.list(dir.toPath())) {
+            return files.filter(path -> path.toFile().length() > 0).findFirst().orElseThrow(IllegalStateException::new);
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,44 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessagePriority;
+import ru.sibintek.testcase.common.MessageType;
+import ru.sibintek.testcase.common.Subscription;
+
+public class SubscriptionTest {
+
+    @Test
+    public void heartBeatCarriesSubscriptionAfterServiceName() {
+        Subscription subscription = Subscription.parse("priority=high, medium;prefix=ab");
+        String heartBeat = subscription.heartBeat("service");
+        Assert.assertEquals("service;priority=HIGH,MEDIUM;prefix=ab", heartBeat);
+        Assert.assertEquals("service", Subscription.serviceName(heartBeat));
+        Assert.assertEquals(heartBeat, Subscription.fromHeartBeat(heartBeat).heartBeat("service"));
+
+        Assert.assertEquals("service", Subscription.ALL.heartBeat("service"));
+        Assert.assertSame(Subscription.ALL, Subscription.fromHeartBeat("service"));
+        Assert.assertSame(Subscription.ALL, Subscription.parse(""));
+    }
+
+    @Test
+    public void matchesPriorityAndDataPrefix() {
+        Subscription subscription = Subscription.parse("priority=HIGH;prefix=ab");
+        Assert.assertTrue(subscription.matches(message(MessagePriority.HIGH, "abc")));
+        Assert.assertFalse(subscription.matches(message(MessagePriority.LOW, "abc")));
+        Assert.assertFalse(subscription.matches(message(MessagePriority.HIGH, "bc")));
+        Assert.assertFalse(subscription.matches(message(MessagePriority.HIGH, null)));
+        Assert.assertTrue(Subscription.ALL.matches(message(MessagePriority.LOW, null)));
+        Assert.assertEquals(Subscription.mask(MessagePriority.HIGH), subscription.priorityMask());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownConditionIsRejected() {
+        Subscription.parse("type=SERVER_PUSH");
+    }
+
+    private static Message message(MessagePriority priority, String data) {
+        return new Message(1, 1, MessageType.SERVER_PUSH, priority, data);
+    }
+}
@@ -0,0 +1,46 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.server.TimingWheel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TimingWheelTest {
+
+    @Test
+    public void timeoutBeyondOneRevolutionFiresNotEarlier() throws InterruptedException {
+        try (TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8, "test-timer")) {
+            CountDownLatch fired = new CountDownLatch(2);
+            AtomicLong firedAfter = new AtomicLong();
+            long start = System.nanoTime();
+            //Колесо из 8 корзин по 1 мс: 30 мс - почти четыре оборота
+            wheel.schedule(() -> {
+                firedAfter.set(System.nanoTime() - start);
+                fired.countDown();
+            }, 30, TimeUnit.MILLISECONDS);
+            wheel.schedule(fired::countDown, 0, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(fired.await(1, TimeUnit.SECONDS));
+            Assert.assertTrue("fired after " + firedAfter.get(), firedAfter.get() >= TimeUnit.MILLISECONDS.toNanos(30));
+            Assert.assertEquals(0, wheel.pending());
+        }
+    }
+
+    @Test
+    public void cancelledTimeoutDoesNotFire() throws InterruptedException {
+        try (TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 8, "test-timer")) {
+            AtomicBoolean cancelledFired = new AtomicBoolean();
+            CountDownLatch later = new CountDownLatch(1);
+            TimingWheel.Timeout timeout = wheel.schedule(() -> cancelledFired.set(true), 5, TimeUnit.MILLISECONDS);
+            wheel.schedule(later::countDown, 20, TimeUnit.MILLISECONDS);
+            Assert.assertEquals(2, wheel.pending());
+            Assert.assertTrue(timeout.cancel());
+            Assert.assertFalse(timeout.cancel());
+            Assert.assertTrue(later.await(1, TimeUnit.SECONDS));
+            Assert.assertFalse(cancelledFired.get());
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.server.TokenBucket;
+
+import java.util.concurrent.TimeUnit;
+
+public class TokenBucketTest {
+
+    @Test
+    public void burstIsFreeThenDebtIsPaidAtConfiguredRate() {
+        TokenBucket bucket = new TokenBucket(1000, 10);
+        Assert.assertEquals(0, bucket.reserve(10));
+        long wait = bucket.reserve(10);
+        Assert.assertTrue("wait " + wait, wait > TimeUnit.MILLISECONDS.toNanos(5) && wait <= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void subMillisecondPacing() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100_000, 1);
+        long start = System.nanoTime();
+        int reserved = 0;
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50)) {
+            long wait = bucket.reserve(1);
+            reserved++;
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+        //100 000 в секунду за 50 мс - около 5000, паузы потока могут только уменьшить это число
+        Assert.assertTrue("reserved " + reserved, reserved <= 5100);
+    }
+}
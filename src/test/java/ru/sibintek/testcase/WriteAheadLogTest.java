@@ -0,0 +1,120 @@
+package ru.sibintek.testcase;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessageCodec;
+import ru.sibintek.testcase.server.WriteAheadLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversExactlyUndeliveredMessagesDespiteTornTail() throws Exception {
+        File dir = folder.newFolder();
+        List<Message> messages = Message.generateMessages(10);
+        try (WriteAheadLog wal = new WriteAheadLog(dir.toPath(), 1024 * 1024, 500, 1000)) {
+            wal.awaitDurable(wal.enqueue(messages));
+            for (int i = 0; i < 10; i += 2) {
+                wal.completed(messages.get(i));
+            }
+        }
+        //Недописанная при сбое запись в конце сегмента
+        for (File file : Objects.requireNonNull(dir.listFiles())) {
+            Files.write(file.toPath(), new byte[]{0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+        }
+        try (WriteAheadLog wal = new WriteAheadLog(dir.toPath(), 1024 * 1024, 500, 1000)) {
+            List<Message> recovered = wal.takeRecovered();
+            Assert.assertEquals(5, recovered.size());
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(messages.get(2 * i + 1), recovered.get(i));
+            }
+            wal.completed(recovered.get(0));
+        }
+        try (WriteAheadLog wal = new WriteAheadLog(dir.toPath(), 1024 * 1024, 500, 1000)) {
+            Assert.assertEquals(Arrays.asList(messages.get(3), messages.get(5), messages.get(7), messages.get(9)), wal.takeRecovered());
+        }
+    }
+
+    @Test
+    public void droppedMessagesAreNeitherRecoveredNorRecordedAsDelivered() throws Exception {
+        File dir = folder.newFolder();
+        List<Message> messages = Message.generateMessages(3);
+        try (WriteAheadLog wal = new WriteAheadLog(dir.toPath(), 1024 * 1024, 500, 1000)) {
+            wal.awaitDurable(wal.enqueue(messages));
+            wal.completed(messages.get(0));
+            wal.dropped(messages.get(1));
+        }
+        //Выбывание записано отдельным типом, а не как доставка
+        File[] files = Objects.requireNonNull(dir.listFiles());
+        Assert.assertEquals(1, files.length);
+        ByteBuffer segment = ByteBuffer.wrap(Files.readAllBytes(files[0].toPath()));
+        List<Byte> kinds = new ArrayList<>();
+        for (int position = 0; position < segment.limit(); position += 8 + segment.getInt(position)) {
+            kinds.add(segment.get(position + 8));
+        }
+        Assert.assertEquals(Arrays.asList((byte) 1, (byte) 1, (byte) 1, (byte) 2, (byte) 3), kinds);
+
+        try (WriteAheadLog wal = new WriteAheadLog(dir.toPath(), 1024 * 1024, 500, 1000)) {
+            Assert.assertEquals(messages.subList(2, 3), wal.takeRecovered());
+        }
+    }
+
+    @Test
+    public void deletesSegmentsOnceAllTheirMessagesAreDelivered() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 512, 100, 1000)) {
+            for (int i = 0; i < 20; i++) {
+                List<Message> batch = Message.generateMessages(3);
+                wal.awaitDurable(wal.enqueue(batch));
+                batch.forEach(wal::completed);
+            }
+            wal.awaitDurable(wal.enqueue(Message.generateMessages(1)));
+        }
+        Assert.assertTrue(Objects.requireNonNull(dir.toFile().list()).length <= 2);
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 512, 100, 1000)) {
+            Assert.assertEquals(1, wal.takeRecovered().size());
+        }
+    }
+
+    @Test
+    public void refusesRecordOfUnknownVersionInsteadOfTruncating() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Message message = Message.generateMessage();
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.encodedLength(message));
+        MessageCodec.encode(message, frame);
+        frame.put(MessageCodec.LENGTH_FIELD_SIZE, (byte) (MessageCodec.VERSION + 1));
+        //Целая запись ENQUEUE с верной контрольной суммой: длина, CRC32C, тип, кадр
+        ByteBuffer record = ByteBuffer.allocate(9 + frame.capacity());
+        record.putInt(1 + frame.capacity()).putInt(0).put((byte) 1).put(frame.array());
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 8, 1 + frame.capacity());
+        record.putInt(4, (int) crc.getValue());
+        Path segment = dir.resolve(String.format("%019d.wal", 0));
+        Files.write(segment, record.array());
+
+        try {
+            new WriteAheadLog(dir, 1024 * 1024, 500, 1000).close();
+            Assert.fail("Record of unknown version must not be skipped");
+        } catch (MessageCodec.UnsupportedVersionException e) {
+            Assert.assertEquals(MessageCodec.VERSION + 1, e.getVersion());
+        }
+        Assert.assertTrue(Files.exists(segment));
+    }
+}
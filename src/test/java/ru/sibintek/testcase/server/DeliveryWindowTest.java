@@ -0,0 +1,138 @@
+package ru.sibintek.testcase.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DeliveryWindowTest {
+
+    @Test
+    public void noCreditsNoSending() {
+        DeliveryWindow window = new DeliveryWindow(64, () -> { });
+        Assert.assertEquals(0, window.available());
+        Assert.assertNull(window.tryReserve(1));
+        Assert.assertEquals(0, window.inFlight());
+    }
+
+    @Test
+    public void exhaustedCreditsAreReplenishedByAck() {
+        AtomicInteger capacity = new AtomicInteger();
+        DeliveryWindow window = new DeliveryWindow(64, capacity::incrementAndGet);
+        window.grant(3);
+        Assert.assertEquals(1, capacity.get());
+        Assert.assertEquals(3, window.available());
+
+        CompletableFuture<Boolean> first = window.tryReserve(1);
+        CompletableFuture<Boolean> second = window.tryReserve(2);
+        CompletableFuture<Boolean> third = window.tryReserve(3);
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(second);
+        Assert.assertNotNull(third);
+        //Кредиты исчерпаны - следующее сообщение ждет подтверждения
+        Assert.assertEquals(0, window.available());
+        Assert.assertNull(window.tryReserve(4));
+
+        //Подтверждение накопительное: освобождает место всех сообщений до номера включительно
+        window.acknowledgeUpTo(2);
+        Assert.assertTrue(first.join());
+        Assert.assertTrue(second.join());
+        Assert.assertFalse(third.isDone());
+        Assert.assertEquals(1, window.inFlight());
+        Assert.assertEquals(2, window.available());
+        Assert.assertEquals(3, capacity.get());
+        Assert.assertNotNull(window.tryReserve(4));
+        Assert.assertNotNull(window.tryReserve(5));
+        Assert.assertNull(window.tryReserve(6));
+    }
+
+    @Test
+    public void newCreditsOpenWindowWithoutAck() {
+        AtomicInteger capacity = new AtomicInteger();
+        DeliveryWindow window = new DeliveryWindow(64, capacity::incrementAndGet);
+        window.grant(1);
+        Assert.assertNotNull(window.tryReserve(1));
+        Assert.assertNull(window.tryReserve(2));
+
+        window.grant(2);
+        Assert.assertEquals(2, capacity.get());
+        Assert.assertEquals(2, window.available());
+        Assert.assertNotNull(window.tryReserve(2));
+    }
+
+    @Test
+    public void serverWindowCapsClientCredits() {
+        DeliveryWindow window = new DeliveryWindow(2, () -> { });
+        window.grant(100);
+        Assert.assertEquals(2, window.available());
+        Assert.assertNotNull(window.tryReserve(1));
+        Assert.assertNotNull(window.tryReserve(2));
+        Assert.assertNull(window.tryReserve(3));
+    }
+
+    @Test
+    public void creditSumSaturatesInsteadOfOverflowing() throws IOException {
+        DeliveryWindow window = new DeliveryWindow(Integer.MAX_VALUE, () -> { });
+        window.grant(DeliveryWindow.parseCredits(String.valueOf(Integer.MAX_VALUE)));
+        window.grant(DeliveryWindow.parseCredits(String.valueOf(Integer.MAX_VALUE)));
+        Assert.assertEquals(Integer.MAX_VALUE, window.available());
+        Assert.assertNotNull(window.tryReserve(1));
+        Assert.assertEquals(Integer.MAX_VALUE - 1, window.available());
+    }
+
+    @Test
+    public void timedOutMessageKeepsItsPlaceForRetransmission() {
+        AtomicInteger capacity = new AtomicInteger();
+        DeliveryWindow window = new DeliveryWindow(64, capacity::incrementAndGet);
+        window.grant(2);
+        Assert.assertNotNull(window.tryReserve(1));
+        CompletableFuture<Boolean> timedOut = window.tryReserve(2);
+        //Так таймаут подтверждения завершает ожидание
+        timedOut.complete(false);
+        //Исходная отправка может быть еще у клиента: место занято, но отдается повтору
+        Assert.assertEquals(2, window.inFlight());
+        Assert.assertEquals(1, window.available());
+        Assert.assertEquals(1, capacity.get());
+        CompletableFuture<Boolean> retransmitted = window.tryReserve(3);
+        Assert.assertNotNull(retransmitted);
+        Assert.assertEquals(2, window.inFlight());
+        Assert.assertNull(window.tryReserve(4));
+
+        //Подтверждение до номера исходной отправки освобождает только первое место, место повтора - его подтверждение
+        window.acknowledgeUpTo(2);
+        Assert.assertEquals(1, window.inFlight());
+        window.acknowledgeUpTo(3);
+        Assert.assertTrue(retransmitted.join());
+        Assert.assertEquals(0, window.inFlight());
+        Assert.assertEquals(2, window.available());
+    }
+
+    @Test
+    public void closeReleasesPlacesHeldForRetransmission() {
+        DeliveryWindow window = new DeliveryWindow(64, () -> { });
+        window.grant(1);
+        window.tryReserve(1).complete(false);
+        Assert.assertEquals(1, window.inFlight());
+        window.close(false);
+        Assert.assertEquals(0, window.inFlight());
+        Assert.assertEquals(0, window.available());
+    }
+
+    @Test
+    public void closeCompletesPendingAndStopsSending() {
+        DeliveryWindow window = new DeliveryWindow(64, () -> { });
+        window.grant(2);
+        CompletableFuture<Boolean> future = window.tryReserve(1);
+        window.close(false);
+        Assert.assertFalse(future.join());
+        Assert.assertEquals(0, window.available());
+        Assert.assertNull(window.tryReserve(2));
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeCreditIsRejected() throws IOException {
+        DeliveryWindow.parseCredits("-1");
+    }
+}
@@ -0,0 +1,76 @@
+package ru.sibintek.testcase.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessagePriority;
+import ru.sibintek.testcase.common.MessageType;
+import ru.sibintek.testcase.common.SharedFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class DispatcherTest {
+
+    @Test
+    public void drainMovesBufferedMessagesIntoLogInOrder() throws Exception {
+        MessageBuffer buffer = new MessageBuffer();
+        MessageLog log = new MessageLog(1000, message -> { });
+        log.attach("service");
+        Dispatcher dispatcher = new Dispatcher(new RoutingIndex(), buffer, log);
+        List<Message> generated = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            generated.add(message(i));
+            buffer.offer(generated.get(i));
+        }
+        dispatcher.start();
+        Assert.assertTrue(dispatcher.drain(5, TimeUnit.SECONDS));
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertEquals(generated, read(log, 0, generated.size()));
+    }
+
+    @Test
+    public void stopReturnsUnloggedMessagesToBufferHead() throws Exception {
+        MessageBuffer buffer = new MessageBuffer();
+        //Журнал на 10 сообщений, курсор не подтверждает - рассылка застрянет посреди пачки
+        MessageLog log = new MessageLog(10, message -> { });
+        log.attach("service");
+        Dispatcher dispatcher = new Dispatcher(new RoutingIndex(), buffer, log);
+        List<Message> generated = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            generated.add(message(i));
+            buffer.offer(generated.get(i));
+        }
+        dispatcher.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((log.endOffset() < 10 || !buffer.isEmpty()) && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        Assert.assertEquals(10, log.endOffset());
+        Assert.assertTrue(buffer.isEmpty());
+
+        //Сообщения, сгенерированные, пока пачка ждала места в журнале
+        for (int i = 30; i < 35; i++) {
+            generated.add(message(i));
+            buffer.offer(generated.get(i));
+        }
+        dispatcher.stop();
+        Assert.assertEquals(generated.subList(0, 10), read(log, 0, 10));
+        List<Message> rest = new ArrayList<>();
+        buffer.drainTo(rest, Integer.MAX_VALUE);
+        Assert.assertEquals(generated.subList(10, 35), rest);
+    }
+
+    private static List<Message> read(MessageLog log, long from, int count) {
+        List<Message> messages = new ArrayList<>();
+        List<SharedFrame> frames = new ArrayList<>();
+        log.read(from, count, messages, frames);
+        frames.forEach(SharedFrame::release);
+        return messages;
+    }
+
+    private static Message message(int index) {
+        return new Message(1, index + 1, MessageType.SERVER_PUSH, MessagePriority.MEDIUM, String.valueOf(index));
+    }
+}
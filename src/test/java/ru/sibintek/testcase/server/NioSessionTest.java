@@ -0,0 +1,276 @@
+package ru.sibintek.testcase.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.sibintek.testcase.common.Connection;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessagePriority;
+import ru.sibintek.testcase.common.MessageType;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+public class NioSessionTest {
+    private static final int RECEIVE_TIMEOUT_MILLIS = 5000;
+
+    private final Map<String, Subscriber> connectionMap = new ConcurrentHashMap<>();
+    private final MessageBuffer buffer = new MessageBuffer();
+    private MessageLog log;
+    private final List<Connection> connections = new ArrayList<>();
+    private Dispatcher dispatcher;
+    private DeliveryContext context;
+    private NioServer server;
+
+    @After
+    public void stop() throws InterruptedException {
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (server != null) {
+            dispatcher.stop();
+            server.close();
+            context.sendExecutor.shutdownNow();
+            context.lingerExecutor.shutdownNow();
+            context.ackTimer.close();
+        }
+    }
+
+    @Test
+    public void deliversMessagesInOrderAndCommitsCursorOnAck() throws Exception {
+        start(new DeliverySettings(false));
+        Connection connection = register("service", 16);
+        Assert.assertTrue(connectionMap.containsKey("service"));
+
+        List<Message> generated = messages(10);
+        dispatch(generated);
+        List<Message> received = receive(connection, generated.size());
+        Assert.assertEquals(generated, received);
+        for (int i = 0; i < received.size(); i++) {
+            Assert.assertEquals(i + 1, received.get(i).getDeliveryTag());
+        }
+        //Пока подтверждения нет, журнал держит все сообщения
+        Assert.assertEquals(generated.size(), log.size());
+
+        connection.send(new Message(MessageType.ACK, received.get(received.size() - 1).getDeliveryTag()));
+        Assert.assertTrue(await(() -> log.size() == 0));
+    }
+
+    @Test
+    public void rejectsTakenServiceNameUntilClientPicksAnother() throws Exception {
+        start(new DeliverySettings(false));
+        register("service", 16);
+        Connection second = connect();
+        Assert.assertEquals(MessageType.HEART_BEAT, second.receive().getType());
+        second.send(new Message(MessageType.HEART_BEAT, "service"));
+        //Имя занято - сервер повторяет запрос, а не регистрирует второе соединение
+        Assert.assertEquals(MessageType.HEART_BEAT, second.receive().getType());
+        second.send(new Message(MessageType.HEART_BEAT, "other"));
+        Assert.assertEquals(MessageType.REGISTERED, second.receive().getType());
+        Assert.assertTrue(await(() -> connectionMap.containsKey("other")));
+    }
+
+    @Test
+    public void failedRegistrationRepromptsInsteadOfConfirming() throws Exception {
+        start(new DeliverySettings(false));
+        //Курсор с этим именем еще занят, хотя в connectionMap имени нет - так бывает при переподключении
+        log.attach("service");
+        Connection connection = connect();
+        Assert.assertEquals(MessageType.HEART_BEAT, connection.receive().getType());
+        connection.send(new Message(MessageType.HEART_BEAT, "service"));
+        //Регистрация не удалась - клиенту не сообщают об успехе, а запрашивают хартбит снова
+        Assert.assertEquals(MessageType.HEART_BEAT, connection.receive().getType());
+        Assert.assertFalse(connectionMap.containsKey("service"));
+        connection.send(new Message(MessageType.HEART_BEAT, "other"));
+        Assert.assertEquals(MessageType.REGISTERED, connection.receive().getType());
+        Assert.assertTrue(await(() -> connectionMap.containsKey("other")));
+    }
+
+    @Test
+    public void deregisteredClientReleasesItsCursorOnClose() throws Exception {
+        start(new DeliverySettings(false));
+        Connection connection = register("service", 16);
+        dispatch(messages(3));
+        receive(connection, 3);
+
+        connection.send(new Message(MessageType.DEREGISTER));
+        connection.close();
+        Assert.assertTrue(await(() -> !connectionMap.containsKey("service")));
+        //Курсор удален, а не ждет переподключения, поэтому журнал освобождается без подтверждений
+        Assert.assertFalse(log.hasCursors());
+        Assert.assertEquals(0, log.size());
+    }
+
+    @Test
+    public void redeliversOnlyUnacknowledgedMessageAfterAckTimeout() throws Exception {
+        start(settingsWithAckTimeout(100, 200));
+        Connection connection = register("service", 16);
+        List<Message> generated = messages(2);
+        dispatch(generated);
+        List<Message> received = receive(connection, 2);
+        long sentAt = System.nanoTime();
+        //Первое сообщение подтверждено вовремя, второе - нет
+        connection.send(new Message(MessageType.ACK, received.get(0).getDeliveryTag()));
+
+        Message resent = receive(connection, 1).get(0);
+        Assert.assertTrue(System.nanoTime() - sentAt >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(generated.get(1), resent);
+        //Повтор получает новый номер доставки
+        Assert.assertEquals(3, resent.getDeliveryTag());
+        Assert.assertEquals(1, log.size());
+
+        //Следующий таймаут вдвое длиннее, сообщение снова приходит тому же клиенту
+        Message again = receive(connection, 1).get(0);
+        Assert.assertEquals(generated.get(1), again);
+        Assert.assertEquals(4, again.getDeliveryTag());
+        Assert.assertEquals(2, connectionMap.get("service").getMetrics().getResentTotal());
+
+        connection.send(new Message(MessageType.ACK, again.getDeliveryTag()));
+        Assert.assertTrue(await(() -> log.size() == 0));
+    }
+
+    @Test
+    public void clientThatStopsAckingIsDisconnectedInsteadOfStallingOthers() throws Exception {
+        List<Message> dropped = new ArrayList<>();
+        start(new DeliverySettings(false), new MessageLog(20, TimeUnit.MILLISECONDS.toNanos(200), message -> { },
+                message -> {
+                    synchronized (dropped) {
+                        dropped.add(message);
+                    }
+                }));
+        Connection slow = register("slow", 16);
+        Connection fast = register("fast", 16);
+        List<Message> generated = messages(100);
+        dispatch(generated);
+
+        //Медленный клиент получает сообщения на все кредиты и больше не подтверждает
+        Assert.assertEquals(generated.subList(0, 16), receive(slow, 16));
+        //Быстрый подтверждает каждое сообщение и получает все, хотя журнал вмещает только 20
+        List<Message> received = new ArrayList<>();
+        while (received.size() < generated.size()) {
+            Message message = receive(fast, 1).get(0);
+            received.add(message);
+            fast.send(new Message(MessageType.ACK, message.getDeliveryTag()));
+        }
+        Assert.assertEquals(generated, received);
+
+        Assert.assertTrue(await(() -> !connectionMap.containsKey("slow")));
+        Assert.assertTrue(await(() -> log.size() == 0));
+        synchronized (dropped) {
+            Assert.assertFalse(dropped.isEmpty());
+            Assert.assertEquals(generated.subList(0, dropped.size()), dropped);
+        }
+        try {
+            receive(slow, 1);
+            Assert.fail("Connection of evicted client must be closed");
+        } catch (IOException expected) {
+            //соединение закрыто сервером
+        }
+    }
+
+    private void start(DeliverySettings settings) throws IOException {
+        start(settings, new MessageLog(1000, message -> { }));
+    }
+
+    private void start(DeliverySettings settings, MessageLog log) throws IOException {
+        this.log = log;
+        RoutingIndex routes = new RoutingIndex();
+        dispatcher = new Dispatcher(routes, buffer, log);
+        context = new DeliveryContext(connectionMap, routes, dispatcher::signal,
+                Executors.newFixedThreadPool(2),
+                Executors.newSingleThreadScheduledExecutor(),
+                new TimingWheel(10, TimeUnit.MILLISECONDS, 512, "ack-timer"),
+                log,
+                new ServerMetrics(buffer::size),
+                settings);
+        server = new NioServer(0, 1, context);
+        server.start();
+        dispatcher.start();
+    }
+
+    /**
+     * Настройки доставки читаются из системных свойств один раз, при создании
+     */
+    private static DeliverySettings settingsWithAckTimeout(int ackTimeoutMillis, int ackTimeoutMaxMillis) {
+        System.setProperty("server.ackTimeoutMillis", String.valueOf(ackTimeoutMillis));
+        System.setProperty("server.ackTimeoutMaxMillis", String.valueOf(ackTimeoutMaxMillis));
+        try {
+            return new DeliverySettings(false);
+        } finally {
+            System.clearProperty("server.ackTimeoutMillis");
+            System.clearProperty("server.ackTimeoutMaxMillis");
+        }
+    }
+
+    private Connection connect() throws IOException {
+        Socket socket = new Socket("localhost", server.localPort());
+        socket.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
+        Connection connection = new Connection(socket);
+        connections.add(connection);
+        return connection;
+    }
+
+    /**
+     * Проходит регистрацию так же, как клиенты: хартбит с именем сервиса, затем кредиты
+     */
+    private Connection register(String serviceName, int credits) throws Exception {
+        Connection connection = connect();
+        Assert.assertEquals(MessageType.HEART_BEAT, connection.receive().getType());
+        connection.send(new Message(MessageType.HEART_BEAT, serviceName));
+        Assert.assertEquals(MessageType.REGISTERED, connection.receive().getType());
+        connection.send(new Message(MessageType.CREDIT, String.valueOf(credits)));
+        Assert.assertTrue(await(() -> connectionMap.containsKey(serviceName)));
+        return connection;
+    }
+
+    private void dispatch(List<Message> messages) {
+        messages.forEach(buffer::offer);
+        dispatcher.signal();
+    }
+
+    /**
+     * @return следующие count сообщений рассылки, хартбиты пропускаются
+     */
+    private static List<Message> receive(Connection connection, int count) throws IOException {
+        List<Message> received = new ArrayList<>();
+        while (received.size() < count) {
+            Message message = connection.receive();
+            if (message.getType() == MessageType.SERVER_PUSH) {
+                received.add(message);
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Сообщения одного приоритета, чтобы буфер не менял их порядок
+     */
+    private static List<Message> messages(int count) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(1, i + 1, MessageType.SERVER_PUSH, MessagePriority.MEDIUM, String.valueOf(i)));
+        }
+        return messages;
+    }
+
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECEIVE_TIMEOUT_MILLIS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        return true;
+    }
+}
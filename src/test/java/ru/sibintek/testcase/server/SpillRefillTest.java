@@ -0,0 +1,90 @@
+package ru.sibintek.testcase.server;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.sibintek.testcase.common.Message;
+import ru.sibintek.testcase.common.MessagePriority;
+import ru.sibintek.testcase.common.MessageType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SpillRefillTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void newMessagesQueueBehindPrefetchedBacklog() throws Exception {
+        MessageBuffer buffer = new MessageBuffer();
+        int footprint = BufferBudget.footprint(message(0));
+        //Верхняя отметка - 10 сообщений, нижняя - 5
+        BufferBudget budget = new BufferBudget(20L * footprint, 0.5, 0.25, 0, false, buffer::bytes);
+        List<Message> generated = new ArrayList<>();
+        for (int i = 0; i < 22; i++) {
+            generated.add(message(i));
+        }
+        try (SpillStore store = new SpillStore(folder.newFolder().toPath(), 4096)) {
+            SpillRefill refill = new SpillRefill(store, buffer, budget, () -> { }, new ServerMetrics(buffer::size), 100, 0);
+            refill.route(generated.subList(0, 20));
+            Assert.assertEquals(10, buffer.size());
+            Assert.assertEquals(10, store.pendingMessages());
+
+            //Поток пополнения читает хранилище заранее, но память выше нижней отметки - в буфер пачка не переносится
+            refill.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!store.isEmpty() && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            Assert.assertTrue(store.isEmpty());
+
+            List<Message> received = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                received.add(buffer.poll());
+            }
+            //Между отметками место в памяти есть, но новые сообщения должны встать за прочитанной пачкой
+            Assert.assertTrue(budget.room() > 0);
+            refill.route(generated.subList(20, 22));
+            Assert.assertEquals(7, buffer.size());
+
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (received.size() < generated.size() && System.nanoTime() < deadline) {
+                Message message = buffer.poll();
+                if (message != null) {
+                    received.add(message);
+                    refill.signal();
+                } else {
+                    TimeUnit.MILLISECONDS.sleep(1);
+                }
+            }
+            refill.stop();
+            Assert.assertEquals(generated, received);
+        }
+    }
+
+    @Test
+    public void offHeapBufferIsChargedByItsOwnFootprint() throws Exception {
+        MessageBuffer buffer = new MessageBuffer(MessageBuffer.Storage.OFF_HEAP);
+        int footprint = buffer.footprint(message(0));
+        BufferBudget budget = new BufferBudget(20L * footprint, 0.5, 0.25, 0, false, buffer::bytes);
+        List<Message> generated = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            generated.add(message(i));
+        }
+        try (SpillStore store = new SpillStore(folder.newFolder().toPath(), 4096)) {
+            SpillRefill refill = new SpillRefill(store, buffer, budget, () -> { }, new ServerMetrics(buffer::size), 100, 0);
+            //В память - ровно до верхней отметки в тех байтах, которые считает буфер
+            refill.route(generated);
+            Assert.assertEquals(10, buffer.size());
+            Assert.assertEquals(10L * footprint, budget.used());
+            Assert.assertEquals(20, store.pendingMessages());
+        }
+    }
+
+    private static Message message(int index) {
+        return new Message(1, index + 1, MessageType.SERVER_PUSH, MessagePriority.MEDIUM, String.format("%04d", index));
+    }
+}